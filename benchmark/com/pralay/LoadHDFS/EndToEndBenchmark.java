@@ -0,0 +1,469 @@
+package com.pralay.LoadHDFS;
+
+/*
+End to end benchmark of the loader without any services: generated frames are fed through MockConsumers into the real
+AdapterConsumerThread loop - decode, HDFSBatchWriter, parquet files, rename and offset commits - writing to the local
+file system (output.sink=local)
+  java com.pralay.LoadHDFS.EndToEndBenchmark [-records 5000000] [-config <properties>] [-settings <distributions>] ...
+A corpus of -frames distinct frames is generated up front by the FrameGenerator and replayed until -records records
+are fed, so the generator does not hold up the loader. The topic is configured like the loader by the -config file -
+output.sink and output.hdfs.directory are always local and the run directory - and input.adapter.<topic>.consumers consumer
+threads are started - each with its own MockConsumer, fed the partitions p with p % consumers = consumer index by its
+own feeder thread. At most -pending records per consumer are fed but not polled yet
+Reported every -interval seconds and at the end: records/s and MB/s of frames processed, heap used. The sustained rate is
+taken from the end of the -warmup seconds until every record was polled and processed - with a pipeline, handed to it -
+the total rate up to the last file moved.
+At the end: the close time (close, footer, rename) of the files - p50, p99 and max - the records written, the bytes of
+the output files, the peak heap used and the GC time, and the sustained MB/s against the -target
+A consumer thread that stops before every record was processed fails the run, with exit code 1
+The run directory below -out is removed afterwards unless -keep is set
+ */
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class EndToEndBenchmark {
+    private static final double MB = 1024.0 * 1024.0;
+
+    static class Options {
+        @Option(name = "-schemas", usage = "directory of the event schemas. I.e -schemas Schemas")
+        String schemaDir = "Schemas";
+
+        @Option(name = "-settings", usage = "properties file of the value distributions, see FrameGenerator")
+        String settingsFile = null;
+
+        @Option(name = "-config", usage = "loader properties for the topic, I.e input.adapter.bench.pipeline.decoders")
+        String configFile = null;
+
+        @Option(name = "-topic", usage = "topic name the consumers are configured with")
+        String topic = "bench";
+
+        @Option(name = "-partitions", usage = "number of partitions of the topic")
+        int numPartitions = 12;
+
+        @Option(name = "-skew", usage = "zipf exponent of the partition skew, 0 for all partitions alike")
+        double partitionSkew = 0.0;
+
+        @Option(name = "-malformed", usage = "ratio of malformed frames, I.e -malformed 0.001")
+        double malformedRatio = 0.0;
+
+        @Option(name = "-records", usage = "number of records to feed")
+        long numRecords = 5000000L;
+
+        @Option(name = "-frames", usage = "number of distinct frames generated and replayed")
+        int numFrames = 100000;
+
+        @Option(name = "-pending", usage = "records per consumer fed but not polled yet at most")
+        long maxPending = 100000L;
+
+        @Option(name = "-warmup", usage = "seconds at the start not counted in the sustained rate")
+        int warmupSeconds = 10;
+
+        @Option(name = "-interval", usage = "seconds between reports")
+        int intervalSeconds = 5;
+
+        @Option(name = "-target", usage = "MB/s of frames to hold the sustained rate against")
+        double targetMbPerSecond = 350.0;
+
+        @Option(name = "-seed", usage = "seed of the random values")
+        long seed = 42L;
+
+        @Option(name = "-out", usage = "directory of the run directories")
+        String outDir = System.getProperty("java.io.tmpdir") + File.separator + "EndToEndBenchmark";
+
+        @Option(name = "-keep", usage = "keep the files written")
+        boolean keep = false;
+    }
+
+    /**
+     * Frames a consumer is fed, replayed in order
+     */
+    private static final class Feed {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final List<Integer> partitions = new ArrayList<Integer>();
+        final Set<Integer> assigned = new TreeSet<Integer>();
+        long bytes;
+        long numRecords;
+        LoadGenerator.MockConsumerTarget target;
+
+        double avgFrameBytes() {
+            return frames.isEmpty() ? 0.0 : (double) bytes / frames.size();
+        }
+    }
+
+    /**
+     * Collects the close times of the files
+     */
+    private static final class CloseTimes implements HDFSBatchWriter.CloseListener {
+        private final String topicName;
+        private long[] nanos = new long[1024];
+        private int numFiles;
+        final AtomicLong recordsWritten = new AtomicLong();
+
+        CloseTimes(String topicName) {
+            this.topicName = topicName;
+        }
+
+        public void fileClosed(String topicName, String fileName, long numRecords, long closeNanos) {
+            if (!this.topicName.equals(topicName)) {
+                return;
+            }
+            recordsWritten.addAndGet(numRecords);
+            synchronized (this) {
+                if (numFiles == nanos.length) {
+                    nanos = Arrays.copyOf(nanos, numFiles * 2);
+                }
+                nanos[numFiles++] = closeNanos;
+            }
+        }
+
+        synchronized int numFiles() {
+            return numFiles;
+        }
+
+        /**
+         * @return the close time in ms below which the share p of the closes took
+         */
+        synchronized double percentileMs(double p) {
+            if (numFiles == 0) {
+                return 0.0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, numFiles);
+            Arrays.sort(sorted);
+            int idx = Math.min(numFiles - 1, Math.max(0, (int) Math.ceil(p * numFiles) - 1));
+            return sorted[idx] / 1000000.0;
+        }
+    }
+
+    private final Options options;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private long peakHeapUsed;
+
+    EndToEndBenchmark(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.out.println("invalid arguments:" + e.getMessage());
+            parser.printUsage(System.out);
+            System.exit(-1);
+        }
+        IngestBenchmark.quietParquetLog();
+        boolean reached = new EndToEndBenchmark(options).run();
+        System.exit(reached ? 0 : 1);
+    }
+
+    /**
+     * @return true if the sustained rate reached the target, false as well if a consumer thread stopped early
+     */
+    boolean run() throws Exception {
+        List<FrameBuilder.EventSchema> events = FrameBuilder.loadSchemas(new File(options.schemaDir));
+        if (events.isEmpty()) {
+            throw new IOException("No schemas in " + options.schemaDir);
+        }
+        for (FrameBuilder.EventSchema event : events) {
+            KafkaToLoadHdfs.schemaRegistry.put(event.key(), event.schema);
+        }
+        File runDir = new File(options.outDir, new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()));
+        Properties props = new Properties();
+        if (options.configFile != null) {
+            load(props, options.configFile);
+        }
+        props.setProperty("output.sink", "local");
+        props.setProperty("output.hdfs.directory", runDir.getAbsolutePath());
+        KafkaToLoadHdfs.config = new SimpleConfig(props);
+        String topic = options.topic;
+        int numConsumers = Math.max(1, KafkaToLoadHdfs.config.getTopicNumConsumers(topic));
+
+        Feed[] feeds = generate(events, numConsumers);
+        System.out.println("Events: " + events + " - " + options.numFrames + " frames, " + options.numPartitions
+                + " partitions, skew " + options.partitionSkew + ", malformed " + options.malformedRatio);
+        System.out.println("Topic " + topic + ": " + numConsumers + " consumers, " + options.numRecords + " records to "
+                + runDir + (options.configFile != null ? ", config " + options.configFile : ""));
+        System.out.println("JVM: " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", max heap " + Math.round(memory.getHeapMemoryUsage().getMax() / MB) + " MB");
+
+        CloseTimes closeTimes = new CloseTimes(topic);
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        List<AdapterConsumerThread> consumers = new ArrayList<AdapterConsumerThread>();
+        List<Thread> feeders = new ArrayList<Thread>();
+        long start = System.currentTimeMillis();
+        try {
+            for (int c = 0; c < numConsumers; c++) {
+                LoadGenerator.FeedableMockConsumer<String, byte[]> consumer
+                        = new LoadGenerator.FeedableMockConsumer<String, byte[]>(OffsetResetStrategy.EARLIEST);
+                feeds[c].target = new LoadGenerator.MockConsumerTarget(consumer, topic, feeds[c].assigned, options.maxPending);
+                AdapterConsumerThread consumerT = new AdapterConsumerThread(topic, c);
+                consumerT.setConsumer((Consumer) consumer);
+                consumerT.setCloseListener(closeTimes);
+                consumers.add(consumerT);
+                consumerT.start();
+            }
+            for (int c = 0; c < numConsumers; c++) {
+                feeders.add(startFeeder(topic, c, feeds[c]));
+            }
+
+            //processed records and ms since start at the end of the warm up and once everything was processed
+            long warmupRecords = -1L;
+            long warmupMillis = 0L;
+            long lastProcessed = 0L;
+            long lastTime = start;
+            long drainedMillis;
+            long processed;
+            double[] processedBytes = new double[1];
+            while (true) {
+                long nextReport = lastTime + options.intervalSeconds * 1000L;
+                boolean drained = false;
+                AdapterConsumerThread stopped = null;
+                while (System.currentTimeMillis() < nextReport && (stopped = stoppedConsumer(consumers)) == null
+                        && !(drained = drained(feeds, feeders, consumers))) {
+                    sampleHeap();
+                    Thread.sleep(100L);
+                }
+                if (stopped != null) {
+                    //its MockConsumer is closed - nothing is polled from its partitions any more
+                    System.out.println("FAILED: " + stopped.getName() + " stopped before every record was processed - see the log");
+                    stopConsumers(consumers);
+                    return false;
+                }
+                long now = System.currentTimeMillis();
+                processed = processed(feeds, consumers, processedBytes);
+                if (warmupRecords < 0L && now - start >= options.warmupSeconds * 1000L) {
+                    warmupRecords = processed;
+                    warmupMillis = now - start;
+                }
+                report(String.format("%6.1fs: ", (now - start) / 1000.0), processed - lastProcessed,
+                        processedBytes[0] * (processed - lastProcessed) / Math.max(1L, processed), now - lastTime);
+                lastProcessed = processed;
+                lastTime = now;
+                if (drained) {
+                    drainedMillis = now - start;
+                    break;
+                }
+            }
+            stopConsumers(consumers);
+            long totalMillis = System.currentTimeMillis() - start;
+            sampleHeap();
+
+            //the consumers are closed - everything was processed once drained
+            double bytesPerRecord = processedBytes[0] / Math.max(1L, processed);
+            System.out.println();
+            report("Total:     ", processed, processedBytes[0], totalMillis);
+            double sustainedMbPerSecond;
+            if (warmupRecords >= 0L && drainedMillis > warmupMillis) {
+                sustainedMbPerSecond = report("Sustained: ", processed - warmupRecords,
+                        bytesPerRecord * (processed - warmupRecords), drainedMillis - warmupMillis);
+            } else {
+                System.out.println("Sustained: run shorter than the warm up of " + options.warmupSeconds + "s - taken over the whole run");
+                sustainedMbPerSecond = processedBytes[0] / MB / (Math.max(1L, totalMillis) / 1000.0);
+            }
+            long outputBytes = size(runDir);
+            System.out.println(String.format("Files: %d closed, close time p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    closeTimes.numFiles(), closeTimes.percentileMs(0.5), closeTimes.percentileMs(0.99), closeTimes.percentileMs(1.0)));
+            System.out.println(String.format("Records: %d processed, %d written, %d dropped - output %.1f MB, %.2f of the frame bytes",
+                    processed, closeTimes.recordsWritten.get(), processed - closeTimes.recordsWritten.get(), outputBytes / MB,
+                    outputBytes / Math.max(1.0, processedBytes[0])));
+            System.out.println(String.format("Heap: peak used %.0f MB of %.0f MB, %d GCs taking %d ms",
+                    peakHeapUsed / MB, memory.getHeapMemoryUsage().getMax() / MB, gcCount() - gcCount, gcMillis() - gcMillis));
+            boolean reached = sustainedMbPerSecond >= options.targetMbPerSecond;
+            System.out.println(String.format("Target %.0f MB/s: %s - sustained %.1f MB/s, %.0f%% of the target",
+                    options.targetMbPerSecond, reached ? "reached" : "NOT reached", sustainedMbPerSecond,
+                    sustainedMbPerSecond * 100.0 / options.targetMbPerSecond));
+            return reached;
+        } finally {
+            for (AdapterConsumerThread consumerT : consumers) {
+                consumerT.stopRunning();
+            }
+            if (!options.keep) {
+                delete(runDir);
+            }
+        }
+    }
+
+    /**
+     * Generates the frames and splits them by the consumer their partition is assigned to, with the share of the records
+     * each consumer is fed
+     */
+    private Feed[] generate(List<FrameBuilder.EventSchema> events, int numConsumers) throws IOException {
+        Properties settings = new Properties();
+        if (options.settingsFile != null) {
+            load(settings, options.settingsFile);
+        }
+        FrameGenerator generator = new FrameGenerator(events, settings, options.numPartitions, options.partitionSkew,
+                options.malformedRatio, options.seed);
+        Feed[] feeds = new Feed[numConsumers];
+        for (int c = 0; c < numConsumers; c++) {
+            feeds[c] = new Feed();
+        }
+        for (int p = 0; p < options.numPartitions; p++) {
+            feeds[p % numConsumers].assigned.add(p);
+        }
+        for (int i = 0; i < options.numFrames; i++) {
+            byte[] frame = generator.next();
+            Feed feed = feeds[generator.partition % numConsumers];
+            feed.frames.add(frame);
+            feed.partitions.add(generator.partition);
+            feed.bytes += frame.length;
+        }
+        long remaining = options.numRecords;
+        for (int c = 0; c < numConsumers; c++) {
+            feeds[c].numRecords = c == numConsumers - 1 ? remaining
+                    : Math.round((double) options.numRecords * feeds[c].frames.size() / options.numFrames);
+            remaining -= feeds[c].numRecords;
+        }
+        return feeds;
+    }
+
+    private Thread startFeeder(final String topic, int consumerIndex, final Feed feed) {
+        Thread t = new Thread("EndToEndBenchmark::Feeder::" + consumerIndex) {
+            public void run() {
+                int numFrames = feed.frames.size();
+                try {
+                    for (long i = 0L; i < feed.numRecords && numFrames > 0; i++) {
+                        int idx = (int) (i % numFrames);
+                        feed.target.send(topic, feed.partitions.get(idx), null, feed.frames.get(idx));
+                    }
+                } catch (Exception e) {
+                    System.out.println(getName() + " stopped: " + e);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void stopConsumers(List<AdapterConsumerThread> consumers) throws InterruptedException {
+        for (AdapterConsumerThread consumerT : consumers) {
+            consumerT.stopRunning();
+        }
+        for (AdapterConsumerThread consumerT : consumers) {
+            consumerT.join();
+        }
+    }
+
+    /**
+     * @return a consumer thread that is no longer running, null if all are
+     */
+    private static AdapterConsumerThread stoppedConsumer(List<AdapterConsumerThread> consumers) {
+        for (AdapterConsumerThread consumerT : consumers) {
+            if (!consumerT.isAlive()) {
+                return consumerT;
+            }
+        }
+        return null;
+    }
+
+    //all records fed, polled and processed - the consumer threads are only stopped then, as they drop what they hold
+    private static boolean drained(Feed[] feeds, List<Thread> feeders, List<AdapterConsumerThread> consumers) {
+        for (Thread t : feeders) {
+            if (t.isAlive()) {
+                return false;
+            }
+        }
+        for (int c = 0; c < feeds.length; c++) {
+            if (consumers.get(c).recordsProcessed() < feeds[c].target.sent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param bytes set to the frame bytes processed, from the average frame size of each consumer
+     * @return the records processed by the consumer threads
+     */
+    private static long processed(Feed[] feeds, List<AdapterConsumerThread> consumers, double[] bytes) {
+        long processed = 0L;
+        bytes[0] = 0.0;
+        for (int c = 0; c < feeds.length; c++) {
+            long consumerProcessed = consumers.get(c).recordsProcessed();
+            processed += consumerProcessed;
+            bytes[0] += consumerProcessed * feeds[c].avgFrameBytes();
+        }
+        return processed;
+    }
+
+    private void sampleHeap() {
+        peakHeapUsed = Math.max(peakHeapUsed, memory.getHeapMemoryUsage().getUsed());
+    }
+
+    /**
+     * @return the MB/s
+     */
+    private double report(String prefix, long numRecords, double numBytes, long millis) {
+        double seconds = Math.max(1L, millis) / 1000.0;
+        double mbPerSecond = numBytes / MB / seconds;
+        System.out.println(String.format("%s%d records, %.1f MB in %.1fs: %.0f records/s, %.1f MB/s, heap used %.0f MB",
+                prefix, numRecords, numBytes / MB, seconds, numRecords / seconds, mbPerSecond,
+                memory.getHeapMemoryUsage().getUsed() / MB));
+        return mbPerSecond;
+    }
+
+    private static long gcCount() {
+        long count = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0L, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static void load(Properties props, String fileName) throws IOException {
+        InputStream is = new FileInputStream(new File(fileName));
+        try {
+            props.load(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static long size(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.isFile() ? file.length() : 0L;
+        }
+        long size = 0L;
+        for (File child : children) {
+            size += size(child);
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,213 @@
+package com.pralay.LoadHDFS;
+
+/*
+Builds frames the way the adapters publish them - see FrameDecoder for the layout - for the benchmarks and the load
+generator, so that they run on the same bytes the consumers read
+The event schemas are read from a local copy of the Schemas directory: Schemas/<EVENT_TYPE>_<EVENT_ID>/<EVENT_VERSION>/<file>.json
+Not thread safe - the encoder and the buffer are reused for every frame
+ */
+
+import com.pralay.HEADER;
+import com.pralay.LoadHDFS.kafka.InitTopic;
+import com.pralay.SessionTestRecord;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.util.Utf8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class FrameBuilder {
+    public static final byte DEFAULT_VERSION = 1;
+    public static final byte DEFAULT_TYPE = 2;
+    public static final byte DEFAULT_FORMAT = 0;
+    private static final String KEY_PREFIX = (InitTopic.DEST_PREFIX + InitTopic.ZK_SCHEMA_NODE + "/").toUpperCase();
+
+    /**
+     * Schema of an event as found in the Schemas directory
+     */
+    public static final class EventSchema {
+        public final String eventType;
+        public final int eventId;
+        public final String eventVersion;
+        public final Schema schema;
+
+        EventSchema(String eventType, int eventId, String eventVersion, Schema schema) {
+            this.eventType = eventType;
+            this.eventId = eventId;
+            this.eventVersion = eventVersion;
+            this.schema = schema;
+        }
+
+        /**
+         * @return the key of the schema in the SchemaRegistry
+         */
+        public String key() {
+            return (KEY_PREFIX + eventType + "_" + eventId + "/" + eventVersion).toUpperCase();
+        }
+
+        public String toString() {
+            return eventType + "_" + eventId + "/" + eventVersion;
+        }
+    }
+
+    byte version = DEFAULT_VERSION;
+    byte type = DEFAULT_TYPE;
+    byte format = DEFAULT_FORMAT;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+    private final SpecificDatumWriter<HEADER> headerWriter = new SpecificDatumWriter<HEADER>(HEADER.SCHEMA$);
+    private final SpecificDatumWriter<SessionTestRecord> sessionWriter = new SpecificDatumWriter<SessionTestRecord>(SessionTestRecord.SCHEMA$);
+    private final Map<Schema, GenericDatumWriter<Object>> payloadWriters = new HashMap<Schema, GenericDatumWriter<Object>>();
+    private final byte[] gap = new byte[FrameDecoder.SESSION_RECORD_GAP];
+    private BinaryEncoder encoder;
+
+    /**
+     * @param payload record of schema, written with the GenericDatumWriter
+     * @return the frame - a new array on every call
+     */
+    public byte[] build(HEADER header, Schema schema, Object payload, SessionTestRecord session) throws IOException {
+        out.reset();
+        out.write(version);
+        out.write(type);
+        //length is filled in once the payload is written
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(format);
+        encoder = EncoderFactory.get().binaryEncoder(out, encoder);
+        headerWriter.write(header, encoder);
+        GenericDatumWriter<Object> payloadWriter = payloadWriters.get(schema);
+        if (payloadWriter == null) {
+            payloadWriter = new GenericDatumWriter<Object>(schema);
+            payloadWriters.put(schema, payloadWriter);
+        }
+        payloadWriter.write(payload, encoder);
+        encoder.flush();
+        //Raw event record length includes the format byte
+        int length = out.size() - FrameDecoder.FORMAT_OFFSET;
+        out.write(gap);
+        sessionWriter.write(session, encoder);
+        encoder.flush();
+        byte[] frame = out.toByteArray();
+        frame[FrameDecoder.LENGTH_OFFSET] = (byte) (length >>> 24);
+        frame[FrameDecoder.LENGTH_OFFSET + 1] = (byte) (length >>> 16);
+        frame[FrameDecoder.LENGTH_OFFSET + 2] = (byte) (length >>> 8);
+        frame[FrameDecoder.LENGTH_OFFSET + 3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * @return the schemas below the Schemas directory, ordered by event type, id and version
+     */
+    public static List<EventSchema> loadSchemas(File schemaDir) throws IOException {
+        List<EventSchema> schemas = new ArrayList<EventSchema>();
+        File[] typeDirs = schemaDir.listFiles();
+        if (typeDirs == null) {
+            throw new IOException("No schema directory " + schemaDir);
+        }
+        Arrays.sort(typeDirs);
+        for (File typeDir : typeDirs) {
+            int idIdx = typeDir.getName().lastIndexOf('_');
+            File[] versionDirs = typeDir.listFiles();
+            if (idIdx <= 0 || versionDirs == null) {
+                continue;
+            }
+            Arrays.sort(versionDirs);
+            for (File versionDir : versionDirs) {
+                File[] files = versionDir.listFiles();
+                if (files == null || files.length == 0) {
+                    continue;
+                }
+                Arrays.sort(files);
+                schemas.add(new EventSchema(typeDir.getName().substring(0, idIdx),
+                        Integer.parseInt(typeDir.getName().substring(idIdx + 1)), versionDir.getName(),
+                        new Schema.Parser().parse(files[0])));
+            }
+        }
+        return schemas;
+    }
+
+    /**
+     * @return a record of the schema with random values - optional fields are null one time in ten
+     */
+    public static Object randomValue(Schema schema, Random random) {
+        switch (schema.getType()) {
+            case RECORD:
+                GenericData.Record record = new GenericData.Record(schema);
+                for (Schema.Field field : schema.getFields()) {
+                    record.put(field.pos(), randomValue(field.schema(), random));
+                }
+                return record;
+            case UNION:
+                List<Schema> branches = schema.getTypes();
+                Schema branch = branches.get(random.nextInt(branches.size()));
+                if (branch.getType() == Schema.Type.NULL && random.nextInt(10) != 0) {
+                    //mostly set
+                    for (Schema other : branches) {
+                        if (other.getType() != Schema.Type.NULL) {
+                            branch = other;
+                            break;
+                        }
+                    }
+                } else if (branch.getType() != Schema.Type.NULL && random.nextInt(10) == 0) {
+                    branch = Schema.create(Schema.Type.NULL);
+                }
+                return randomValue(branch, random);
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return random.nextBoolean();
+            case INT:
+                return random.nextInt(100000);
+            case LONG:
+                return random.nextLong() & Long.MAX_VALUE;
+            case FLOAT:
+                return random.nextFloat();
+            case DOUBLE:
+                return random.nextDouble();
+            case STRING:
+                return new Utf8(randomString(random, 8 + random.nextInt(17)));
+            case BYTES:
+                byte[] bytes = new byte[8 + random.nextInt(17)];
+                random.nextBytes(bytes);
+                return ByteBuffer.wrap(bytes);
+            case FIXED:
+                byte[] fixed = new byte[schema.getFixedSize()];
+                random.nextBytes(fixed);
+                return new GenericData.Fixed(schema, fixed);
+            case ENUM:
+                return new GenericData.EnumSymbol(schema, schema.getEnumSymbols().get(random.nextInt(schema.getEnumSymbols().size())));
+            case ARRAY:
+                List<Object> items = new ArrayList<Object>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    items.add(randomValue(schema.getElementType(), random));
+                }
+                return items;
+            case MAP:
+                Map<Utf8, Object> entries = new HashMap<Utf8, Object>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    entries.put(new Utf8(randomString(random, 6)), randomValue(schema.getValueType(), random));
+                }
+                return entries;
+            default:
+                throw new IllegalArgumentException("Unsupported type " + schema.getType());
+        }
+    }
+
+    static String randomString(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            int c = random.nextInt(36);
+            chars[i] = (char) (c < 10 ? '0' + c : 'a' + c - 10);
+        }
+        return new String(chars);
+    }
+}
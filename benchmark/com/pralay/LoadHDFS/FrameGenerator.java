@@ -0,0 +1,367 @@
+package com.pralay.LoadHDFS;
+
+/*
+Generates frames of the event schemas with the field values drawn from configurable distributions - the traffic of the
+LoadGenerator and the in-process benchmarks
+Settings, all optional:
+ - event.weight.<EVENT_TYPE>=<weight>: share of the events of a type, 1 by default
+ - field.<EVENT_TYPE>.<field>=<distribution>, field.*.<field>=<distribution>: values of a payload field - fields without
+   a distribution get random values, optional ones are null one time in ten
+ - header.key, session.imsi, session.timestamp, session.duration=<distribution>: HEADER.KEY and SessionTestRecord fields
+Distributions:
+ - uniform:<min>:<max>, normal:<mean>:<stddev>, exponential:<mean>
+ - zipf:<n>:<exponent>: 1..n, 1 the most frequent - n up to 10000000
+ - sequence:<start>: start, start + 1, ...
+ - now:<max jitter ms>: the current time in ms, up to the jitter in the past
+ - constant:<value>, choice:<value>|<value>|..., string:<min length>:<max length>
+ - followed by @<ratio> for the ratio of nulls of an optional field, i.e. zipf:1000:1.1@0.05
+Numbers are converted to the type of the field: enum symbols by index, strings as the number. Text values are parsed
+for numeric fields
+Partitions are picked from a zipf distribution of the partition skew exponent - 0 for all partitions alike, the higher
+the more records go to the first partitions
+A share of the frames can be malformed (malformedRatio): truncated, with a length beyond the frame, of an unknown schema
+version or with a corrupted payload
+Not thread safe - one generator per producing thread
+ */
+
+import com.pralay.HEADER;
+import com.pralay.SessionTestRecord;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.util.Utf8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class FrameGenerator {
+    public enum Malformation {
+        TRUNCATED,
+        BAD_LENGTH,
+        UNKNOWN_SCHEMA,
+        CORRUPT_PAYLOAD
+    }
+
+    /**
+     * A value distribution of the settings
+     */
+    static final class ValueDistribution {
+        enum Kind {
+            UNIFORM, NORMAL, EXPONENTIAL, ZIPF, SEQUENCE, NOW, CONSTANT, CHOICE, STRING
+        }
+
+        private static final int MAX_ZIPF_N = 10000000;
+
+        final Kind kind;
+        final double a;
+        final double b;
+        final String[] choices;
+        //ratio of nulls for optional fields, -1 if not set
+        final double nullRatio;
+        private final double[] zipfCdf;
+        private long sequence;
+
+        private ValueDistribution(Kind kind, double a, double b, String[] choices, double nullRatio) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.choices = choices;
+            this.nullRatio = nullRatio;
+            this.zipfCdf = kind == Kind.ZIPF ? zipfCdf((int) a, b) : null;
+            this.sequence = (long) a;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the distribution is not valid
+         */
+        static ValueDistribution parse(String spec) {
+            String s = spec.trim();
+            double nullRatio = -1.0;
+            int nullIdx = s.lastIndexOf('@');
+            if (nullIdx > 0) {
+                nullRatio = Double.parseDouble(s.substring(nullIdx + 1).trim());
+                s = s.substring(0, nullIdx);
+            }
+            int kindIdx = s.indexOf(':');
+            String kindName = (kindIdx < 0 ? s : s.substring(0, kindIdx)).trim().toUpperCase();
+            String args = kindIdx < 0 ? "" : s.substring(kindIdx + 1);
+            Kind kind;
+            try {
+                kind = Kind.valueOf(kindName);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown distribution " + spec);
+            }
+            try {
+                switch (kind) {
+                    case CONSTANT:
+                        return new ValueDistribution(kind, 0.0, 0.0, new String[]{args}, nullRatio);
+                    case CHOICE:
+                        return new ValueDistribution(kind, 0.0, 0.0, args.split("\\|"), nullRatio);
+                    case EXPONENTIAL:
+                    case SEQUENCE:
+                    case NOW:
+                        return new ValueDistribution(kind, Double.parseDouble(args.trim()), 0.0, null, nullRatio);
+                    default:
+                        String[] parts = args.split(":");
+                        ValueDistribution dist = new ValueDistribution(kind, Double.parseDouble(parts[0].trim()),
+                                Double.parseDouble(parts[1].trim()), null, nullRatio);
+                        if (kind == Kind.ZIPF && (dist.a < 1.0 || dist.a > MAX_ZIPF_N)) {
+                            throw new IllegalArgumentException("zipf n must be 1.." + MAX_ZIPF_N + ": " + spec);
+                        }
+                        return dist;
+                }
+            } catch (RuntimeException e) {
+                if (e instanceof IllegalArgumentException && !(e instanceof NumberFormatException)) {
+                    throw e;
+                }
+                throw new IllegalArgumentException("Invalid distribution " + spec + ": " + e);
+            }
+        }
+
+        boolean isText() {
+            return kind == Kind.CONSTANT || kind == Kind.CHOICE || kind == Kind.STRING;
+        }
+
+        double nextNumber(Random random) {
+            switch (kind) {
+                case UNIFORM:
+                    return a + random.nextDouble() * (b - a);
+                case NORMAL:
+                    return a + random.nextGaussian() * b;
+                case EXPONENTIAL:
+                    return -a * Math.log(1.0 - random.nextDouble());
+                case ZIPF:
+                    return zipf(zipfCdf, random) + 1;
+                case SEQUENCE:
+                    return sequence++;
+                case NOW:
+                    return System.currentTimeMillis() - (a > 0.0 ? (long) (random.nextDouble() * a) : 0L);
+                default:
+                    return Double.parseDouble(nextText(random));
+            }
+        }
+
+        String nextText(Random random) {
+            switch (kind) {
+                case CONSTANT:
+                    return choices[0];
+                case CHOICE:
+                    return choices[random.nextInt(choices.length)];
+                case STRING:
+                    return FrameBuilder.randomString(random, (int) a + random.nextInt(Math.max(1, (int) b - (int) a + 1)));
+                default:
+                    double value = nextNumber(random);
+                    return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+            }
+        }
+
+        long nextLong(Random random) {
+            return isText() ? Long.parseLong(nextText(random).trim()) : (long) nextNumber(random);
+        }
+
+        /**
+         * @param schema a type other than union
+         */
+        Object next(Schema schema, Random random) {
+            switch (schema.getType()) {
+                case NULL:
+                    return null;
+                case BOOLEAN:
+                    return isText() ? Boolean.parseBoolean(nextText(random).trim()) : nextNumber(random) != 0.0;
+                case INT:
+                    return (int) nextLong(random);
+                case LONG:
+                    return nextLong(random);
+                case FLOAT:
+                    return isText() ? Float.parseFloat(nextText(random).trim()) : (float) nextNumber(random);
+                case DOUBLE:
+                    return isText() ? Double.parseDouble(nextText(random).trim()) : nextNumber(random);
+                case STRING:
+                    return new Utf8(nextText(random));
+                case BYTES:
+                    return ByteBuffer.wrap(nextText(random).getBytes(StandardCharsets.UTF_8));
+                case ENUM:
+                    List<String> symbols = schema.getEnumSymbols();
+                    if (isText()) {
+                        return new GenericData.EnumSymbol(schema, nextText(random));
+                    }
+                    int idx = (int) (Math.abs(nextLong(random)) % symbols.size());
+                    return new GenericData.EnumSymbol(schema, symbols.get(idx));
+                default:
+                    //records, arrays, maps and fixed get random values
+                    return FrameBuilder.randomValue(schema, random);
+            }
+        }
+
+        private static double[] zipfCdf(int n, double exponent) {
+            double[] cdf = new double[n];
+            double sum = 0.0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / Math.pow(i + 1, exponent);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= sum;
+            }
+            return cdf;
+        }
+
+        //index 0..n-1
+        static int zipf(double[] cdf, Random random) {
+            int idx = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(idx < 0 ? -idx - 1 : idx, cdf.length - 1);
+        }
+    }
+
+    private final List<FrameBuilder.EventSchema> events;
+    private final double[] eventCdf;
+    //distribution of each payload field per event, null for random values
+    private final ValueDistribution[][] fieldDistributions;
+    private final ValueDistribution headerKey;
+    private final ValueDistribution imsi;
+    private final ValueDistribution timestamp;
+    private final ValueDistribution duration;
+    private final int numPartitions;
+    //null if all partitions are alike
+    private final double[] partitionCdf;
+    private final double malformedRatio;
+    private final Random random;
+    private final FrameBuilder builder = new FrameBuilder();
+    private final HEADER header = new HEADER();
+    private final SessionTestRecord session = new SessionTestRecord();
+
+    //Results of the last next()
+    FrameBuilder.EventSchema event;
+    int partition;
+    //null if the frame is valid
+    Malformation malformation;
+
+    /**
+     * @param settings the distributions - see above
+     * @throws IllegalArgumentException if a distribution is not valid
+     */
+    public FrameGenerator(List<FrameBuilder.EventSchema> events, Properties settings, int numPartitions,
+                          double partitionSkew, double malformedRatio, long seed) {
+        this.events = events;
+        this.numPartitions = Math.max(1, numPartitions);
+        this.partitionCdf = partitionSkew > 0.0 ? ValueDistribution.zipfCdf(this.numPartitions, partitionSkew) : null;
+        this.malformedRatio = malformedRatio;
+        this.random = new Random(seed);
+        double[] weights = new double[events.size()];
+        double totalWeight = 0.0;
+        fieldDistributions = new ValueDistribution[events.size()][];
+        for (int i = 0; i < weights.length; i++) {
+            FrameBuilder.EventSchema eventSchema = events.get(i);
+            weights[i] = Double.parseDouble(settings.getProperty("event.weight." + eventSchema.eventType, "1"));
+            totalWeight += weights[i];
+            List<Schema.Field> fields = eventSchema.schema.getFields();
+            fieldDistributions[i] = new ValueDistribution[fields.size()];
+            for (Schema.Field field : fields) {
+                String spec = settings.getProperty("field." + eventSchema.eventType + "." + field.name(),
+                        settings.getProperty("field.*." + field.name()));
+                if (spec != null) {
+                    fieldDistributions[i][field.pos()] = ValueDistribution.parse(spec);
+                }
+            }
+        }
+        eventCdf = new double[weights.length];
+        double sum = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            eventCdf[i] = sum / totalWeight;
+        }
+        headerKey = ValueDistribution.parse(settings.getProperty("header.key", "uniform:0:9000000000000000000"));
+        imsi = ValueDistribution.parse(settings.getProperty("session.imsi", "uniform:240000000000000:240000001000000"));
+        timestamp = ValueDistribution.parse(settings.getProperty("session.timestamp", "now:0"));
+        duration = ValueDistribution.parse(settings.getProperty("session.duration", "exponential:5000"));
+        session.result = "OK";
+    }
+
+    /**
+     * Generates the next frame - the partition, event type and malformation of it are kept until the next call
+     * @return a new array
+     */
+    public byte[] next() throws IOException {
+        int eventIdx = events.size() == 1 ? 0 : ValueDistribution.zipf(eventCdf, random);
+        event = events.get(eventIdx);
+        partition = partitionCdf != null ? ValueDistribution.zipf(partitionCdf, random) : random.nextInt(numPartitions);
+        malformation = malformedRatio > 0.0 && random.nextDouble() < malformedRatio
+                ? Malformation.values()[random.nextInt(Malformation.values().length)] : null;
+
+        header.EVENT_ID = event.eventId;
+        header.EVENT_TYPE = event.eventType;
+        //a version the schemas do not have
+        header.EVENT_VERSION = malformation == Malformation.UNKNOWN_SCHEMA ? event.eventVersion + "_999" : event.eventVersion;
+        header.KEY = headerKey.nextLong(random);
+        session.eventName = event.eventType;
+        session.imsi = imsi.nextLong(random);
+        session.timestamp = timestamp.nextLong(random);
+        session.duration = duration.nextLong(random);
+        byte[] frame = builder.build(header, event.schema, payload(event.schema, fieldDistributions[eventIdx]), session);
+        if (malformation != null) {
+            frame = malform(frame, malformation);
+        }
+        return frame;
+    }
+
+    /**
+     * @return the HEADER.KEY of the last frame
+     */
+    public long key() {
+        return header.KEY;
+    }
+
+    private GenericData.Record payload(Schema schema, ValueDistribution[] distributions) {
+        GenericData.Record record = new GenericData.Record(schema);
+        for (Schema.Field field : schema.getFields()) {
+            ValueDistribution dist = distributions[field.pos()];
+            Schema fieldSchema = field.schema();
+            if (dist == null) {
+                record.put(field.pos(), FrameBuilder.randomValue(fieldSchema, random));
+                continue;
+            }
+            if (fieldSchema.getType() == Schema.Type.UNION) {
+                Schema valueSchema = null;
+                boolean nullable = false;
+                for (Schema branch : fieldSchema.getTypes()) {
+                    if (branch.getType() == Schema.Type.NULL) {
+                        nullable = true;
+                    } else if (valueSchema == null) {
+                        valueSchema = branch;
+                    }
+                }
+                if (valueSchema == null || (nullable && random.nextDouble() < (dist.nullRatio >= 0.0 ? dist.nullRatio : 0.0))) {
+                    record.put(field.pos(), null);
+                } else {
+                    record.put(field.pos(), dist.next(valueSchema, random));
+                }
+            } else {
+                record.put(field.pos(), dist.next(fieldSchema, random));
+            }
+        }
+        return record;
+    }
+
+    private byte[] malform(byte[] frame, Malformation malformation) {
+        switch (malformation) {
+            case TRUNCATED:
+                return Arrays.copyOf(frame, 1 + random.nextInt(frame.length - 1));
+            case BAD_LENGTH:
+                int length = frame.length;
+                frame[FrameDecoder.LENGTH_OFFSET] = (byte) (length >>> 24);
+                frame[FrameDecoder.LENGTH_OFFSET + 1] = (byte) (length >>> 16);
+                frame[FrameDecoder.LENGTH_OFFSET + 2] = (byte) (length >>> 8);
+                frame[FrameDecoder.LENGTH_OFFSET + 3] = (byte) length;
+                return frame;
+            case CORRUPT_PAYLOAD:
+                //anywhere after the format byte - HEADER, payload, gap or session record
+                for (int i = 0; i < 4; i++) {
+                    frame[FrameDecoder.RECORD_OFFSET + random.nextInt(frame.length - FrameDecoder.RECORD_OFFSET)] = (byte) 0xff;
+                }
+                return frame;
+            default:
+                return frame;
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.pralay.LoadHDFS;
+
+/*
+Micro benchmarks of the steps AdapterConsumerThread runs for every record:
+ - frame.prefix: version, type, length and format bytes
+ - frame.header: HEADER decode
+ - payload.<event>: payload decode for each schema of the Schemas directory, payload.validate.<event> for the schemas
+   written directly from their binary Avro encoding (input.adapter.<topic>.parquet.direct.write)
+ - frame.session: SessionTestRecord decode
+ - schema.lookup: SchemaLookup.get() of the decoded HEADER
+ - frame.decode: all of the above, as FrameDecoder.decode() runs them
+ - parquet.write.<codec>.<event> / parquet.direct.<codec>.<event>: ParquetWriter.write() of a decoded / binary payload,
+   to a file on the local disk, for each codec
+Runs without any services: java com.pralay.LoadHDFS.IngestBenchmark [-schemas Schemas] [-filter <regex>] ...
+Every operation is warmed up and then measured in a number of timed iterations on the main thread. Reported per operation:
+throughput (ops/s with the min and max of the iterations), ns/op, MB/s of frames - the frame bytes per second the step
+alone keeps up with, to hold against the 350 MB/s target - and the bytes allocated per op and per second, taken from the
+allocation counter of the thread (ThreadMXBean)
+Every operation folds its result into a sink, so the JIT cannot drop the work measured
+ */
+
+import com.pralay.HEADER;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.Utf8;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import parquet.column.ParquetProperties.WriterVersion;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.api.WriteSupport;
+import parquet.hadoop.metadata.CompressionCodecName;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+public class IngestBenchmark {
+    static final String TOPIC = "bench";
+    static final String DIRECT_TOPIC = "bench_direct";
+
+    static class Options {
+        @Option(name = "-schemas", usage = "directory of the event schemas. I.e -schemas Schemas")
+        String schemaDir = "Schemas";
+
+        @Option(name = "-filter", usage = "regular expression of the operations to run. I.e -filter payload.*")
+        String filter = ".*";
+
+        @Option(name = "-warmup", usage = "seconds of warm up per operation")
+        int warmupSeconds = 2;
+
+        @Option(name = "-time", usage = "seconds of each measured iteration")
+        int iterationSeconds = 1;
+
+        @Option(name = "-iterations", usage = "measured iterations per operation")
+        int iterations = 5;
+
+        @Option(name = "-frames", usage = "number of distinct frames per event type the operations cycle through")
+        int numFrames = 1024;
+
+        @Option(name = "-codecs", usage = "parquet codecs to write with, comma separated")
+        String codecs = "UNCOMPRESSED,SNAPPY,GZIP,LZO";
+
+        @Option(name = "-out", usage = "directory of the parquet files written")
+        String outDir = System.getProperty("java.io.tmpdir") + File.separator + "IngestBenchmark";
+    }
+
+    /**
+     * Runs count operations per call
+     */
+    abstract static class Operation {
+        final String name;
+        //frame bytes per operation - for the MB/s
+        final double bytesPerOp;
+
+        Operation(String name, double bytesPerOp) {
+            this.name = name;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        void setUp() throws Exception {
+        }
+
+        abstract void run(int count) throws Exception;
+
+        void tearDown() throws Exception {
+        }
+    }
+
+    //every operation adds its result here
+    static long sink;
+
+    private final Options options;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean allocationCounter;
+    private final List<FrameBuilder.EventSchema> events;
+    private final SchemaLookup lookup;
+    private final SchemaLookup directLookup;
+    //frames of each event type and all of them interleaved
+    private final Map<FrameBuilder.EventSchema, byte[][]> framesByEvent = new LinkedHashMap<FrameBuilder.EventSchema, byte[][]>();
+    private final byte[][] allFrames;
+    private final double avgFrameBytes;
+
+    IngestBenchmark(Options options) throws IOException {
+        this.options = options;
+        this.allocationCounter = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+        if (allocationCounter) {
+            ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+        }
+        events = FrameBuilder.loadSchemas(new File(options.schemaDir));
+        Properties props = new Properties();
+        props.setProperty("input.adapter." + DIRECT_TOPIC + ".parquet.direct.write", "true");
+        KafkaToLoadHdfs.config = new SimpleConfig(props);
+        Map<String, Schema> schemas = new HashMap<String, Schema>();
+        for (FrameBuilder.EventSchema event : events) {
+            schemas.put(event.key(), event.schema);
+        }
+        lookup = new SchemaLookup(schemas, TOPIC);
+        directLookup = new SchemaLookup(schemas, DIRECT_TOPIC);
+
+        Random random = new Random(42L);
+        FrameBuilder builder = new FrameBuilder();
+        List<byte[]> all = new ArrayList<byte[]>();
+        long totalBytes = 0L;
+        for (FrameBuilder.EventSchema event : events) {
+            byte[][] frames = new byte[options.numFrames][];
+            for (int i = 0; i < frames.length; i++) {
+                HEADER header = new HEADER();
+                header.EVENT_ID = event.eventId;
+                header.EVENT_VERSION = event.eventVersion;
+                header.EVENT_TYPE = event.eventType;
+                header.KEY = random.nextLong();
+                com.pralay.SessionTestRecord session = new com.pralay.SessionTestRecord();
+                session.eventName = event.eventType;
+                session.imsi = 240000000000000L + random.nextInt(1000000);
+                session.timestamp = System.currentTimeMillis() - random.nextInt(3600000);
+                session.duration = random.nextInt(60000);
+                session.result = "OK";
+                frames[i] = builder.build(header, event.schema, FrameBuilder.randomValue(event.schema, random), session);
+                totalBytes += frames[i].length;
+            }
+            framesByEvent.put(event, frames);
+        }
+        //interleaved, as the event types arrive on a topic
+        for (int i = 0; i < options.numFrames; i++) {
+            for (byte[][] frames : framesByEvent.values()) {
+                all.add(frames[i]);
+            }
+        }
+        allFrames = all.toArray(new byte[all.size()][]);
+        avgFrameBytes = allFrames.length == 0 ? 0.0 : (double) totalBytes / allFrames.length;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.out.println("invalid arguments:" + e.getMessage());
+            parser.printUsage(System.out);
+            System.exit(-1);
+        }
+        quietParquetLog();
+        IngestBenchmark benchmark = new IngestBenchmark(options);
+        if (benchmark.events.isEmpty()) {
+            System.out.println("No schemas in " + options.schemaDir);
+            System.exit(-1);
+        }
+        benchmark.runAll();
+        System.exit(0);
+    }
+
+    //parquet logs every column chunk it writes through java.util.logging
+    static void quietParquetLog() throws ClassNotFoundException {
+        Class.forName("parquet.Log");
+        java.util.logging.Logger.getLogger("parquet").setLevel(Level.WARNING);
+    }
+
+    void runAll() throws Exception {
+        System.out.println("Events: " + events + " - " + allFrames.length + " frames, " + Math.round(avgFrameBytes) + " bytes on average");
+        System.out.println("JVM: " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", warm up " + options.warmupSeconds + "s, " + options.iterations + " x " + options.iterationSeconds + "s"
+                + (allocationCounter ? "" : " - allocation counter not supported"));
+        System.out.println(String.format("%-40s %14s %21s %10s %10s %12s %12s", "operation", "ops/s", "min-max",
+                "ns/op", "frame MB/s", "alloc B/op", "alloc MB/s"));
+        Pattern filter = Pattern.compile(options.filter);
+        for (Operation op : operations()) {
+            if (filter.matcher(op.name).matches()) {
+                measure(op);
+            }
+        }
+    }
+
+    private List<Operation> operations() {
+        List<Operation> ops = new ArrayList<Operation>();
+
+        ops.add(new Operation("frame.prefix", avgFrameBytes) {
+            final FrameDecoder decoder = new FrameDecoder(lookup);
+            int next;
+
+            void run(int count) throws Exception {
+                long result = 0L;
+                for (int i = 0; i < count; i++) {
+                    result += decoder.readPrefix(allFrames[index(next++)]);
+                }
+                sink += result;
+            }
+        });
+
+        ops.add(new Operation("frame.header", avgFrameBytes) {
+            final FrameDecoder decoder = new FrameDecoder(lookup);
+            final ByteArrayDecoder in = new ByteArrayDecoder();
+            int next;
+
+            void run(int count) throws Exception {
+                long result = 0L;
+                for (int i = 0; i < count; i++) {
+                    byte[] frame = allFrames[index(next++)];
+                    in.reset(frame, FrameDecoder.RECORD_OFFSET, frame.length - FrameDecoder.RECORD_OFFSET);
+                    decoder.readHeader(in);
+                    result += decoder.header.KEY;
+                }
+                sink += result;
+            }
+        });
+
+        for (final FrameBuilder.EventSchema event : events) {
+            ops.add(payloadOperation("payload." + event.eventType, event, lookup));
+            if (directLookup.get(event.eventType, event.eventId, event.eventVersion).binaryPlan != null) {
+                ops.add(payloadOperation("payload.validate." + event.eventType, event, directLookup));
+            }
+        }
+
+        ops.add(new Operation("frame.session", avgFrameBytes) {
+            final FrameDecoder decoder = new FrameDecoder(lookup);
+            final ByteArrayDecoder in = new ByteArrayDecoder();
+            final int[] sessionOffsets = new int[allFrames.length];
+            int next;
+
+            void setUp() throws Exception {
+                for (int i = 0; i < allFrames.length; i++) {
+                    sessionOffsets[i] = decoder.readPrefix(allFrames[i]);
+                }
+            }
+
+            void run(int count) throws Exception {
+                long result = 0L;
+                for (int i = 0; i < count; i++) {
+                    int idx = index(next++);
+                    byte[] frame = allFrames[idx];
+                    in.reset(frame, sessionOffsets[idx], frame.length - sessionOffsets[idx]);
+                    decoder.readSessionRecord(in);
+                    result += decoder.sessionRecord.imsi;
+                }
+                sink += result;
+            }
+        });
+
+        ops.add(new Operation("schema.lookup", avgFrameBytes) {
+            final Utf8[] types = new Utf8[allFrames.length];
+            final int[] ids = new int[allFrames.length];
+            final Utf8[] versions = new Utf8[allFrames.length];
+            int next;
+
+            void setUp() throws Exception {
+                FrameDecoder decoder = new FrameDecoder(lookup);
+                ByteArrayDecoder in = new ByteArrayDecoder();
+                for (int i = 0; i < allFrames.length; i++) {
+                    in.reset(allFrames[i], FrameDecoder.RECORD_OFFSET, allFrames[i].length - FrameDecoder.RECORD_OFFSET);
+                    decoder.readHeader(in);
+                    types[i] = new Utf8((Utf8) decoder.header.EVENT_TYPE);
+                    ids[i] = decoder.header.EVENT_ID;
+                    versions[i] = new Utf8((Utf8) decoder.header.EVENT_VERSION);
+                }
+            }
+
+            void run(int count) throws Exception {
+                long result = 0L;
+                for (int i = 0; i < count; i++) {
+                    int idx = index(next++);
+                    result += lookup.get(types[idx], ids[idx], versions[idx]).id;
+                }
+                sink += result;
+            }
+        });
+
+        ops.add(new Operation("frame.decode", avgFrameBytes) {
+            final FrameDecoder decoder = new FrameDecoder(lookup);
+            int next;
+
+            void run(int count) throws Exception {
+                long result = 0L;
+                for (int i = 0; i < count; i++) {
+                    decoder.decode(allFrames[index(next++)]);
+                    result += decoder.sessionRecord.timestamp;
+                }
+                sink += result;
+            }
+        });
+
+        ops.add(new Operation("frame.decode.direct", avgFrameBytes) {
+            final FrameDecoder decoder = new FrameDecoder(directLookup);
+            int next;
+
+            void run(int count) throws Exception {
+                long result = 0L;
+                for (int i = 0; i < count; i++) {
+                    decoder.decode(allFrames[index(next++)]);
+                    result += decoder.sessionRecord.timestamp;
+                }
+                sink += result;
+            }
+        });
+
+        for (String codecName : options.codecs.split(",")) {
+            CompressionCodecName codec = CompressionCodecName.valueOf(codecName.trim().toUpperCase());
+            for (FrameBuilder.EventSchema event : events) {
+                ops.add(parquetOperation("parquet.write." + codec + "." + event.eventType, codec, event, lookup));
+                if (directLookup.get(event.eventType, event.eventId, event.eventVersion).binaryPlan != null) {
+                    ops.add(parquetOperation("parquet.direct." + codec + "." + event.eventType, codec, event, directLookup));
+                }
+            }
+        }
+        return ops;
+    }
+
+    private int index(int next) {
+        return next % allFrames.length;
+    }
+
+    private Operation payloadOperation(String name, FrameBuilder.EventSchema event, final SchemaLookup schemaLookup) {
+        final byte[][] frames = framesByEvent.get(event);
+        final SchemaLookup.Entry entry = schemaLookup.get(event.eventType, event.eventId, event.eventVersion);
+        return new Operation(name, averageBytes(frames)) {
+            final FrameDecoder decoder = new FrameDecoder(schemaLookup);
+            final ByteArrayDecoder in = new ByteArrayDecoder();
+            final int[] payloadOffsets = new int[frames.length];
+            final int[] payloadLengths = new int[frames.length];
+            int next;
+
+            void setUp() throws Exception {
+                for (int i = 0; i < frames.length; i++) {
+                    decoder.readPrefix(frames[i]);
+                    in.reset(frames[i], FrameDecoder.RECORD_OFFSET, decoder.length - 1);
+                    decoder.readHeader(in);
+                    payloadOffsets[i] = in.position();
+                    payloadLengths[i] = in.remaining();
+                }
+                decoder.schemaEntry = entry;
+            }
+
+            void run(int count) throws Exception {
+                long result = 0L;
+                for (int i = 0; i < count; i++) {
+                    int idx = next++ % frames.length;
+                    in.reset(frames[idx], payloadOffsets[idx], payloadLengths[idx]);
+                    decoder.readPayload(frames[idx], in);
+                    result += in.remaining();
+                }
+                sink += result + (decoder.payload == null ? 0 : 1);
+            }
+        };
+    }
+
+    private Operation parquetOperation(final String name, final CompressionCodecName codec, FrameBuilder.EventSchema event,
+                                       final SchemaLookup schemaLookup) {
+        final byte[][] frames = framesByEvent.get(event);
+        final SchemaLookup.Entry entry = schemaLookup.get(event.eventType, event.eventId, event.eventVersion);
+        return new Operation(name, averageBytes(frames)) {
+            final OutputSink outputSink = new LocalOutputSink(false);
+            final Object[] payloads = new Object[frames.length];
+            final String fileName = options.outDir + File.separator + name + ".parquet";
+            //one of the two is open - as in HDFSBatchWriter
+            ParquetWriter<AvroBinaryRecord> binaryWriter;
+            ParquetWriter<IndexedRecord> recordWriter;
+            int next;
+
+            void setUp() throws Exception {
+                //payloads are kept - not reused
+                FrameDecoder decoder = new FrameDecoder(schemaLookup, false);
+                for (int i = 0; i < frames.length; i++) {
+                    decoder.decode(frames[i]);
+                    payloads[i] = decoder.payload;
+                }
+                if (entry.binaryPlan != null) {
+                    binaryWriter = open(new AvroBinaryWriteSupport(entry.binaryPlan));
+                } else {
+                    recordWriter = open(new OffsetRangeWriteSupport(
+                            new parquet.avro.AvroSchemaConverter().convert(entry.outputSchema), entry.outputSchema));
+                }
+            }
+
+            <T> ParquetWriter<T> open(WriteSupport<T> writeSupport) throws IOException {
+                return new ParquetWriter<T>(outputSink.createFile(fileName), writeSupport, codec,
+                        ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE,
+                        true, ParquetWriter.DEFAULT_IS_VALIDATING_ENABLED, WriterVersion.PARQUET_1_0, outputSink.getConfiguration());
+            }
+
+            void run(int count) throws Exception {
+                if (binaryWriter != null) {
+                    for (int i = 0; i < count; i++) {
+                        binaryWriter.write((AvroBinaryRecord) payloads[next++ % payloads.length]);
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        recordWriter.write((IndexedRecord) payloads[next++ % payloads.length]);
+                    }
+                }
+                sink += next;
+            }
+
+            void tearDown() throws Exception {
+                if (binaryWriter != null) {
+                    binaryWriter.close();
+                }
+                if (recordWriter != null) {
+                    recordWriter.close();
+                }
+                new File(fileName).delete();
+            }
+        };
+    }
+
+    private static double averageBytes(byte[][] frames) {
+        long bytes = 0L;
+        for (byte[] frame : frames) {
+            bytes += frame.length;
+        }
+        return frames.length == 0 ? 0.0 : (double) bytes / frames.length;
+    }
+
+    private void measure(Operation op) throws Exception {
+        try {
+            op.setUp();
+        } catch (Exception e) {
+            System.out.println(String.format("%-40s not available: %s", op.name, e));
+            return;
+        }
+        try {
+            //batches of about a millisecond, so the clock is not read for every operation
+            int batch = 1;
+            long batchStart = System.nanoTime();
+            op.run(batch);
+            while (System.nanoTime() - batchStart < 1000000L && batch < (1 << 24)) {
+                batch <<= 1;
+                batchStart = System.nanoTime();
+                op.run(batch);
+            }
+            runFor(op, batch, options.warmupSeconds * 1000000000L);
+
+            double[] opsPerSec = new double[options.iterations];
+            long totalOps = 0L;
+            long totalNanos = 0L;
+            long totalAllocated = 0L;
+            for (int i = 0; i < options.iterations; i++) {
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                long ops = runFor(op, batch, options.iterationSeconds * 1000000000L);
+                long nanos = System.nanoTime() - start;
+                totalAllocated += allocatedBytes() - allocatedBefore;
+                opsPerSec[i] = ops * 1e9 / nanos;
+                totalOps += ops;
+                totalNanos += nanos;
+            }
+            Arrays.sort(opsPerSec);
+            double meanOpsPerSec = totalOps * 1e9 / totalNanos;
+            System.out.println(String.format("%-40s %14.0f %21s %10.1f %10.1f %12s %12s", op.name, meanOpsPerSec,
+                    Math.round(opsPerSec[0]) + "-" + Math.round(opsPerSec[opsPerSec.length - 1]),
+                    (double) totalNanos / totalOps, meanOpsPerSec * op.bytesPerOp / (1024.0 * 1024.0),
+                    allocationCounter ? String.format("%.1f", (double) totalAllocated / totalOps) : "n/a",
+                    allocationCounter ? String.format("%.1f", totalAllocated * 1e9 / totalNanos / (1024.0 * 1024.0)) : "n/a"));
+        } finally {
+            op.tearDown();
+        }
+    }
+
+    private static long runFor(Operation op, int batch, long nanos) throws Exception {
+        long end = System.nanoTime() + nanos;
+        long ops = 0L;
+        do {
+            op.run(batch);
+            ops += batch;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    private long allocatedBytes() {
+        return allocationCounter
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0L;
+    }
+}
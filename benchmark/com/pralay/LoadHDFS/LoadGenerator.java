@@ -0,0 +1,388 @@
+package com.pralay.LoadHDFS;
+
+/*
+Load generator for capacity tests of the loader: produces frames of the FrameGenerator at a target rate
+ - to a Kafka topic: java com.pralay.LoadHDFS.LoadGenerator -bootstrap <host:port> -topic <topic> -rate <records/s> ...
+ - or, in-process, into a MockConsumer the AdapterConsumerThread polls - see MockConsumerTarget
+Without -bootstrap the frames are only generated, to measure the generator itself
+Every thread has its own FrameGenerator and an equal share of the rate. The settings file holds the distributions of
+the field values - see FrameGenerator
+ */
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadGenerator {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    /**
+     * Where the generated frames go - called by all generating threads
+     */
+    public interface Target {
+        void send(String topic, int partition, String key, byte[] frame) throws Exception;
+
+        void close();
+    }
+
+    /**
+     * Produces to Kafka - records are sent asynchronously, send errors are counted
+     */
+    public static class KafkaTarget implements Target {
+        private final KafkaProducer<String, byte[]> producer;
+        final AtomicLong errors = new AtomicLong();
+
+        public KafkaTarget(String bootstrap) {
+            Properties props = new Properties();
+            props.put("bootstrap.servers", bootstrap);
+            props.put("acks", "1");
+            props.put("linger.ms", "5");
+            props.put("batch.size", "262144");
+            props.put("key.serializer", StringSerializer.class.getName());
+            props.put("value.serializer", ByteArraySerializer.class.getName());
+            producer = new KafkaProducer<String, byte[]>(props);
+        }
+
+        int numPartitions(String topic) {
+            return producer.partitionsFor(topic).size();
+        }
+
+        public void send(String topic, int partition, String key, byte[] frame) {
+            producer.send(new ProducerRecord<String, byte[]>(topic, partition, key, frame), new org.apache.kafka.clients.producer.Callback() {
+                public void onCompletion(org.apache.kafka.clients.producer.RecordMetadata metadata, Exception e) {
+                    if (e != null && errors.getAndIncrement() == 0) {
+                        log.error("Send failed - later send errors are only counted", e);
+                    }
+                }
+            });
+        }
+
+        public void close() {
+            producer.close();
+        }
+    }
+
+    /**
+     * MockConsumer that is fed by other threads while it is polled - MockConsumer itself is not thread safe. It also
+     * returns the records of paused partitions without moving their position, so the records returned are counted here
+     */
+    public static class FeedableMockConsumer<K, V> extends MockConsumer<K, V> {
+        private long polledRecords;
+
+        public FeedableMockConsumer(OffsetResetStrategy offsetResetStrategy) {
+            super(offsetResetStrategy);
+        }
+
+        public synchronized ConsumerRecords<K, V> poll(long timeout) {
+            ConsumerRecords<K, V> records = super.poll(timeout);
+            polledRecords += records.count();
+            return records;
+        }
+
+        public synchronized void addRecord(ConsumerRecord<K, V> record) {
+            super.addRecord(record);
+        }
+
+        /**
+         * @return the number of records returned by poll()
+         */
+        public synchronized long polledRecords() {
+            return polledRecords;
+        }
+    }
+
+    /**
+     * Adds the frames to a MockConsumer, with the offsets of a partition counting up from 0. The partitions of the topic
+     * are assigned to the consumer up front - a later subscribe() keeps them
+     * Once maxPending records are added but not polled yet, send() waits for the consumer
+     */
+    public static class MockConsumerTarget implements Target {
+        private final FeedableMockConsumer<String, byte[]> consumer;
+        private final List<TopicPartition> partitions = new ArrayList<TopicPartition>();
+        private final long[] nextOffsets;
+        private final long maxPending;
+        private long sent;
+
+        public MockConsumerTarget(FeedableMockConsumer<String, byte[]> consumer, String topic, int numPartitions, long maxPending) {
+            this(consumer, topic, range(numPartitions), maxPending);
+        }
+
+        /**
+         * @param assigned the partitions of the topic assigned to the consumer - only these are sent to it
+         */
+        public MockConsumerTarget(FeedableMockConsumer<String, byte[]> consumer, String topic, Collection<Integer> assigned,
+                                  long maxPending) {
+            this.consumer = consumer;
+            this.maxPending = maxPending;
+            this.nextOffsets = new long[assigned.isEmpty() ? 0 : Collections.max(assigned) + 1];
+            Map<TopicPartition, Long> beginningOffsets = new HashMap<TopicPartition, Long>();
+            for (int p : assigned) {
+                TopicPartition tp = new TopicPartition(topic, p);
+                partitions.add(tp);
+                beginningOffsets.put(tp, 0L);
+            }
+            consumer.updateBeginningOffsets(beginningOffsets);
+            consumer.subscribe(Collections.singletonList(topic));
+            consumer.rebalance(partitions);
+        }
+
+        public synchronized void send(String topic, int partition, String key, byte[] frame) throws InterruptedException {
+            while (maxPending > 0L && sent % 1024L == 0L && sent - polled() >= maxPending) {
+                wait(1L);
+            }
+            consumer.addRecord(new ConsumerRecord<String, byte[]>(topic, partition, nextOffsets[partition]++, key, frame));
+            sent++;
+        }
+
+        /**
+         * @return the number of records added to the consumer
+         */
+        public synchronized long sent() {
+            return sent;
+        }
+
+        /**
+         * @return the number of records the consumer has polled
+         */
+        public long polled() {
+            return consumer.polledRecords();
+        }
+
+        public void close() {
+        }
+
+        private static List<Integer> range(int numPartitions) {
+            List<Integer> partitions = new ArrayList<Integer>();
+            for (int p = 0; p < numPartitions; p++) {
+                partitions.add(p);
+            }
+            return partitions;
+        }
+    }
+
+    static class Options {
+        @Option(name = "-schemas", usage = "directory of the event schemas. I.e -schemas Schemas")
+        String schemaDir = "Schemas";
+
+        @Option(name = "-settings", usage = "properties file of the value distributions, see FrameGenerator")
+        String settingsFile = null;
+
+        @Option(name = "-bootstrap", usage = "Kafka bootstrap servers - frames are only generated without it")
+        String bootstrap = null;
+
+        @Option(name = "-topic", usage = "topic to produce to")
+        String topic = "protocol1";
+
+        @Option(name = "-partitions", usage = "number of partitions, taken from the topic when producing to Kafka")
+        int numPartitions = 12;
+
+        @Option(name = "-skew", usage = "zipf exponent of the partition skew, 0 for all partitions alike")
+        double partitionSkew = 0.0;
+
+        @Option(name = "-malformed", usage = "ratio of malformed frames, I.e -malformed 0.001")
+        double malformedRatio = 0.0;
+
+        @Option(name = "-rate", usage = "records per second over all threads, 0 for as fast as possible")
+        double rate = 0.0;
+
+        @Option(name = "-records", usage = "number of records to produce, 0 until -seconds are over")
+        long numRecords = 0L;
+
+        @Option(name = "-seconds", usage = "seconds to produce for, 0 until -records are produced")
+        long seconds = 60L;
+
+        @Option(name = "-threads", usage = "number of generating threads")
+        int numThreads = 1;
+
+        @Option(name = "-seed", usage = "seed of the random values")
+        long seed = 42L;
+    }
+
+    private final List<FrameBuilder.EventSchema> events;
+    private final Properties settings;
+    private final int numPartitions;
+    private final double partitionSkew;
+    private final double malformedRatio;
+    private final long seed;
+    private volatile boolean running = true;
+    final AtomicLong records = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong malformed = new AtomicLong();
+
+    public LoadGenerator(List<FrameBuilder.EventSchema> events, Properties settings, int numPartitions,
+                         double partitionSkew, double malformedRatio, long seed) {
+        this.events = events;
+        this.settings = settings;
+        this.numPartitions = numPartitions;
+        this.partitionSkew = partitionSkew;
+        this.malformedRatio = malformedRatio;
+        this.seed = seed;
+    }
+
+    /**
+     * Starts the generating threads - they stop after numRecords records in total, or when stopRunning() is called
+     * @param rate records per second over all threads, 0 for no limit
+     * @param numRecords 0 for no limit
+     * @throws IllegalArgumentException if a distribution of the settings is not valid
+     */
+    public List<Thread> start(final Target target, final String topic, int numThreads, double rate, final long numRecords) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final FrameGenerator generator = new FrameGenerator(events, settings, numPartitions, partitionSkew,
+                    malformedRatio, seed + i);
+            final RateLimiter rateLimiter = rate > 0.0 ? RateLimiter.create(rate / numThreads) : null;
+            Thread t = new Thread("LoadGenerator::" + i) {
+                public void run() {
+                    try {
+                        while (running && (numRecords <= 0L || records.getAndIncrement() < numRecords)) {
+                            if (rateLimiter != null) {
+                                rateLimiter.acquire();
+                            }
+                            byte[] frame = generator.next();
+                            target.send(topic, generator.partition, String.valueOf(generator.key()), frame);
+                            if (numRecords <= 0L) {
+                                records.incrementAndGet();
+                            }
+                            bytes.addAndGet(frame.length);
+                            if (generator.malformation != null) {
+                                malformed.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        log.error(getName() + " stopped", e);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        return threads;
+    }
+
+    public void stopRunning() {
+        running = false;
+    }
+
+    /**
+     * @return the number of records generated - with a record limit, at most the limit
+     */
+    long generated(long numRecords) {
+        return numRecords > 0L ? Math.min(records.get(), numRecords) : records.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        CmdLineParser parser = new CmdLineParser(options);
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.out.println("invalid arguments:" + e.getMessage());
+            parser.printUsage(System.out);
+            System.exit(-1);
+        }
+        Properties settings = new Properties();
+        if (options.settingsFile != null) {
+            InputStream is = new FileInputStream(new File(options.settingsFile));
+            try {
+                settings.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        List<FrameBuilder.EventSchema> events = FrameBuilder.loadSchemas(new File(options.schemaDir));
+        if (events.isEmpty()) {
+            System.out.println("No schemas in " + options.schemaDir);
+            System.exit(-1);
+        }
+
+        Target target;
+        int numPartitions = options.numPartitions;
+        if (options.bootstrap != null) {
+            KafkaTarget kafkaTarget = new KafkaTarget(options.bootstrap);
+            numPartitions = kafkaTarget.numPartitions(options.topic);
+            target = kafkaTarget;
+        } else {
+            target = new Target() {
+                public void send(String topic, int partition, String key, byte[] frame) {
+                }
+
+                public void close() {
+                }
+            };
+        }
+        log.info("Generating " + events + " to " + (options.bootstrap != null ? options.topic + "@" + options.bootstrap : "nowhere")
+                + ": " + numPartitions + " partitions, skew " + options.partitionSkew + ", malformed " + options.malformedRatio
+                + ", rate " + (options.rate > 0.0 ? options.rate + "/s" : "unlimited") + ", " + options.numThreads + " threads");
+        LoadGenerator generator = new LoadGenerator(events, settings, numPartitions, options.partitionSkew,
+                options.malformedRatio, options.seed);
+        long start = System.currentTimeMillis();
+        List<Thread> threads;
+        try {
+            threads = generator.start(target, options.topic, options.numThreads, options.rate, options.numRecords);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(-1);
+            return;
+        }
+        long end = options.seconds > 0L ? start + options.seconds * 1000L : Long.MAX_VALUE;
+        long lastRecords = 0L;
+        long lastBytes = 0L;
+        long lastTime = start;
+        while (System.currentTimeMillis() < end && isAlive(threads)) {
+            long nextReport = Math.min(end, lastTime + 5000L);
+            while (System.currentTimeMillis() < nextReport && isAlive(threads)) {
+                Thread.sleep(Math.max(1L, Math.min(100L, nextReport - System.currentTimeMillis())));
+            }
+            long now = System.currentTimeMillis();
+            long numRecords = generator.generated(options.numRecords);
+            long numBytes = generator.bytes.get();
+            report("", numRecords - lastRecords, numBytes - lastBytes, now - lastTime);
+            lastRecords = numRecords;
+            lastBytes = numBytes;
+            lastTime = now;
+        }
+        generator.stopRunning();
+        for (Thread t : threads) {
+            t.join();
+        }
+        target.close();
+        report("Total ", generator.generated(options.numRecords), generator.bytes.get(), System.currentTimeMillis() - start);
+        System.out.println("Malformed frames: " + generator.malformed.get()
+                + (target instanceof KafkaTarget ? ", send errors: " + ((KafkaTarget) target).errors.get() : ""));
+    }
+
+    private static boolean isAlive(List<Thread> threads) {
+        for (Thread t : threads) {
+            if (t.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void report(String prefix, long numRecords, long numBytes, long millis) {
+        double seconds = Math.max(1L, millis) / 1000.0;
+        System.out.println(String.format("%s%d records, %.1f MB in %.1fs: %.0f records/s, %.1f MB/s", prefix, numRecords,
+                numBytes / (1024.0 * 1024.0), seconds, numRecords / seconds, numBytes / (1024.0 * 1024.0) / seconds));
+    }
+}
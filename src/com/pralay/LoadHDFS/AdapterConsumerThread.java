@@ -3,30 +3,17 @@ package com.pralay.LoadHDFS;
 /*
 This class contains the thread that will create the Kafka consumer and start polling the topic for messages
 Messages read from the topic are written out to a file in parquet format
+The records are decoded and written on this thread, unless input.adapter.<topic>.pipeline.decoders is set - then they are
+handed to an IngestPipeline which decodes and writes them on separate threads
+With input.adapter.<topic>.decode.threads set, the partitions of each poll batch are decoded in parallel and then written
+on this thread
  */
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 
-import com.pralay.core.executionfile.ExecutionFile;
-import com.pralay.core.executionfile.ExecutionFileFactory;
-import com.pralay.core.executionfile.FileOperation;
-import com.pralay.LoadHDFS.kafka.InitTopic;
-import com.pralay.SessionTestRecord;
-import org.apache.hadoop.fs.FileSystem;
-
-import com.pralay.HEADER;
-import org.apache.avro.Schema;
-import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.io.BinaryDecoder;
-import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.DecoderFactory;
-import org.apache.avro.specific.SpecificDatumReader;
-import org.apache.avro.specific.SpecificDatumWriter;
-import org.apache.hadoop.fs.Path;
+import com.pralay.LoadHDFS.kafka.StickyPartitionAssignor;
 import org.apache.kafka.clients.consumer.*;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
@@ -34,34 +21,37 @@ import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import parquet.avro.AvroParquetWriter;
-import parquet.hadoop.ParquetWriter;
-import parquet.hadoop.metadata.CompressionCodecName;
 
 public class AdapterConsumerThread extends Thread {
     private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
-    private final int timeStep;
-    private final int numRecords;
-    //num recs polled / dropped per partition
-    private Map<Integer,Integer> numRecsPolled = new HashMap<Integer,Integer>();
-    private Map<Integer,Integer>  numRecsDropped = new HashMap<Integer,Integer>();
 
-    private KafkaConsumer<String, String> consumer;
+    //created in run() unless set with setConsumer() - i.e a MockConsumer for tests and benchmarks
+    private Consumer<String, String> consumer;
 
     private String topicName;
-    //This holds the partitions and offsets read so far. It will be used to commit the offsets during a re-balance
-    //so that records that have already been read are not read again
-    private Map<TopicPartition, OffsetAndMetadata> currentOffsets = new HashMap<TopicPartition, OffsetAndMetadata>();
-
-    private final String hdsfsOutputDirectory;
-    private SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+    //Index of this consumer within the consumers started for the topic in this process
+    private final int consumerIndex;
 
     private volatile boolean running = true;
-    private HashMap<String, PartitionRecord> rawEventRecMap = new HashMap<String, PartitionRecord>();
-
-    private static String TMP_DIR_NAME = "tmp";
+    private HDFSBatchWriter batchWriter;
+    //told about every file closed and moved - set with setCloseListener() by the benchmarks, null otherwise
+    private HDFSBatchWriter.CloseListener closeListener;
+    //Offsets of the closed files - committed with one commitAsync per poll loop
+    private OffsetCommitManager commitManager;
+    //Parallel decoding of the poll batches - null if the records are decoded one by one
+    private ParallelBatchDecoder batchDecoder;
+
+    //Staged processing - null if the records are decoded and written on this thread
+    private IngestPipeline pipeline;
+    //Polled records the pipeline had no room for yet, in poll order
+    private final ArrayDeque<ConsumerRecord<String, String>> pendingRecords = new ArrayDeque<ConsumerRecord<String, String>>();
+    private boolean paused = false;
+    //Offsets of the files closed by the pipeline, drained from the pipeline into the commitManager
+    private final Map<TopicPartition, OffsetAndMetadata> pipelineOffsets = new HashMap<TopicPartition, OffsetAndMetadata>();
 
     private boolean isUnitTest=false;
+    //records polled and written, or handed to the pipeline - updated once per poll, read by the benchmarks
+    private volatile long recordsProcessed;
 
     public void stopRunning() {
         this.running = false;
@@ -72,12 +62,21 @@ public class AdapterConsumerThread extends Thread {
     private class HandleRebalance implements ConsumerRebalanceListener {
         public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
             log.info("Partitions revoked=" + partitions.size());
-            //When partitions are being revoked, write the file and commit the offsets that this instance has read so far - so that other
-            //instances which are assigned the partition do not read them again
+            //When partitions are being revoked, write the files of those partitions and commit the offsets that this instance has read
+            //so far - so that other instances which are assigned the partition do not read them again. The files of the partitions
+            //this instance keeps stay open
             for (TopicPartition p : partitions) {
                 log.info(p.toString());
             }
-            completeWritingFiles(false);
+            if (pipeline != null) {
+                //Records not handed to the pipeline yet are read again by the new owner of the partition
+                discardPendingRecords(partitions);
+                flushPipeline(partitions);
+            } else {
+                batchWriter.completeWritingFiles(partitions);
+            }
+            //The new owner starts reading from the committed offsets - they have to be stored before returning
+            commitManager.commitSync();
         }
 
         public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
@@ -86,12 +85,13 @@ public class AdapterConsumerThread extends Thread {
     }
 
     public AdapterConsumerThread(String topicName) {
-        this.setName("AdapterConsumerThread::"+topicName);
+        this(topicName, 0);
+    }
+
+    public AdapterConsumerThread(String topicName, int consumerIndex) {
+        this.setName("AdapterConsumerThread::"+topicName+"::"+consumerIndex);
         this.topicName = topicName;
-        //Get the HDFS directory from the configuration
-        hdsfsOutputDirectory = KafkaToLoadHdfs.config.outputHDFSDirectory();
-        timeStep = KafkaToLoadHdfs.config.getTopicBatchTimeInSeconds(topicName);
-        numRecords = KafkaToLoadHdfs.config.getTopicBatchNumRecords(topicName);
+        this.consumerIndex = consumerIndex;
     }
 
     public void run() {
@@ -108,10 +108,32 @@ public class AdapterConsumerThread extends Thread {
         props.put("fetch.max.wait.ms", KafkaToLoadHdfs.config.kafkaFetchMaxWait());
         props.put("key.deserializer", StringDeserializer.class.getName());
         props.put("value.deserializer", ByteArrayDeserializer.class.getName());
-        if(!isUnitTest) {
+        if (KafkaToLoadHdfs.config.getTopicStickyAssignment(topicName)) {
+            //Keep partitions with their consumer across rebalances - range is used until every consumer of the group supports sticky
+            props.put("partition.assignment.strategy", StickyPartitionAssignor.class.getName() + "," + RangeAssignor.class.getName());
+            String stateDir = KafkaToLoadHdfs.config.getTopicStickyAssignmentStateDir(topicName);
+            if (!stateDir.isEmpty()) {
+                props.put(StickyPartitionAssignor.STATE_FILE_CONFIG, new File(stateDir,
+                        "KafkaToLoadHdfs_Group_" + topicName + "_" + consumerIndex + ".assignment").getPath());
+            }
+        }
+        if(this.consumer == null) {
             this.consumer = new KafkaConsumer(props);
         }
         int pollTimeOut = KafkaToLoadHdfs.config.kafkaPollTimeout();
+        commitManager = new OffsetCommitManager(getName(), this.consumer,
+                KafkaToLoadHdfs.config.getTopicPollMetricsIntervalInSeconds(topicName));
+        batchWriter = new HDFSBatchWriter(topicName, commitManager, closeListener);
+
+        int numDecoders = KafkaToLoadHdfs.config.getTopicPipelineDecoders(topicName);
+        if (numDecoders > 0 && !isUnitTest) {
+            pipeline = new IngestPipeline(topicName, consumerIndex, numDecoders,
+                    Math.max(1, KafkaToLoadHdfs.config.getTopicPipelineWriters(topicName)),
+                    KafkaToLoadHdfs.config.getTopicPipelineBufferSize(topicName), closeListener);
+            pipeline.start();
+        } else if (KafkaToLoadHdfs.config.getTopicDecodeThreads(topicName) > 1) {
+            batchDecoder = new ParallelBatchDecoder(topicName, KafkaToLoadHdfs.config.getTopicDecodeThreads(topicName));
+        }
 
         try {
             //Subscribe to the topic and also provide a ConsumerReBalanceListener
@@ -128,161 +150,49 @@ public class AdapterConsumerThread extends Thread {
 
         //Collect the records from the topic for the specified time OR number of records and write out the file with the
         //batch of records
-        Object rawEventRec = null;
-        byte[] msgValue = null;
-        ConsumerRecord record = null;
+        FrameDecoder frameDecoder = new FrameDecoder(KafkaToLoadHdfs.schemaRegistry, topicName, true);
+        PollScheduler pollScheduler = new PollScheduler(topicName, consumerIndex);
         try {
             while (this.running) {
+                if (pipeline != null && !pendingRecords.isEmpty()) {
+                    //The pipeline is full: keep polling so that the consumer stays in the group, but stop fetching
+                    //until the pipeline has taken the pending records
+                    pauseAssignedPartitions();
+                    pollScheduler.pollStarted();
+                    ConsumerRecords<String, String> records = this.consumer.poll(0L);
+                    pollScheduler.pollCompleted(records == null ? 0 : records.count());
+                    offerToPipeline(records);
+                    commitManager.commitAsync();
+                    pollScheduler.awaitBackpressure(pendingRecords.isEmpty());
+                    continue;
+                }
+                if (paused) {
+                    this.consumer.resume(this.consumer.assignment());
+                    paused = false;
+                }
+
+                pollScheduler.pollStarted();
                 ConsumerRecords<String, String> records = this.consumer.poll((long) pollTimeOut);
-                if (records != null && !records.isEmpty()) {
-                    Iterator<ConsumerRecord<String, String>> it = records.iterator();
-
-                    while (it.hasNext()) {
-                        record = (ConsumerRecord) it.next();
-                        String key = record.topic() + "_" + record.partition();
-
-                        Integer numRecsPolledPart = numRecsPolled.get(record.partition());
-                        if(numRecsPolledPart == null) {
-                            numRecsPolledPart = new Integer(0);
-
-                        }
-                        numRecsPolledPart++;
-                        numRecsPolled.put(record.partition(),numRecsPolledPart);
-
-                        Integer numRecsDroppedPart = numRecsDropped.get(record.partition());
-                        if(numRecsDroppedPart == null) {
-                            numRecsDroppedPart = new Integer(0);
-
-                        }
-                        numRecsDropped.put(record.partition(),numRecsDroppedPart);
-                        currentOffsets.put(new TopicPartition(record.topic(), record.partition()),
-                                new OffsetAndMetadata(record.offset() + 1));
-
-                        if (record.value() != null) {
-                            log.debug("Current offset:" + record.topic() + ":" + record.partition() + ":" + record.offset());
-                            try {
-                                msgValue = (byte[]) record.value();
-                                log.debug("First byte: Version=" + msgValue[0]);
-
-                                log.debug("Second byte: Type=" + msgValue[1]);
-
-                                byte[] lenArr = Arrays.copyOfRange(msgValue, 2, 6);
-                                ByteBuffer wrapped = ByteBuffer.wrap(lenArr); // big-endian by default
-                                int length = wrapped.getInt(); // 1
-                                log.debug("Length:" + length);
-
-                                log.debug("Format:" + msgValue[6]);
-
-                                DatumReader<HEADER> headerDatumReader = new SpecificDatumReader<HEADER>(HEADER.class);
-                                DatumReader<SessionTestRecord> sbDatumReader = new SpecificDatumReader<SessionTestRecord>(
-                                        SessionTestRecord.class);
-
-                                DatumReader<Object> recordDatumReader = new SpecificDatumReader<>();
-                                //Raw event record length includes the format byte
-                                ByteArrayInputStream is = new ByteArrayInputStream(Arrays.copyOfRange(msgValue, 7, 6 + length));
-                                is.close();
-                                BinaryDecoder in = DecoderFactory.get().binaryDecoder(is, null);
-
-                                HEADER headerRec = new HEADER();
-                                headerRec = headerDatumReader.read(headerRec, in);
-                                if (headerRec == null) {
-                                    log.error("Unable to decode header record: ");
-                                    numRecsDroppedPart++;
-                                    numRecsDropped.put(record.partition(),numRecsDroppedPart);
-                                    printMsgBytes(msgValue);
-                                    continue;
-                                }
-                                log.debug(headerRec.toString());
-
-
-                                String schemaKeyStr = InitTopic.DEST_PREFIX + InitTopic.ZK_SCHEMA_NODE + "/" + headerRec.EVENT_TYPE + "_" + headerRec.EVENT_ID + "/" + headerRec.EVENT_VERSION;
-                                schemaKeyStr = schemaKeyStr.toUpperCase();
-                                Schema s = KafkaToLoadHdfs.schemaHashMap.get(schemaKeyStr);
-                                if (s == null) {
-                                    log.error("No schema found for: ", headerRec.toString(), ".Not processing this record");
-                                    numRecsDroppedPart++;
-                                    numRecsDropped.put(record.partition(),numRecsDroppedPart);
-                                    continue;
-                                }
-
-                                recordDatumReader.setSchema(s);
-                                rawEventRec = recordDatumReader.read(rawEventRec, in);
-
-                                log.debug(rawEventRec.toString());
-
-                                // Read the session browser record
-                                is = new ByteArrayInputStream(Arrays.copyOfRange(msgValue, 13 + length, msgValue.length));
-                                is.close();
-                                in = DecoderFactory.get().binaryDecoder(is, in);
-                                SessionTestRecord SessionTestRecord = new SessionTestRecord();
-                                SessionTestRecord = sbDatumReader.read(SessionTestRecord, in);
-                                log.debug(SessionTestRecord.toString());
-
-                                //This topic will receive data from multiple partitions - but we separate the records
-                                //based on the partition - so the counter for the number of records is per partition
-                                PartitionRecord partitionRec = rawEventRecMap.get(key);
-                                if (partitionRec == null) {
-                                    partitionRec = new PartitionRecord();
-                                    partitionRec.topicName = record.topic();
-                                    partitionRec.partitionId = record.partition();
-                                    partitionRec.startTime = System.currentTimeMillis() / 1000l;
-                                    partitionRec.firstTimeStamp = SessionTestRecord.timestamp;
-                                    //open the file fow write
-                                    rawEventRecMap.put(key, partitionRec);
-                                }
-                                partitionRec.endTimeStamp = SessionTestRecord.timestamp;
-                                partitionRec.numRecsDropped = numRecsDroppedPart;
-                                partitionRec.numRecsPolled = numRecsPolledPart;
-
-                                RecordData recData = partitionRec.rawEventRecMap.get(s);
-                                if (recData == null) {
-                                    recData = new RecordData();
-                                    String partitionName = KafkaToLoadHdfs.config.getPartitionNameMapping(record.topic(), record.partition());
-                                    recData.eventType = headerRec.EVENT_TYPE.toString().toLowerCase();
-
-                                    if (System.getProperty("ECLIPSE_ENV") == null) {
-                                        recData.parquetWriter = openParquetFile(s, partitionName, recData);
-                                    } else { //For local testing - create the avro files since parquet files cannot be created
-                                        recData.avroWriter = openAvroFile(s, partitionName, recData);
-                                    }
-                                    partitionRec.rawEventRecMap.put(s, recData);
-                                }
-                                if (System.getProperty("ECLIPSE_ENV") == null) {
-                                    long current = System.currentTimeMillis();
-                                    recData.parquetWriter.write(rawEventRec);
-                                    log.debug("Time to write a rec in parquet =" + (System.currentTimeMillis() - current));
-                                } else {
-                                    recData.avroWriter.append(rawEventRec);
-                                }
-                                partitionRec.ctr++;
-                                partitionRec.offset = record.offset();
-
-                            } catch(IOException ie) {
-                                log.error("IO Exception::",ie);
-                            } catch (Exception e) {
-                                log.error("Error in processing record", e);
-                                numRecsDroppedPart++;
-                                numRecsDropped.put(record.partition(),numRecsDroppedPart);
-                                if (record != null) {
-                                    log.error("Error in processing this record: Topic=" + record.topic() + ":Partition=" + record.partition() + ":Offset=" + record.offset());
-                                }
-                                if (msgValue != null) {
-                                    printMsgBytes(msgValue);
-                                }
-                            }
-                        }
-
-                        //Check if file is ready to be closed
-                        completeWritingFiles(true);
+                pollScheduler.pollCompleted(records == null ? 0 : records.count());
+                if (pipeline != null) {
+                    offerToPipeline(records);
+                } else if (records != null && !records.isEmpty()) {
+                    if (batchDecoder != null) {
+                        writeDecodedRecords(batchDecoder.decode(records));
+                    } else {
+                        processRecords(records, frameDecoder);
                     }
                 } else {
                     //Nothing read from topic
                     //Check if file is ready to be closed
-                    completeWritingFiles(true);
+                    batchWriter.completeWritingFiles(true);
                 }
+                //One commit for all files closed while processing this poll
+                commitManager.commitAsync();
 
                 try {
-                    Thread.sleep(1000L);
+                    //Poll again right away while records are flowing - back off only when the topic is idle
+                    pollScheduler.awaitNextPoll();
                 } catch (InterruptedException e) {
                     log.warn("Exception", e);
                 }
@@ -298,234 +208,195 @@ public class AdapterConsumerThread extends Thread {
         } finally {
             log.warn("Thread: " + this.getName() + "has been nicely stopped");
             if (this.consumer != null) {
-                completeWritingFiles(false);
+                if (pipeline != null) {
+                    flushPipeline(null);
+                    pipeline.shutdown();
+                } else {
+                    batchWriter.completeWritingFiles(false);
+                }
+                batchWriter.shutdown();
+                commitManager.commitSync();
+                commitManager.report(true);
                 this.consumer.close();
             }
-        }
-
-    }
-
-    private void printMsgBytes(byte[] msgValue) {
-        if(msgValue != null) {
-            String msgValueBytes = new String();
-            for (int i = 0; i < msgValue.length; i++) {
-                msgValueBytes += msgValue[i] + ",";
+            if (batchDecoder != null) {
+                batchDecoder.shutdown();
             }
-            log.error("Byte array of record:"+msgValueBytes);
-
         }
-    }
-
-    public String getTopicName() {
-        return topicName;
-    }
-
-
-    public OutputStream getOutputStream(String filePath) throws IOException {
-        if (System.getProperty("ECLIPSE_ENV") == null) {
-            ExecutionFile executionfile = ExecutionFileFactory.create(filePath, FileOperation.OVERWRITE);
-            return executionfile.openForWrite();
-        } else {
-            File targetFile = new File(filePath);
-            File parent = targetFile.getParentFile();
-
-            if (parent != null) {
-                if (!parent.exists() && !parent.mkdirs()) {
-                    log.error("Couldn't create dir: " + parent);
-                    throw new IllegalStateException("Couldn't create dir: " + parent);
-                }
-            }
-            return new FileOutputStream(filePath);
-        }
-    }
-
-    public Path getPathForWrite(String filePath) throws IOException {
-    	ExecutionFile executionfile = ExecutionFileFactory.create(filePath, FileOperation.OVERWRITE);
-        return executionfile.getPath();
-
-    }
-
-    public Path getPathForRead(String filePath) throws IOException {
-    	ExecutionFile executionfile = ExecutionFileFactory.create(filePath, FileOperation.READ);
-        return executionfile.getPath();
 
     }
 
     /**
-     * This method is called when the consumer is shutting down or to check if the batch size has been reached after every record has been
-     * processed
+     * Decodes the polled records and writes them out on this thread
      */
-    private void completeWritingFiles(boolean checkBatchComplete) {
-        if(rawEventRecMap == null || rawEventRecMap.isEmpty()) {
-            return;
-        }
-        try {
-            if (log.isDebugEnabled() && !checkBatchComplete) {
-                log.debug("In completeWritingFiles::" + checkBatchComplete);
-                log.debug("rawEventRecMap" + rawEventRecMap);
-            }
-            //Use an iterator - so we can delete from the hashmap without causing concurrent modification exception
-            Iterator<Map.Entry<String, PartitionRecord>> it = rawEventRecMap.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, PartitionRecord> item = it.next();
-                if (item == null) {
-                    continue;
-                }
+    private void processRecords(ConsumerRecords<String, String> records, FrameDecoder frameDecoder) {
+        Iterator<ConsumerRecord<String, String>> it = records.iterator();
+        byte[] msgValue = null;
+        ConsumerRecord record = null;
 
-                PartitionRecord rec = item.getValue();
-                if (rec == null) {
-                    continue;
-                }
-                if (log.isDebugEnabled() && !checkBatchComplete) {
-                    log.debug("PartitionRecord" + rec);
+        while (it.hasNext()) {
+            record = (ConsumerRecord) it.next();
+            int partition = record.partition();
+            batchWriter.polled(partition);
+
+            if (record.value() != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Current offset:" + record.topic() + ":" + partition + ":" + record.offset());
                 }
-                long currentTime = System.currentTimeMillis() / 1000l;
-                if (!checkBatchComplete || checkBatchComplete && (currentTime - rec.startTime > (long) timeStep || rec.ctr > numRecords - 1)) {
-                    //Close out the file
-                    if (rec.rawEventRecMap == null) {
+                try {
+                    msgValue = (byte[]) record.value();
+                    if (frameDecoder.decode(msgValue) == FrameDecoder.Result.NO_SCHEMA) {
+                        log.error("No schema found for: {}.Not processing this record", frameDecoder.header);
+                        batchWriter.dropped(partition);
                         continue;
                     }
-                    for (Map.Entry<Schema, RecordData> partitionItem : rec.rawEventRecMap.entrySet()) {
-                        RecordData recData = partitionItem.getValue();
-                        if (recData == null) {
-                            continue;
-                        }
-                        if (log.isDebugEnabled() && !checkBatchComplete) {
-                            log.debug("RecordData" + recData);
-                        }
-                        try {
-                            if (checkBatchComplete) {
-                                if (System.getProperty("ECLIPSE_ENV") == null) {
-                                    if (log.isDebugEnabled() && !checkBatchComplete) {
-                                        log.debug("about to close file");
-                                    }
-                                    if (recData.parquetWriter != null) {
-                                        recData.parquetWriter.close();
-                                    }
-
-                                    if (log.isDebugEnabled() && !checkBatchComplete) {
-                                        log.debug("closed the file");
-                                    }
-                                } else { //For local testing - create the avro files since parquet files cannot be created
-                                    recData.avroWriter.close();
-                                }
-                            }
-                        } catch (IOException e) {
-                            log.error("Error in closing file", e);
-                        }
-                        //copy the file from temp loc to permanent loc once its been closed - this is to avoid the 0 byte issue
-                        //when querying the open file through impala
-                        moveFileToPermLoc(recData.openFileName, !checkBatchComplete);
-                        //Once the file has been written, commit the kafka offset
-                        long lastOffset = rec.offset;
-                        log.info("Committing offset:" + rec.topicName + "::" + rec.partitionId + "::" + lastOffset);
-                        try {
-                            TopicPartition tp = new TopicPartition(rec.topicName, rec.partitionId);
-                            OffsetAndMetadata offset = new OffsetAndMetadata(lastOffset + 1);
-                            consumer.commitSync(Collections.singletonMap(tp,offset));
-                        } catch (Exception e) {
-                            //Add a catch so that if there is an issue in committing the offset due to rebalancing,code will continue as
-                            log.error("Error in committing the offset",e);
-                        }
-                        log.info("Batch size/Timeout reached, closing file: Num of records written=" + rec.ctr + "::FileName=" + recData.openFileName + "First TimeStamp=" + rec.firstTimeStamp + "::End TimeStamp=" + rec.endTimeStamp + "::Num recs polled=" + rec.numRecsPolled + "::Num recs discarded=" + rec.numRecsDropped);
-                        numRecsPolled.remove(rec.partitionId);
-                        numRecsDropped.remove(rec.partitionId);
-
+                    if (log.isDebugEnabled()) {
+                        log.debug("Version=" + frameDecoder.version + "::Type=" + frameDecoder.type + "::Length=" + frameDecoder.length + "::Format=" + frameDecoder.format);
+                        log.debug(frameDecoder.header.toString());
+                        log.debug(frameDecoder.payload.toString());
+                        log.debug(frameDecoder.sessionRecord.toString());
+                    }
+                    batchWriter.write(partition, record.offset(), frameDecoder.schemaEntry, frameDecoder.payload,
+                            frameDecoder.sessionRecord.timestamp, frameDecoder.header.KEY, frameDecoder.sessionRecord.imsi);
+
+                } catch(IOException ie) {
+                    log.error("IO Exception::",ie);
+                } catch (Exception e) {
+                    log.error("Error in processing record", e);
+                    batchWriter.dropped(partition);
+                    if (record != null) {
+                        log.error("Error in processing this record: Topic=" + record.topic() + ":Partition=" + record.partition() + ":Offset=" + record.offset());
+                    }
+                    if (msgValue != null) {
+                        printMsgBytes(msgValue);
                     }
-                    it.remove();
                 }
-
             }
 
-        } catch (Exception e) {
-            log.error("Error in closing the file", e);
+            //Check if file is ready to be closed
+            batchWriter.completeWritingFiles(true);
         }
+        recordsProcessed += records.count();
     }
 
-    private void moveFileToPermLoc(String openFileName,boolean shutdown) {
-        try {
-            String finalName = openFileName.replace(TMP_DIR_NAME, "");
-            if (System.getProperty("ECLIPSE_ENV") != null) {
-                File f = new File(openFileName);
-
-                if (f.renameTo(new File(finalName))) {
-                    log.info("File move is successful");
-                } else {
-                    log.error("File failed to move");
-                }
-            } else {
-                if(!shutdown) {
-                    ExecutionFileFactory.getHdfsFileSystem().rename(getPathForRead(openFileName), getPathForWrite(finalName));
-                } else {
-                    //for final shutdown use different code:
-                    org.apache.hadoop.conf.Configuration hdfsConf = new org.apache.hadoop.conf.Configuration();
-
-                    FileSystem yourFileSystem = FileSystem.get(hdfsConf);
-                    yourFileSystem.rename(getPathForRead(openFileName), getPathForWrite(finalName));
-                    yourFileSystem.close();
-                }
-
+    /**
+     * Writes out the records decoded in parallel - partition by partition, each in offset order
+     */
+    private void writeDecodedRecords(List<List<DecodedRecord>> partitions) {
+        long written = 0L;
+        for (List<DecodedRecord> decodedRecords : partitions) {
+            for (DecodedRecord decoded : decodedRecords) {
+                batchWriter.write(decoded);
+                //Check if file is ready to be closed
+                batchWriter.completeWritingFiles(true);
             }
-        } catch (Exception e) {
-            log.error("Error in moving file",e);
+            written += decodedRecords.size();
         }
+        recordsProcessed += written;
     }
 
+    /**
+     * Hands the polled records to the pipeline in poll order - the records it has no room for are kept and offered
+     * again on the next loop, with the partitions paused until then
+     */
+    private void offerToPipeline(ConsumerRecords<String, String> records) {
+        if (records != null && !records.isEmpty()) {
+            for (ConsumerRecord<String, String> record : records) {
+                pendingRecords.addLast(record);
+            }
+        }
+        ConsumerRecord<String, String> record;
+        long offered = 0L;
+        while ((record = pendingRecords.peekFirst()) != null && pipeline.offer(record)) {
+            pendingRecords.pollFirst();
+            offered++;
+        }
+        recordsProcessed += offered;
+        commitPipelineOffsets();
+    }
 
-    private AvroParquetWriter openParquetFile(Schema avroSchema, String partitionName, RecordData recData) throws IOException {
-        AvroParquetWriter parquetWriter = null;
-        try {
+    private void pauseAssignedPartitions() {
+        //Pause on every loop - partitions assigned by a rebalance in the meantime start out fetching
+        Set<TopicPartition> assignment = this.consumer.assignment();
+        if (!assignment.isEmpty()) {
+            this.consumer.pause(assignment);
+        }
+        paused = true;
+    }
 
-            String newFilename = hdsfsOutputDirectory + File.separator + recData.eventType + File.separator + TMP_DIR_NAME + File.separator +"Event" + "_" + topicName + "_" + partitionName + "_" + sdf.format(new Date()) + ".parquet";
-            recData.openFileName = newFilename;
-            Path outputPath = getPathForWrite(newFilename);
-            if (ExecutionFileFactory.getHdfsFileSystem().exists(outputPath)) {
-                //Delete the file if it exists
-                log.info("Output File exists: deleting it");
-                ExecutionFileFactory.getHdfsFileSystem().delete(outputPath, true);
+    private void discardPendingRecords(Collection<TopicPartition> partitions) {
+        Iterator<ConsumerRecord<String, String>> it = pendingRecords.iterator();
+        while (it.hasNext()) {
+            ConsumerRecord<String, String> record = it.next();
+            if (partitions.contains(new TopicPartition(record.topic(), record.partition()))) {
+                it.remove();
             }
-            // choose compression scheme
-            CompressionCodecName compressionCodecName = CompressionCodecName.UNCOMPRESSED;
-            // the ParquetWriter object that will consume Avro GenericRecords
-            parquetWriter = new AvroParquetWriter(outputPath,
-                    avroSchema, compressionCodecName, ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE);
-            log.info("Starting to write to parquet file");
-
-        } catch (IOException e) {
-            log.error("Error in creating file", e);
-            throw e;
         }
-        return parquetWriter;
     }
 
+    /**
+     * Waits until the pipeline has written everything handed to it and collects the offsets of the closed files
+     * @param partitions partitions whose files are closed, null for all
+     */
+    private void flushPipeline(Collection<TopicPartition> partitions) {
+        long timeoutMs = Long.parseLong(KafkaToLoadHdfs.config.kafkaSessionTimeOut());
+        if (!pipeline.flush(pipelineOffsets, timeoutMs, partitions)) {
+            log.error("Pipeline of " + getName() + " could not be flushed - committing the offsets of the files closed so far");
+        }
+        commitPipelineOffsets();
+    }
+
+    private void commitPipelineOffsets() {
+        pipeline.drainCommits(pipelineOffsets);
+        if (pipelineOffsets.isEmpty()) {
+            return;
+        }
+        commitManager.commitAll(pipelineOffsets);
+        pipelineOffsets.clear();
+    }
 
-    private DataFileWriter openAvroFile(Schema key, String partitionName, RecordData recData) throws IOException {
-        SpecificDatumWriter datumWriter = new SpecificDatumWriter();
-        DataFileWriter dataFileWriter = new DataFileWriter(datumWriter);
-        String newFilename = hdsfsOutputDirectory + File.separator + recData.eventType + File.separator + TMP_DIR_NAME +File.separator +"Event" + "_" + topicName + "_" + partitionName + "_" + sdf.format(new Date()) + ".avro";
-        OutputStream os = null;
-        recData.openFileName = newFilename;
+    static void printMsgBytes(byte[] msgValue) {
+        if(msgValue != null) {
+            String msgValueBytes = new String();
+            for (int i = 0; i < msgValue.length; i++) {
+                msgValueBytes += msgValue[i] + ",";
+            }
+            log.error("Byte array of record:"+msgValueBytes);
 
-        try {
-            os = getOutputStream(newFilename);
-            log.info("Created data File " + newFilename);
-            dataFileWriter.create(key, os);
-        } catch (IOException e) {
-            log.error("Error in creating the file", e);
-            throw e;
         }
+    }
 
-        return dataFileWriter;
+    public String getTopicName() {
+        return topicName;
     }
 
-    public KafkaConsumer<String, String> getConsumer() {
+    public int getConsumerIndex() {
+        return consumerIndex;
+    }
+
+    public Consumer<String, String> getConsumer() {
         return consumer;
     }
 
-    public void setConsumer(KafkaConsumer<String, String> consumer) {
+    public void setConsumer(Consumer<String, String> consumer) {
         this.consumer = consumer;
     }
 
+    /**
+     * To be called before the thread is started
+     */
+    public void setCloseListener(HDFSBatchWriter.CloseListener closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    /**
+     * @return the records polled and written so far - with a pipeline the records handed to it, which it writes out
+     * before the thread stops
+     */
+    public long recordsProcessed() {
+        return recordsProcessed;
+    }
+
     public boolean isUnitTest() {
         return isUnitTest;
     }
@@ -0,0 +1,295 @@
+package com.pralay.LoadHDFS;
+
+/*
+Writes a binary encoded Avro record straight to a parquet RecordConsumer, without decoding it into a GenericRecord first
+The plan is compiled once per schema: one step per field with its parquet name and index and the Avro type to read. The
+calls made on the RecordConsumer are the ones parquet's AvroWriteSupport makes for the decoded record, so the files are
+the same. Strings, bytes and fixed values are handed to parquet as slices of the message bytes, nothing is copied
+Fields left out of the output schema by a projection are skipped in the encoded record, they are never decoded
+Schemas with arrays, maps or unions other than [null, X] are not compiled - their records are decoded and written through
+AvroWriteSupport as before
+ */
+
+import org.apache.avro.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parquet.avro.AvroSchemaConverter;
+import parquet.io.api.Binary;
+import parquet.io.api.RecordConsumer;
+import parquet.schema.GroupType;
+import parquet.schema.MessageType;
+import parquet.schema.Type;
+
+import java.io.IOException;
+import java.util.List;
+
+public final class AvroBinaryPlan {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    final Schema avroSchema;
+    final MessageType parquetSchema;
+    private final Step[] steps;
+
+    private static final class Step {
+        final String name;
+        //index of the field in its parquet group, -1 for fields that are skipped: of type null or not in the output schema
+        final int index;
+        //type of the value, for [null, X] unions the type of X
+        final Schema.Type type;
+        //branch of the [null, X] union holding null, -1 if the field is not a union
+        final int nullBranch;
+        //fields of a record
+        final Step[] fields;
+        //symbols of an enum, as written to parquet
+        final Binary[] symbols;
+        //size of a fixed
+        final int fixedSize;
+
+        Step(String name, int index, Schema.Type type, int nullBranch, Step[] fields, Binary[] symbols, int fixedSize) {
+            this.name = name;
+            this.index = index;
+            this.type = type;
+            this.nullBranch = nullBranch;
+            this.fields = fields;
+            this.symbols = symbols;
+            this.fixedSize = fixedSize;
+        }
+    }
+
+    private AvroBinaryPlan(Schema avroSchema, MessageType parquetSchema, Step[] steps) {
+        this.avroSchema = avroSchema;
+        this.parquetSchema = parquetSchema;
+        this.steps = steps;
+    }
+
+    /**
+     * @return the plan of the schema or null if its records cannot be written directly
+     */
+    public static AvroBinaryPlan compile(Schema avroSchema) {
+        return compile(avroSchema, avroSchema);
+    }
+
+    /**
+     * @param outputSchema the top level fields of avroSchema that are written, in the same order - see SchemaLookup.project()
+     * @return the plan writing records encoded with avroSchema as records of outputSchema, null if they cannot be written directly
+     */
+    public static AvroBinaryPlan compile(Schema avroSchema, Schema outputSchema) {
+        if (avroSchema.getType() != Schema.Type.RECORD) {
+            return null;
+        }
+        if (!isProjection(avroSchema, outputSchema)) {
+            log.info("Records of schema " + avroSchema.getFullName() + " are resolved to a different schema - they are not written directly");
+            return null;
+        }
+        try {
+            MessageType parquetSchema = new AvroSchemaConverter().convert(outputSchema);
+            return new AvroBinaryPlan(outputSchema, parquetSchema, compileFields(avroSchema, outputSchema, parquetSchema));
+        } catch (RuntimeException e) {
+            log.info("Records of schema " + avroSchema.getFullName() + " are not written directly: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //true if outputSchema only leaves out fields of avroSchema - a table schema of another version may add, reorder or promote fields
+    private static boolean isProjection(Schema avroSchema, Schema outputSchema) {
+        if (outputSchema.getType() != Schema.Type.RECORD) {
+            return false;
+        }
+        int lastPos = -1;
+        for (Schema.Field field : outputSchema.getFields()) {
+            Schema.Field avroField = avroSchema.getField(field.name());
+            if (avroField == null || avroField.pos() <= lastPos || !avroField.schema().equals(field.schema())) {
+                return false;
+            }
+            lastPos = avroField.pos();
+        }
+        return true;
+    }
+
+    /**
+     * @param outputSchema null if none of the fields are written
+     */
+    private static Step[] compileFields(Schema avroSchema, Schema outputSchema, GroupType groupType) {
+        List<Schema.Field> avroFields = avroSchema.getFields();
+        Step[] fields = new Step[avroFields.size()];
+        //same numbering as AvroWriteSupport: fields of type null have no parquet column
+        int index = 0;
+        for (int i = 0; i < fields.length; i++) {
+            Schema.Field avroField = avroFields.get(i);
+            Schema fieldSchema = avroField.schema();
+            if (fieldSchema.getType() == Schema.Type.NULL) {
+                fields[i] = new Step(avroField.name(), -1, Schema.Type.NULL, -1, null, null, 0);
+                continue;
+            }
+            int nullBranch = -1;
+            if (fieldSchema.getType() == Schema.Type.UNION) {
+                List<Schema> branches = fieldSchema.getTypes();
+                if (branches.size() == 2 && branches.get(0).getType() == Schema.Type.NULL) {
+                    nullBranch = 0;
+                } else if (branches.size() == 2 && branches.get(1).getType() == Schema.Type.NULL) {
+                    nullBranch = 1;
+                } else {
+                    throw new UnsupportedOperationException("union field " + avroField.name());
+                }
+                fieldSchema = branches.get(1 - nullBranch);
+            }
+            if (outputSchema != null && outputSchema.getField(avroField.name()) != null) {
+                fields[i] = compileValue(avroField.name(), index, nullBranch, fieldSchema, groupType.getType(index));
+                index++;
+            } else {
+                fields[i] = compileValue(avroField.name(), -1, nullBranch, fieldSchema, null);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @param parquetType null if the value is skipped
+     */
+    private static Step compileValue(String name, int index, int nullBranch, Schema schema, Type parquetType) {
+        if (parquetType != null) {
+            name = parquetType.getName();
+        }
+        switch (schema.getType()) {
+            case BOOLEAN:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+            case BYTES:
+            case STRING:
+                return new Step(name, index, schema.getType(), nullBranch, null, null, 0);
+            case FIXED:
+                return new Step(name, index, schema.getType(), nullBranch, null, null, schema.getFixedSize());
+            case ENUM:
+                List<String> symbolNames = schema.getEnumSymbols();
+                Binary[] symbols = new Binary[symbolNames.size()];
+                for (int i = 0; i < symbols.length; i++) {
+                    symbols[i] = Binary.fromString(symbolNames.get(i));
+                }
+                return new Step(name, index, schema.getType(), nullBranch, null, symbols, 0);
+            case RECORD:
+                //nested records are written whole
+                return new Step(name, index, schema.getType(), nullBranch, parquetType == null
+                        ? compileFields(schema, null, null) : compileFields(schema, schema, parquetType.asGroupType()), null, 0);
+            default:
+                throw new UnsupportedOperationException(schema.getType() + " field " + name);
+        }
+    }
+
+    /**
+     * Walks the record at the position of the decoder without writing it - a record that passes is written by write()
+     * without errors. Called when the frame is decoded, so a bad payload is dropped like one the DatumReader rejects
+     */
+    public void validate(ByteArrayDecoder in) throws IOException {
+        skipFields(steps, in);
+    }
+
+    /**
+     * Writes the fields of the validated record at the position of the decoder - the caller starts and ends the message
+     */
+    public void write(ByteArrayDecoder in, RecordConsumer out) throws IOException {
+        writeFields(steps, in, out);
+    }
+
+    private static void skipFields(Step[] fields, ByteArrayDecoder in) throws IOException {
+        for (Step field : fields) {
+            if (field.nullBranch >= 0) {
+                int branch = in.readIndex();
+                if (branch == field.nullBranch) {
+                    continue;
+                }
+                if (branch != 1 - field.nullBranch) {
+                    throw new IOException("Invalid union branch " + branch + " of field " + field.name);
+                }
+            }
+            skipValue(field, in);
+        }
+    }
+
+    private static void skipValue(Step field, ByteArrayDecoder in) throws IOException {
+        switch (field.type) {
+            case NULL:
+                break;
+            case BOOLEAN:
+                in.readBoolean();
+                break;
+            case INT:
+            case ENUM:
+                int value = in.readInt();
+                if (field.symbols != null && (value < 0 || value >= field.symbols.length)) {
+                    throw new IOException("Invalid symbol " + value + " of enum field " + field.name);
+                }
+                break;
+            case LONG:
+                in.readLong();
+                break;
+            case FLOAT:
+                in.skipFixed(4);
+                break;
+            case DOUBLE:
+                in.skipFixed(8);
+                break;
+            case BYTES:
+            case STRING:
+                in.skipBytes();
+                break;
+            case FIXED:
+                in.skipFixed(field.fixedSize);
+                break;
+            case RECORD:
+                skipFields(field.fields, in);
+                break;
+        }
+    }
+
+    private static void writeFields(Step[] fields, ByteArrayDecoder in, RecordConsumer out) throws IOException {
+        for (Step field : fields) {
+            if (field.nullBranch >= 0 && in.readIndex() == field.nullBranch) {
+                //null values of optional fields are left out
+                continue;
+            }
+            if (field.index < 0) {
+                skipValue(field, in);
+                continue;
+            }
+            out.startField(field.name, field.index);
+            switch (field.type) {
+                case BOOLEAN:
+                    out.addBoolean(in.readBoolean());
+                    break;
+                case INT:
+                    out.addInteger(in.readInt());
+                    break;
+                case LONG:
+                    out.addLong(in.readLong());
+                    break;
+                case FLOAT:
+                    out.addFloat(in.readFloat());
+                    break;
+                case DOUBLE:
+                    out.addDouble(in.readDouble());
+                    break;
+                case BYTES:
+                case STRING:
+                    int length = in.readLengthPrefix();
+                    out.addBinary(Binary.fromByteArray(in.buffer(), in.position(), length));
+                    in.skipFixed(length);
+                    break;
+                case FIXED:
+                    out.addBinary(Binary.fromByteArray(in.buffer(), in.position(), field.fixedSize));
+                    in.skipFixed(field.fixedSize);
+                    break;
+                case ENUM:
+                    out.addBinary(field.symbols[in.readEnum()]);
+                    break;
+                case RECORD:
+                    out.startGroup();
+                    writeFields(field.fields, in, out);
+                    out.endGroup();
+                    break;
+            }
+            out.endField(field.name, field.index);
+        }
+    }
+}
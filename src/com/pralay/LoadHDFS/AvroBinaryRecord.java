@@ -0,0 +1,21 @@
+package com.pralay.LoadHDFS;
+
+/*
+The binary Avro payload of a frame, left undecoded - written to parquet by AvroBinaryWriteSupport
+Points into the Kafka message bytes, which are not reused by the consumer
+ */
+public class AvroBinaryRecord {
+    byte[] bytes;
+    int offset;
+    int length;
+
+    void set(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String toString() {
+        return "AvroBinaryRecord::offset=" + offset + "::length=" + length;
+    }
+}
@@ -0,0 +1,61 @@
+package com.pralay.LoadHDFS;
+
+/*
+Parquet WriteSupport for records kept as their binary Avro encoding (input.adapter.<topic>.parquet.direct.write)
+The payload is written through the AvroBinaryPlan of its schema straight into the column writers, no GenericRecord is
+built. The footer carries the same metadata as OffsetRangeWriteSupport: the Avro schema under the key AvroWriteSupport
+uses, so the files are read back by AvroParquetReader like any other, and the Kafka offset ranges
+ */
+
+import org.apache.hadoop.conf.Configuration;
+import parquet.hadoop.api.WriteSupport;
+import parquet.io.ParquetEncodingException;
+import parquet.io.api.RecordConsumer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class AvroBinaryWriteSupport extends WriteSupport<AvroBinaryRecord> implements OffsetRangeFooter {
+    static final String AVRO_SCHEMA_KEY = "parquet.avro.schema";
+
+    private final AvroBinaryPlan plan;
+    private final ByteArrayDecoder decoder = new ByteArrayDecoder();
+    private final Map<String, String> footerMetaData = new HashMap<String, String>();
+    private RecordConsumer recordConsumer;
+
+    public AvroBinaryWriteSupport(AvroBinaryPlan plan) {
+        this.plan = plan;
+    }
+
+    public WriteContext init(Configuration configuration) {
+        Map<String, String> extraMetaData = new HashMap<String, String>();
+        extraMetaData.put(AVRO_SCHEMA_KEY, plan.avroSchema.toString());
+        return new WriteContext(plan.parquetSchema, extraMetaData);
+    }
+
+    public void prepareForWrite(RecordConsumer recordConsumer) {
+        this.recordConsumer = recordConsumer;
+    }
+
+    public void write(AvroBinaryRecord record) {
+        decoder.reset(record.bytes, record.offset, record.length);
+        recordConsumer.startMessage();
+        try {
+            plan.write(decoder, recordConsumer);
+        } catch (IOException e) {
+            //the payload was validated when the frame was decoded
+            throw new ParquetEncodingException("Could not write record of schema " + plan.avroSchema.getFullName(), e);
+        }
+        recordConsumer.endMessage();
+    }
+
+    public void setOffsetRanges(String topicName, String offsetRanges) {
+        footerMetaData.put(OffsetRangeWriteSupport.TOPIC_KEY, topicName);
+        footerMetaData.put(OffsetRangeWriteSupport.OFFSET_RANGES_KEY, offsetRanges);
+    }
+
+    public FinalizedWriteContext finalizeWrite() {
+        return new FinalizedWriteContext(footerMetaData);
+    }
+}
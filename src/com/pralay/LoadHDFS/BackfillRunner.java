@@ -0,0 +1,298 @@
+package com.pralay.LoadHDFS;
+
+/*
+Backfill mode: re-reads explicit offset ranges of topic partitions (-backfill) and writes them to their own output
+root (-backfillOutput), then the process exits
+The partitions are assigned to the consumers directly (assign()) - no consumer group, no rebalances and no offsets are
+committed, the live consumers of the topic are not affected. Every range is split into chunks of -backfillChunk offsets
+and the chunks are read by a pool of -backfillWorkers workers, each with its own consumer and HDFSBatchWriter, so a
+single partition is read by many workers at the same time. The files of a chunk are tagged with the first offset of
+the chunk, so the files of the chunks of one partition never clash
+Ranges are <topic>:<partition>:<first offset>-<last offset>, comma separated - the last offset is included. Without a
+last offset the range ends at the end of the partition at start up. Ranges are cut to the offsets the partition still has
+ */
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BackfillRunner {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+    public static final long DEFAULT_CHUNK_SIZE = 1000000L;
+
+    /**
+     * Offsets of a partition to read - first and last included, last is -1 up to the end of the partition
+     */
+    static final class Range {
+        final String topic;
+        final int partition;
+        final long firstOffset;
+        final long lastOffset;
+
+        Range(String topic, int partition, long firstOffset, long lastOffset) {
+            this.topic = topic;
+            this.partition = partition;
+            this.firstOffset = firstOffset;
+            this.lastOffset = lastOffset;
+        }
+
+        TopicPartition topicPartition() {
+            return new TopicPartition(topic, partition);
+        }
+
+        public String toString() {
+            return topic + ":" + partition + ":" + firstOffset + "-" + (lastOffset < 0L ? "" : String.valueOf(lastOffset));
+        }
+    }
+
+    private final List<Range> ranges;
+    private final String outputDirectory;
+    private final int numWorkers;
+    private final long chunkSize;
+    private volatile boolean running = true;
+    private ExecutorService workers;
+
+    public BackfillRunner(List<Range> ranges, String outputDirectory, int numWorkers, long chunkSize) {
+        this.ranges = ranges;
+        this.outputDirectory = outputDirectory;
+        this.numWorkers = Math.max(1, numWorkers);
+        this.chunkSize = Math.max(1L, chunkSize);
+    }
+
+    /**
+     * @param spec <topic>:<partition>:<first offset>-[<last offset>], comma separated
+     * @throws IllegalArgumentException if a range is not valid
+     */
+    public static List<Range> parseRanges(String spec) {
+        List<Range> ranges = new ArrayList<Range>();
+        for (String rangeStr : spec.split(",")) {
+            rangeStr = rangeStr.trim();
+            if (rangeStr.isEmpty()) {
+                continue;
+            }
+            //topic names may contain ':' - the partition and offsets are the last two parts
+            int offsetsIdx = rangeStr.lastIndexOf(':');
+            int partitionIdx = offsetsIdx > 0 ? rangeStr.lastIndexOf(':', offsetsIdx - 1) : -1;
+            int dashIdx = rangeStr.indexOf('-', offsetsIdx + 1);
+            if (partitionIdx <= 0 || dashIdx < 0) {
+                throw new IllegalArgumentException("Invalid backfill range " + rangeStr + " - expected <topic>:<partition>:<first offset>-<last offset>");
+            }
+            try {
+                String lastStr = rangeStr.substring(dashIdx + 1).trim();
+                Range range = new Range(rangeStr.substring(0, partitionIdx).trim(),
+                        Integer.parseInt(rangeStr.substring(partitionIdx + 1, offsetsIdx).trim()),
+                        Long.parseLong(rangeStr.substring(offsetsIdx + 1, dashIdx).trim()),
+                        lastStr.isEmpty() ? -1L : Long.parseLong(lastStr));
+                if (range.partition < 0 || range.firstOffset < 0L || (range.lastOffset >= 0L && range.lastOffset < range.firstOffset)) {
+                    throw new IllegalArgumentException("Invalid backfill range " + rangeStr);
+                }
+                ranges.add(range);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid backfill range " + rangeStr + " - " + e.getMessage());
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Reads all ranges and waits until they are written
+     * @return true if every offset of the ranges was read and its files were moved to the output directory
+     */
+    public boolean run() throws InterruptedException {
+        List<Range> chunks = split(resolve(ranges));
+        if (chunks.isEmpty()) {
+            log.warn("Backfill: no offsets to read");
+            return true;
+        }
+        log.info("Backfill of " + ranges + " to " + outputDirectory + ": " + chunks.size() + " chunks on " + numWorkers + " workers");
+        final AtomicInteger workerIds = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.min(numWorkers, chunks.size()), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BackfillWorker::" + workerIds.getAndIncrement());
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        Map<Range, Future<Boolean>> results = new LinkedHashMap<Range, Future<Boolean>>();
+        for (Range chunk : chunks) {
+            results.put(chunk, workers.submit(new ChunkReader(chunk)));
+        }
+        workers.shutdown();
+        int failed = 0;
+        for (Map.Entry<Range, Future<Boolean>> result : results.entrySet()) {
+            boolean done = false;
+            try {
+                done = result.getValue().get();
+            } catch (ExecutionException e) {
+                log.error("Backfill of " + result.getKey() + " failed", e.getCause());
+            }
+            if (!done) {
+                failed++;
+            }
+        }
+        log.info("Backfill finished in " + (System.currentTimeMillis() - startTime) / 1000L + "s - "
+                + (chunks.size() - failed) + " of " + chunks.size() + " chunks complete");
+        return failed == 0;
+    }
+
+    /**
+     * Stops the workers after the records they are writing - the files written so far are closed and moved
+     */
+    public void stopRunning() {
+        running = false;
+    }
+
+    /**
+     * Consumer of a worker - no group.id, the partitions are assigned and nothing is committed
+     */
+    Consumer<String, byte[]> createConsumer() {
+        Properties props = new Properties();
+        props.put("bootstrap.servers", KafkaToLoadHdfs.config.kafkaBootStrap());
+        props.put("enable.auto.commit", "false");
+        //a first offset that is no longer in the partition starts the range at its first offset still there
+        props.put("auto.offset.reset", "earliest");
+        props.put("request.timeout.ms", KafkaToLoadHdfs.config.kafkaRequestTimeout());
+        props.put("fetch.max.wait.ms", KafkaToLoadHdfs.config.kafkaFetchMaxWait());
+        props.put("key.deserializer", StringDeserializer.class.getName());
+        props.put("value.deserializer", ByteArrayDeserializer.class.getName());
+        return new KafkaConsumer<String, byte[]>(props);
+    }
+
+    //Cuts the ranges to the offsets the partitions have and sets the open last offsets
+    private List<Range> resolve(List<Range> ranges) {
+        Set<TopicPartition> partitions = new HashSet<TopicPartition>();
+        for (Range range : ranges) {
+            partitions.add(range.topicPartition());
+        }
+        Map<TopicPartition, Long> firstOffsets = new HashMap<TopicPartition, Long>();
+        Map<TopicPartition, Long> endOffsets = new HashMap<TopicPartition, Long>();
+        Consumer<String, byte[]> consumer = createConsumer();
+        try {
+            consumer.assign(new ArrayList<TopicPartition>(partitions));
+            consumer.seekToBeginning(partitions);
+            for (TopicPartition tp : partitions) {
+                firstOffsets.put(tp, consumer.position(tp));
+            }
+            consumer.seekToEnd(partitions);
+            for (TopicPartition tp : partitions) {
+                endOffsets.put(tp, consumer.position(tp));
+            }
+        } finally {
+            consumer.close();
+        }
+        List<Range> resolved = new ArrayList<Range>();
+        for (Range range : ranges) {
+            TopicPartition tp = range.topicPartition();
+            long first = Math.max(range.firstOffset, firstOffsets.get(tp));
+            long last = endOffsets.get(tp) - 1L;
+            if (range.lastOffset >= 0L) {
+                last = Math.min(range.lastOffset, last);
+            }
+            if (first != range.firstOffset || last != range.lastOffset) {
+                log.info("Backfill range " + range + " cut to the offsets of the partition: " + first + "-" + last);
+            }
+            if (first <= last) {
+                resolved.add(new Range(range.topic, range.partition, first, last));
+            } else {
+                log.warn("Backfill range " + range + " has no offsets left in the partition - skipped");
+            }
+        }
+        return resolved;
+    }
+
+    private List<Range> split(List<Range> ranges) {
+        List<Range> chunks = new ArrayList<Range>();
+        for (Range range : ranges) {
+            for (long first = range.firstOffset; first <= range.lastOffset; first += chunkSize) {
+                chunks.add(new Range(range.topic, range.partition, first, Math.min(range.lastOffset, first + chunkSize - 1L)));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Reads the offsets of a chunk and writes them - the files still open at the end of the chunk are closed
+     */
+    private final class ChunkReader implements Callable<Boolean> {
+        private final Range chunk;
+        //offset after the last record whose file was moved to the output directory
+        private long writtenOffset;
+
+        ChunkReader(Range chunk) {
+            this.chunk = chunk;
+            this.writtenOffset = chunk.firstOffset;
+        }
+
+        public Boolean call() {
+            if (!running) {
+                return false;
+            }
+            TopicPartition tp = chunk.topicPartition();
+            long startTime = System.currentTimeMillis();
+            HDFSBatchWriter batchWriter = new HDFSBatchWriter(chunk.topic, new HDFSBatchWriter.OffsetCommitter() {
+                public void commit(TopicPartition partition, OffsetAndMetadata offset) {
+                    writtenOffset = offset.offset();
+                }
+            }, outputDirectory, "bf" + chunk.firstOffset, null);
+            //records are written right after they are decoded, the payloads are not kept
+            FrameDecoder frameDecoder = new FrameDecoder(KafkaToLoadHdfs.schemaRegistry, chunk.topic, false);
+            Consumer<String, byte[]> consumer = null;
+            boolean reachedEnd = false;
+            long numRecords = 0L;
+            try {
+                consumer = createConsumer();
+                consumer.assign(Collections.singletonList(tp));
+                consumer.seek(tp, chunk.firstOffset);
+                int pollTimeOut = KafkaToLoadHdfs.config.kafkaPollTimeout();
+                while (running && !reachedEnd) {
+                    ConsumerRecords<String, byte[]> records = consumer.poll((long) pollTimeOut);
+                    for (ConsumerRecord<String, byte[]> record : records) {
+                        if (record.offset() > chunk.lastOffset) {
+                            break;
+                        }
+                        batchWriter.write(DecodedRecord.decode(frameDecoder, record));
+                        numRecords++;
+                        //Check if file is ready to be closed
+                        batchWriter.completeWritingFiles(true);
+                    }
+                    if (records.isEmpty()) {
+                        batchWriter.completeWritingFiles(true);
+                    }
+                    //offsets missing from a compacted partition are passed over by the position as well
+                    reachedEnd = consumer.position(tp) > chunk.lastOffset;
+                }
+            } catch (Exception e) {
+                log.error("Backfill of " + chunk + " stopped", e);
+                reachedEnd = false;
+            } finally {
+                batchWriter.completeWritingFiles(false);
+                batchWriter.shutdown();
+                if (consumer != null) {
+                    consumer.close();
+                }
+            }
+            //records in files left in the tmp directory are not in the output
+            int failedFiles = batchWriter.failedFiles();
+            boolean complete = reachedEnd && failedFiles == 0;
+            log.info("Backfill of " + chunk + (complete ? " complete: " : " incomplete: ") + numRecords + " records in "
+                    + (System.currentTimeMillis() - startTime) + "ms, files moved up to offset " + writtenOffset
+                    + (failedFiles > 0 ? ", " + failedFiles + " files failed to close or move" : ""));
+            return complete;
+        }
+    }
+}
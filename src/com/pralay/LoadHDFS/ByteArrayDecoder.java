@@ -0,0 +1,251 @@
+package com.pralay.LoadHDFS;
+
+/*
+Avro binary decoder reading directly from a byte array slice
+Unlike BinaryDecoder it can be re-pointed at a new slice without allocating (BinaryDecoder.configure() creates a new byte
+source every time) and it exposes its position, so the frame decoder knows exactly where each section of a frame ends
+ */
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.util.Utf8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ByteArrayDecoder extends Decoder {
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    public ByteArrayDecoder() {
+        this.buf = new byte[0];
+    }
+
+    /**
+     * Points the decoder at length bytes of buf starting at offset
+     */
+    public ByteArrayDecoder reset(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public int remaining() {
+        return limit - pos;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Reads the length of a string or bytes value and leaves the position at its first byte, so the value can be used in
+     * place from buffer() - skipFixed() moves past it
+     */
+    public int readLengthPrefix() throws IOException {
+        return readLength();
+    }
+
+    private void ensure(int n) throws IOException {
+        if (limit - pos < n) {
+            throw new EOFException("Need " + n + " bytes at position " + pos + ", only " + (limit - pos) + " left");
+        }
+    }
+
+    @Override
+    public void readNull() throws IOException {
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        ensure(1);
+        return buf[pos++] != 0;
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        int n = 0;
+        int shift = 0;
+        int b;
+        do {
+            ensure(1);
+            b = buf[pos++] & 0xff;
+            n |= (b & 0x7f) << shift;
+            shift += 7;
+            if (shift > 35) {
+                throw new AvroRuntimeException("Invalid int encoding");
+            }
+        } while ((b & 0x80) != 0);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        long n = 0;
+        int shift = 0;
+        int b;
+        do {
+            ensure(1);
+            b = buf[pos++] & 0xff;
+            n |= (long) (b & 0x7f) << shift;
+            shift += 7;
+            if (shift > 70) {
+                throw new AvroRuntimeException("Invalid long encoding");
+            }
+        } while ((b & 0x80) != 0);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        ensure(4);
+        int bits = (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8) | ((buf[pos + 2] & 0xff) << 16) | ((buf[pos + 3] & 0xff) << 24);
+        pos += 4;
+        return Float.intBitsToFloat(bits);
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        ensure(8);
+        long bits = (buf[pos] & 0xffL) | ((buf[pos + 1] & 0xffL) << 8) | ((buf[pos + 2] & 0xffL) << 16) | ((buf[pos + 3] & 0xffL) << 24)
+                | ((buf[pos + 4] & 0xffL) << 32) | ((buf[pos + 5] & 0xffL) << 40) | ((buf[pos + 6] & 0xffL) << 48) | ((buf[pos + 7] & 0xffL) << 56);
+        pos += 8;
+        return Double.longBitsToDouble(bits);
+    }
+
+    @Override
+    public Utf8 readString(Utf8 old) throws IOException {
+        int length = readLength();
+        Utf8 result = (old != null ? old : new Utf8());
+        result.setByteLength(length);
+        System.arraycopy(buf, pos, result.getBytes(), 0, length);
+        pos += length;
+        return result;
+    }
+
+    @Override
+    public String readString() throws IOException {
+        return readString(null).toString();
+    }
+
+    @Override
+    public void skipString() throws IOException {
+        doSkip(readLength());
+    }
+
+    @Override
+    public ByteBuffer readBytes(ByteBuffer old) throws IOException {
+        int length = readLength();
+        ByteBuffer result;
+        if (old != null && length <= old.capacity()) {
+            result = old;
+            result.clear();
+        } else {
+            result = ByteBuffer.allocate(length);
+        }
+        result.put(buf, pos, length);
+        result.flip();
+        pos += length;
+        return result;
+    }
+
+    @Override
+    public void skipBytes() throws IOException {
+        doSkip(readLength());
+    }
+
+    @Override
+    public void readFixed(byte[] bytes, int start, int length) throws IOException {
+        ensure(length);
+        System.arraycopy(buf, pos, bytes, start, length);
+        pos += length;
+    }
+
+    @Override
+    public void skipFixed(int length) throws IOException {
+        doSkip(length);
+    }
+
+    @Override
+    public int readEnum() throws IOException {
+        return readInt();
+    }
+
+    @Override
+    public long readArrayStart() throws IOException {
+        return readItemCount();
+    }
+
+    @Override
+    public long arrayNext() throws IOException {
+        return readItemCount();
+    }
+
+    @Override
+    public long skipArray() throws IOException {
+        return skipItems();
+    }
+
+    @Override
+    public long readMapStart() throws IOException {
+        return readItemCount();
+    }
+
+    @Override
+    public long mapNext() throws IOException {
+        return readItemCount();
+    }
+
+    @Override
+    public long skipMap() throws IOException {
+        return skipItems();
+    }
+
+    @Override
+    public int readIndex() throws IOException {
+        return readInt();
+    }
+
+    private int readLength() throws IOException {
+        int length = readInt();
+        if (length < 0) {
+            throw new AvroRuntimeException("Malformed data. Length is negative: " + length);
+        }
+        ensure(length);
+        return length;
+    }
+
+    private void doSkip(long length) throws IOException {
+        if (length < 0 || length > limit - pos) {
+            throw new EOFException("Cannot skip " + length + " bytes at position " + pos);
+        }
+        pos += (int) length;
+    }
+
+    private long readItemCount() throws IOException {
+        long count = readLong();
+        if (count < 0) {
+            //negative count is followed by the block size in bytes
+            readLong();
+            count = -count;
+        }
+        return count;
+    }
+
+    //Skips whole blocks that carry their byte size, returns the item count of the first block that has to be skipped item by item
+    private long skipItems() throws IOException {
+        long count = readLong();
+        while (count < 0) {
+            doSkip(readLong());
+            count = readLong();
+        }
+        return count;
+    }
+}
@@ -38,6 +38,34 @@ public class CommandOptions {
         return appVersionOption;
     }
 
+    @Option(name = "-backfill", usage = "backfill mode - comma separated offset ranges to read, the last offset included. I.e -backfill Protocol1:0:1000-2000,Protocol1:3:500-")
+    private String backfillOption = null;
+
+    public String getBackfillOption() {
+        return backfillOption;
+    }
+
+    @Option(name = "-backfillOutput", usage = "output directory of the backfill, required with -backfill. I.e -backfillOutput /data/backfill")
+    private String backfillOutputOption = null;
+
+    public String getBackfillOutputOption() {
+        return backfillOutputOption;
+    }
+
+    @Option(name = "-backfillWorkers", usage = "number of backfill workers reading the ranges in parallel. I.e -backfillWorkers 16")
+    private int backfillWorkersOption = 4;
+
+    public int getBackfillWorkersOption() {
+        return backfillWorkersOption;
+    }
+
+    @Option(name = "-backfillChunk", usage = "number of offsets of a range read by one backfill worker. I.e -backfillChunk 1000000")
+    private long backfillChunkOption = BackfillRunner.DEFAULT_CHUNK_SIZE;
+
+    public long getBackfillChunkOption() {
+        return backfillChunkOption;
+    }
+
     // receives other command line parameters than options
     @Argument
     private List<String> arguments = new ArrayList<String>();
@@ -69,6 +97,16 @@ public class CommandOptions {
             KafkaToLoadHdfs.topic = this.topicOption;
             KafkaToLoadHdfs.configFileName = this.configfilenameOption;
             KafkaToLoadHdfs.appVersion = this.appVersionOption;
+            if (this.backfillOption != null) {
+                if (this.backfillOutputOption == null || this.backfillOutputOption.isEmpty()) {
+                    throw new CmdLineException("-backfillOutput is required with -backfill");
+                }
+                try {
+                    KafkaToLoadHdfs.backfillRanges = BackfillRunner.parseRanges(this.backfillOption);
+                } catch (IllegalArgumentException e) {
+                    throw new CmdLineException(e.getMessage());
+                }
+            }
 
         } catch (CmdLineException e) {
             // if there's a problem in the command line,
@@ -0,0 +1,65 @@
+package com.pralay.LoadHDFS;
+
+/*
+A record of a topic partition after frame decoding - handed from the thread that decoded it to the thread that writes it
+Records that were dropped are passed on as well, so the writer sees every offset of the partition in order and keeps
+the polled / dropped counters of the partition
+ */
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DecodedRecord {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    final int partition;
+    final long offset;
+    //null if the record is not to be written
+    SchemaLookup.Entry schemaEntry;
+    Object payload;
+    long timestamp;
+    //HEADER.KEY and SessionTestRecord.imsi - for hash bucketing of the output files
+    long headerKey;
+    long imsi;
+    boolean dropped;
+
+    public DecodedRecord(int partition, long offset) {
+        this.partition = partition;
+        this.offset = offset;
+    }
+
+    /**
+     * Decodes the frame of a polled record. Decoding errors are logged and the record is returned as dropped
+     * frameDecoder has to be created with payload reuse off, the payload is kept beyond the next decode() call
+     */
+    static DecodedRecord decode(FrameDecoder frameDecoder, ConsumerRecord<String, ?> record) {
+        DecodedRecord decoded = new DecodedRecord(record.partition(), record.offset());
+        byte[] msgValue = (byte[]) record.value();
+        if (msgValue == null) {
+            return decoded;
+        }
+        try {
+            if (frameDecoder.decode(msgValue) == FrameDecoder.Result.NO_SCHEMA) {
+                log.error("No schema found for: {}.Not processing this record", frameDecoder.header);
+                decoded.dropped = true;
+                return decoded;
+            }
+            decoded.schemaEntry = frameDecoder.schemaEntry;
+            decoded.payload = frameDecoder.payload;
+            decoded.timestamp = frameDecoder.sessionRecord.timestamp;
+            decoded.headerKey = frameDecoder.header.KEY;
+            decoded.imsi = frameDecoder.sessionRecord.imsi;
+        } catch (Exception e) {
+            log.error("Error in processing record", e);
+            log.error("Error in processing this record: Topic=" + record.topic() + ":Partition=" + record.partition() + ":Offset=" + record.offset());
+            AdapterConsumerThread.printMsgBytes(msgValue);
+            decoded.dropped = true;
+        }
+        return decoded;
+    }
+
+    public String toString() {
+        return "partition=" + partition + "::offset=" + offset + "::schema=" + schemaEntry + "::dropped=" + dropped;
+    }
+}
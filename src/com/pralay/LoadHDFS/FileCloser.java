@@ -0,0 +1,88 @@
+package com.pralay.LoadHDFS;
+
+/*
+Closes the files of an HDFSBatchWriter on a small thread pool, so that flushing the last row group and the rename to the
+output directory do not hold up the thread that polls / writes the records
+The number of closes in flight is bounded: every close keeps the buffered row group of its files in memory until it is
+written out, so submit() blocks the writing thread once the limit is reached
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FileCloser {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    //log when the writing thread had to wait this long for a close to complete
+    private static final long SLOW_SUBMIT_MS = 1000L;
+
+    private final String name;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+
+    public FileCloser(final String name, int threads, int maxInFlight) {
+        this.name = name;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FileCloser::" + name + "::" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        log.info("Closing files of " + name + " on " + threads + " threads, at most " + maxInFlight + " in flight");
+    }
+
+    /**
+     * Runs the close on the pool - waits first if the maximum number of closes is in flight
+     */
+    public void submit(final Runnable close) {
+        long start = System.currentTimeMillis();
+        inFlight.acquireUninterruptibly();
+        long waited = System.currentTimeMillis() - start;
+        if (waited >= SLOW_SUBMIT_MS) {
+            log.warn("Waited " + waited + " ms for a file close slot: " + name);
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        close.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //shutting down - close on the calling thread
+            try {
+                close.run();
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Stops the pool once the closes submitted so far are done
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5L, TimeUnit.MINUTES)) {
+                log.error("File closes of " + name + " did not complete");
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for the file closes of " + name, e);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.pralay.LoadHDFS;
+
+/*
+Decodes the frames published on the adapter topics. A frame is laid out as
+    [version:1][type:1][length:4 big-endian][format:1][HEADER + raw event:length-1][6 bytes][SessionTestRecord]
+One instance is owned by a single consumer thread and reused for every record - the HEADER and SessionTestRecord
+are read in place from the message bytes into reused objects, the decoder and the payload DatumReaders are cached
+Payloads are read with the schema they were written with, resolved to the output schema of the entry. The ResolvingDecoder
+of each (writer, reader) pair is built once and kept with its reader, so the resolution costs nothing per record
+Created for a topic, the schemas follow the SchemaRegistry: the lookup is rebuilt when the schemas change and a record
+without a schema makes the registry fetch it from ZK
+Payloads of schemas with an AvroBinaryPlan are only validated and passed on as an AvroBinaryRecord pointing into the
+message bytes, they are decoded by the parquet writer
+ */
+
+import com.pralay.HEADER;
+import com.pralay.SessionTestRecord;
+import org.apache.avro.Schema;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.ResolvingDecoder;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.util.Utf8;
+
+import java.io.IOException;
+
+public class FrameDecoder {
+    static final int LENGTH_OFFSET = 2;
+    static final int FORMAT_OFFSET = 6;
+    static final int RECORD_OFFSET = 7;
+    //The session record starts this many bytes after the end of the raw event
+    static final int SESSION_RECORD_GAP = 7;
+
+    public enum Result {
+        DECODED,
+        NO_SCHEMA
+    }
+
+    private SchemaLookup schemaLookup;
+    //null if the schemas are fixed
+    private final SchemaRegistry registry;
+    private final String topicName;
+    private long schemaGeneration;
+    //false when the payload is handed to another thread - every record then gets its own payload object
+    private final boolean reusePayloads;
+    private final ByteArrayDecoder decoder = new ByteArrayDecoder();
+    private PayloadReader[] payloadReaders;
+    private Object[] payloads;
+    private final AvroBinaryRecord binaryPayload = new AvroBinaryRecord();
+
+    //Results of the last decode() - only valid until the next call
+    byte version;
+    byte type;
+    int length;
+    byte format;
+    final HEADER header = new HEADER();
+    final SessionTestRecord sessionRecord = new SessionTestRecord();
+    SchemaLookup.Entry schemaEntry;
+    Object payload;
+
+    public FrameDecoder(SchemaLookup schemaLookup) {
+        this(schemaLookup, true);
+    }
+
+    public FrameDecoder(SchemaLookup schemaLookup, boolean reusePayloads) {
+        this(schemaLookup, reusePayloads, null, null);
+    }
+
+    /**
+     * Decodes with the schemas of the registry as resolved for the topic - see SchemaRegistry.lookupFor()
+     */
+    public FrameDecoder(SchemaRegistry registry, String topicName, boolean reusePayloads) {
+        this(registry.lookupFor(topicName), reusePayloads, registry, topicName);
+    }
+
+    private FrameDecoder(SchemaLookup schemaLookup, boolean reusePayloads, SchemaRegistry registry, String topicName) {
+        this.schemaLookup = schemaLookup;
+        this.registry = registry;
+        this.topicName = topicName;
+        //checked against the registry on the first decode()
+        this.schemaGeneration = -1L;
+        this.reusePayloads = reusePayloads;
+        this.payloadReaders = new PayloadReader[schemaLookup.size()];
+        this.payloads = new Object[schemaLookup.size()];
+        header.EVENT_VERSION = new Utf8();
+        header.EVENT_TYPE = new Utf8();
+        sessionRecord.eventName = new Utf8();
+        sessionRecord.result = new Utf8();
+    }
+
+    /**
+     * Decodes the frame in msgValue. Unless payload reuse is off, the payload object is reused for the next record with the
+     * same schema, so it has to be consumed (written out) before decode() is called again
+     */
+    public Result decode(byte[] msgValue) throws IOException {
+        int sessionOffset = readPrefix(msgValue);
+
+        decoder.reset(msgValue, RECORD_OFFSET, length - 1);
+        readHeader(decoder);
+
+        if (registry != null && registry.generation() != schemaGeneration) {
+            refreshSchemas();
+        }
+        schemaEntry = schemaLookup.get(header.EVENT_TYPE, header.EVENT_ID, header.EVENT_VERSION);
+        if (schemaEntry == null && registry != null && registry.fetch(header.EVENT_TYPE, header.EVENT_ID, header.EVENT_VERSION)) {
+            refreshSchemas();
+            schemaEntry = schemaLookup.get(header.EVENT_TYPE, header.EVENT_ID, header.EVENT_VERSION);
+        }
+        if (schemaEntry == null) {
+            payload = null;
+            return Result.NO_SCHEMA;
+        }
+        readPayload(msgValue, decoder);
+
+        decoder.reset(msgValue, sessionOffset, msgValue.length - sessionOffset);
+        readSessionRecord(decoder);
+        return Result.DECODED;
+    }
+
+    /**
+     * Reads the version, type, length and format bytes at the start of the frame
+     * @return offset of the SessionTestRecord in the frame
+     */
+    int readPrefix(byte[] msgValue) throws IOException {
+        if (msgValue.length < RECORD_OFFSET) {
+            throw new IOException("Frame too short: " + msgValue.length + " bytes");
+        }
+        version = msgValue[0];
+        type = msgValue[1];
+        length = ((msgValue[LENGTH_OFFSET] & 0xff) << 24) | ((msgValue[LENGTH_OFFSET + 1] & 0xff) << 16)
+                | ((msgValue[LENGTH_OFFSET + 2] & 0xff) << 8) | (msgValue[LENGTH_OFFSET + 3] & 0xff);
+        format = msgValue[FORMAT_OFFSET];
+        //Raw event record length includes the format byte
+        int sessionOffset = FORMAT_OFFSET + length + SESSION_RECORD_GAP;
+        if (length < 1 || sessionOffset > msgValue.length) {
+            throw new IOException("Invalid frame length " + length + " for a frame of " + msgValue.length + " bytes");
+        }
+        return sessionOffset;
+    }
+
+    /**
+     * Reads the payload of schemaEntry at the position of the decoder, right after the HEADER
+     */
+    void readPayload(byte[] msgValue, ByteArrayDecoder in) throws IOException {
+        if (schemaEntry.binaryPlan != null) {
+            int payloadOffset = in.position();
+            int payloadLength = in.remaining();
+            schemaEntry.binaryPlan.validate(in);
+            AvroBinaryRecord binaryRecord = reusePayloads ? binaryPayload : new AvroBinaryRecord();
+            binaryRecord.set(msgValue, payloadOffset, payloadLength);
+            payload = binaryRecord;
+        } else {
+            PayloadReader reader = payloadReaders[schemaEntry.id];
+            if (reader == null) {
+                //fields left out of the output schema are skipped by the reader, not decoded
+                reader = new PayloadReader(schemaEntry.schema, schemaEntry.outputSchema);
+                payloadReaders[schemaEntry.id] = reader;
+            }
+            if (reusePayloads) {
+                payload = reader.readPayload(payloads[schemaEntry.id], in);
+                payloads[schemaEntry.id] = payload;
+            } else {
+                payload = reader.readPayload(null, in);
+            }
+        }
+    }
+
+    //GenericDatumReader.read() looks up the ResolvingDecoder of the schema pair in a thread local map for every record -
+    //this reader keeps its own
+    private static final class PayloadReader extends SpecificDatumReader<Object> {
+        private final ResolvingDecoder resolver;
+
+        PayloadReader(Schema writer, Schema reader) throws IOException {
+            super(writer, reader);
+            this.resolver = DecoderFactory.get().resolvingDecoder(writer, reader, null);
+        }
+
+        Object readPayload(Object reuse, Decoder in) throws IOException {
+            resolver.configure(in);
+            Object result = read(reuse, getExpected(), resolver);
+            resolver.drain();
+            return result;
+        }
+    }
+
+    //Entry ids change with the lookup - the per schema readers and payloads are created again
+    private void refreshSchemas() {
+        schemaGeneration = registry.generation();
+        schemaLookup = registry.lookupFor(topicName);
+        payloadReaders = new PayloadReader[schemaLookup.size()];
+        payloads = new Object[schemaLookup.size()];
+    }
+
+    //Field order follows HEADER.SCHEMA$ - read directly so the int and long fields are not boxed by a DatumReader
+    void readHeader(ByteArrayDecoder in) throws IOException {
+        header.EVENT_ID = in.readInt();
+        header.EVENT_VERSION = in.readString((Utf8) header.EVENT_VERSION);
+        header.EVENT_TYPE = in.readString((Utf8) header.EVENT_TYPE);
+        header.KEY = in.readLong();
+    }
+
+    //Field order follows SessionTestRecord.SCHEMA$
+    void readSessionRecord(ByteArrayDecoder in) throws IOException {
+        sessionRecord.eventName = in.readString((Utf8) sessionRecord.eventName);
+        sessionRecord.imsi = in.readLong();
+        sessionRecord.timestamp = in.readLong();
+        sessionRecord.duration = in.readLong();
+        sessionRecord.result = in.readString((Utf8) sessionRecord.result);
+    }
+}
@@ -0,0 +1,849 @@
+package com.pralay.LoadHDFS;
+
+/*
+This class batches the decoded records of the partitions of a topic into files - one open file per partition and schema
+A file is closed once the batch time, number of records or target file size of the topic has been reached, moved from the tmp directory to
+the output directory and the offset of the last record written to it is handed to the OffsetCommitter
+With input.adapter.<topic>.consolidate.partitions set, the records of all partitions go into one file per schema instead
+of one per partition and schema - the files are rolled together and the offset ranges of every partition in a file are
+stored in its footer metadata
+With input.adapter.<topic>.close.threads set, the files are closed and moved by a FileCloser while the records keep
+being written - the offsets are still handed to the OffsetCommitter by the writing thread, in the order the files were
+rolled, once the file and all files rolled before it are in the output directory
+A file that cannot be closed or moved to the output directory stays in the tmp directory and the offsets of its
+partitions are no longer committed by this writer - not those of the later files either - so its records are read again
+after a restart or by the next owner of the partition
+The buffered bytes of the open files are reported to the WriterMemoryManager - while the process is over its memory
+budget or open file limit, the writers using more than their share roll their largest / oldest files early
+The OutputLayout of the topic splits the files further into dt/hour and hash bucket directories - one file per directory
+The files are created and moved through the OutputSink of output.sink - HDFS or the local file system
+Not thread safe - an instance is owned by the single thread that writes the records of its partitions
+ */
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.hadoop.fs.Path;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parquet.avro.AvroSchemaConverter;
+import parquet.format.converter.ParquetMetadataConverter;
+import parquet.hadoop.ParquetFileReader;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.api.WriteSupport;
+import parquet.hadoop.metadata.BlockMetaData;
+import parquet.hadoop.metadata.ParquetMetadata;
+import parquet.schema.MessageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HDFSBatchWriter {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private static String TMP_DIR_NAME = "tmp";
+    private static final AtomicInteger WRITER_IDS = new AtomicInteger();
+
+    /**
+     * Receives the offset to commit for a partition once the file holding its records has been moved to the output directory
+     */
+    public interface OffsetCommitter {
+        void commit(TopicPartition tp, OffsetAndMetadata offset);
+    }
+
+    /**
+     * Told about every file closed and moved to the output directory - called on the thread closing the file, which
+     * may be a FileCloser thread
+     */
+    public interface CloseListener {
+        void fileClosed(String topicName, String fileName, long numRecords, long closeNanos);
+    }
+
+    private final String topicName;
+    private final int timeStep;
+    private final int numRecords;
+    private final String hdsfsOutputDirectory;
+    //appended to the partition name in the file names, null for none
+    private final String fileTag;
+    private final OffsetCommitter committer;
+    //null if nobody listens - set by the benchmarks
+    private final CloseListener closeListener;
+    //roll a file once its estimated size reaches this share of the target file size
+    private static final long TARGET_FILE_SIZE_PERCENT = 95L;
+    private static final long MIN_RECORDS_BETWEEN_SIZE_CHECKS = 100L;
+    private static final long MAX_RECORDS_BETWEEN_SIZE_CHECKS = 10000L;
+    //records written to a file between reports of its buffered bytes
+    private static final long RECORDS_BETWEEN_MEMORY_SAMPLES = 1000L;
+    //0 if files are only rolled on time and number of records
+    private final long targetFileSize;
+    //one file per schema for all partitions instead of one per partition and schema
+    private final boolean consolidatePartitions;
+    private final ParquetSettings parquetSettings;
+    private final OutputLayout layout;
+    //reused to look up the open file of a record
+    private final OutputFileKey fileKey = new OutputFileKey(null, 0L);
+    //Parquet schema of each Avro schema - converted once instead of for every file
+    private final Map<Schema, MessageType> parquetSchemas = new HashMap<Schema, MessageType>();
+    private final OutputSink sink;
+    private SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+    private final boolean eclipseEnv = System.getProperty("ECLIPSE_ENV") != null;
+
+    //num recs polled / dropped per partition - indexed by the partition id
+    private int[] numRecsPolled = new int[0];
+    private int[] numRecsDropped = new int[0];
+    //rawEventRecMap keys per partition id - so the key is not rebuilt for every record
+    private String[] partitionKeys = new String[0];
+    private HashMap<String, PartitionRecord> rawEventRecMap = new HashMap<String, PartitionRecord>();
+    //Partitions with a file that failed to close or move - their offsets are not committed any more, their records are
+    //no longer written and their later files are not moved. Added to on the FileCloser threads as well
+    private final Set<Integer> heldPartitions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    //files left in the tmp directory - counted on the FileCloser threads as well
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    //Partitions due for closing - only these are visited when checking if the batch is complete
+    private final RollScheduler rollScheduler;
+    private final List<PartitionRecord> duePartitions = new ArrayList<PartitionRecord>();
+    //null if the files are closed on the writing thread
+    private final FileCloser fileCloser;
+    //closes handed to the fileCloser, in the order the files were rolled - their offsets are committed in this order
+    private final ArrayDeque<CloseJob> closeJobs = new ArrayDeque<CloseJob>();
+    private final WriterMemoryManager memoryManager = WriterMemoryManager.get();
+    private final boolean trackMemory = ParquetSizeEstimator.isAvailable() && !eclipseEnv;
+
+    public HDFSBatchWriter(String topicName, OffsetCommitter committer) {
+        //Get the HDFS directory from the configuration
+        this(topicName, committer, null);
+    }
+
+    public HDFSBatchWriter(String topicName, OffsetCommitter committer, CloseListener closeListener) {
+        this(topicName, committer, KafkaToLoadHdfs.config.outputHDFSDirectory(), null, closeListener);
+    }
+
+    /**
+     * @param outputDirectory root of the output files instead of output.hdfs.directory
+     * @param fileTag appended to the partition name in the file names - keeps the files of writers that write the
+     *                same partition at the same time apart, null for none
+     * @param closeListener told about every file closed and moved, null for none
+     */
+    public HDFSBatchWriter(String topicName, OffsetCommitter committer, String outputDirectory, String fileTag,
+                           CloseListener closeListener) {
+        this.topicName = topicName;
+        this.committer = committer;
+        this.closeListener = closeListener;
+        hdsfsOutputDirectory = outputDirectory;
+        this.fileTag = fileTag;
+        sink = eclipseEnv || "local".equalsIgnoreCase(KafkaToLoadHdfs.config.outputSink())
+                ? new LocalOutputSink(KafkaToLoadHdfs.config.outputLocalFsync()) : new HdfsOutputSink();
+        timeStep = KafkaToLoadHdfs.config.getTopicBatchTimeInSeconds(topicName);
+        numRecords = KafkaToLoadHdfs.config.getTopicBatchNumRecords(topicName);
+        parquetSettings = ParquetSettings.forTopic(topicName);
+        layout = OutputLayout.forTopic(topicName);
+        consolidatePartitions = KafkaToLoadHdfs.config.getTopicConsolidatePartitions(topicName);
+        targetFileSize = ParquetSizeEstimator.isAvailable() ? KafkaToLoadHdfs.config.getTopicBatchSizeInBytes(topicName) : 0L;
+        rollScheduler = new RollScheduler(Math.max(64, timeStep + 1), System.currentTimeMillis() / 1000l);
+        int closeThreads = KafkaToLoadHdfs.config.getTopicCloseThreads(topicName);
+        fileCloser = closeThreads > 0 ? new FileCloser(topicName + "::" + WRITER_IDS.getAndIncrement(), closeThreads,
+                KafkaToLoadHdfs.config.getTopicCloseMaxInFlight(topicName, closeThreads * 2)) : null;
+        memoryManager.writerStarted();
+    }
+
+    /**
+     * Counts a record read from the partition
+     */
+    public void polled(int partition) {
+        ensureCounterCapacity(partition);
+        numRecsPolled[partition]++;
+    }
+
+    /**
+     * Counts a record of the partition that could not be processed
+     */
+    public void dropped(int partition) {
+        ensureCounterCapacity(partition);
+        numRecsDropped[partition]++;
+    }
+
+    /**
+     * Appends a decoded record to the open file of its partition and schema, opening the file if needed
+     */
+    public void write(int partition, long offset, SchemaLookup.Entry schemaEntry, Object rawEventRec, long timestamp,
+                      long headerKey, long imsi) throws IOException {
+        ensureCounterCapacity(partition);
+        if (!heldPartitions.isEmpty() && heldPartitions.contains(partition)) {
+            //read again from the last committed offset once the partition is revoked or the loader restarted
+            return;
+        }
+        Schema s = schemaEntry.outputSchema;
+        //This topic will receive data from multiple partitions - but we separate the records
+        //based on the partition - so the counter for the number of records is per partition
+        String key = partitionKeys[partition];
+        PartitionRecord partitionRec = rawEventRecMap.get(key);
+        if (partitionRec == null) {
+            partitionRec = new PartitionRecord();
+            partitionRec.topicName = topicName;
+            partitionRec.partitionId = partition;
+            partitionRec.startTime = System.currentTimeMillis() / 1000l;
+            partitionRec.firstTimeStamp = timestamp;
+            //open the file fow write
+            rawEventRecMap.put(key, partitionRec);
+            //the batch time is up once more than timeStep seconds have passed
+            rollScheduler.schedule(partitionRec, partitionRec.startTime + timeStep + 1);
+        }
+        partitionRec.endTimeStamp = timestamp;
+        partitionRec.numRecsDropped = numRecsDropped[partition];
+        partitionRec.numRecsPolled = numRecsPolled[partition];
+
+        fileKey.schema = s;
+        fileKey.bucket = layout.isFlat() ? 0L : layout.bucketOf(timestamp, headerKey, imsi);
+        RecordData recData = partitionRec.rawEventRecMap.get(fileKey);
+        if (recData == null) {
+            recData = new RecordData();
+            String partitionName = KafkaToLoadHdfs.config.getPartitionNameMapping(topicName, partition);
+            if (consolidatePartitions) {
+                //named after the partition that opened it - partitions are owned by one consumer, so the name stays unique
+                partitionName = partitionName + "_multi";
+            }
+            if (fileTag != null) {
+                partitionName = partitionName + "_" + fileTag;
+            }
+            recData.eventType = schemaEntry.eventType;
+            recData.outputDirectory = hdsfsOutputDirectory + File.separator + recData.eventType + File.separator
+                    + layout.directoryOf(fileKey.bucket);
+            recData.nextSizeCheck = MIN_RECORDS_BETWEEN_SIZE_CHECKS;
+            recData.nextMemorySample = RECORDS_BETWEEN_MEMORY_SAMPLES;
+
+            if (!eclipseEnv) {
+                if (rawEventRec instanceof AvroBinaryRecord) {
+                    recData.binaryParquetWriter = openParquetFile(partitionName, recData,
+                            openBinaryWriteSupport(schemaEntry.binaryPlan, recData));
+                } else {
+                    recData.parquetWriter = openParquetFile(partitionName, recData, openAvroWriteSupport(s, recData));
+                }
+            } else { //For local testing - create the avro files since parquet files cannot be created
+                recData.avroWriter = openAvroFile(s, partitionName, recData);
+            }
+            partitionRec.rawEventRecMap.put(new OutputFileKey(s, fileKey.bucket), recData);
+            memoryManager.fileOpened();
+        }
+        if (!eclipseEnv) {
+            if (log.isDebugEnabled()) {
+                long current = System.currentTimeMillis();
+                writeParquet(recData, rawEventRec);
+                log.debug("Time to write a rec in parquet =" + (System.currentTimeMillis() - current));
+            } else {
+                writeParquet(recData, rawEventRec);
+            }
+        } else {
+            recData.avroWriter.append(rawEventRec);
+        }
+        partitionRec.ctr++;
+        partitionRec.offset = offset;
+        recData.ctr++;
+        recData.recordOffset(partition, offset);
+        if (partitionRec.ctr >= numRecords) {
+            rollScheduler.recordLimitReached(partitionRec);
+        } else if (targetFileSize > 0L && recData.ctr >= recData.nextSizeCheck && recData.openParquetWriter() != null) {
+            checkFileSize(partitionRec, recData);
+        }
+        if (trackMemory && recData.ctr >= recData.nextMemorySample) {
+            recData.nextMemorySample = recData.ctr + RECORDS_BETWEEN_MEMORY_SAMPLES;
+            long buffered = ParquetSizeEstimator.bufferedSize(recData.openParquetWriter());
+            if (buffered >= 0L) {
+                memoryManager.update(buffered - recData.bufferedBytes);
+                recData.bufferedBytes = buffered;
+            }
+        }
+    }
+
+    /**
+     * Marks files of this writer due for closing while the process is over the writer memory budget or open file limit
+     * Only a writer holding at least its share of the memory / files gives some back, so that the writers with few
+     * records are not rolled into tiny files - the largest files first for memory, the oldest first for open files
+     */
+    private void enforceWriterLimits() {
+        long excessBytes = memoryManager.excessBytes();
+        int excessFiles = memoryManager.excessFiles();
+        if (excessBytes == 0L && excessFiles == 0) {
+            return;
+        }
+        long ownBytes = 0L;
+        int ownFiles = 0;
+        List<PartitionRecord> candidates = new ArrayList<PartitionRecord>();
+        for (PartitionRecord rec : rawEventRecMap.values()) {
+            if (rec.rollDue) {
+                continue;
+            }
+            ownBytes += bufferedBytes(rec);
+            ownFiles += rec.rawEventRecMap.size();
+            candidates.add(rec);
+        }
+        final boolean shedBytes = excessBytes > 0L && ownBytes > 0L && ownBytes >= memoryManager.fairShareBytes();
+        boolean shedFiles = excessFiles > 0 && ownFiles > 0 && ownFiles >= memoryManager.fairShareFiles();
+        if (!shedBytes && !shedFiles) {
+            return;
+        }
+        Collections.sort(candidates, new Comparator<PartitionRecord>() {
+            public int compare(PartitionRecord a, PartitionRecord b) {
+                if (shedBytes) {
+                    long aBytes = bufferedBytes(a);
+                    long bBytes = bufferedBytes(b);
+                    return aBytes > bBytes ? -1 : (aBytes < bBytes ? 1 : 0);
+                }
+                return a.startTime < b.startTime ? -1 : (a.startTime > b.startTime ? 1 : 0);
+            }
+        });
+        long freedBytes = 0L;
+        int freedFiles = 0;
+        for (PartitionRecord rec : candidates) {
+            if ((!shedBytes || freedBytes >= excessBytes) && (!shedFiles || freedFiles >= excessFiles)) {
+                break;
+            }
+            long bytes = bufferedBytes(rec);
+            log.info("Writer limits exceeded, rolling early: " + rec.topicName + "::" + rec.partitionId + "::buffered bytes=" + bytes
+                    + "::files=" + rec.rawEventRecMap.size() + "::excess bytes=" + excessBytes + "::excess files=" + excessFiles);
+            rollScheduler.recordLimitReached(rec);
+            memoryManager.rollForced();
+            freedBytes += bytes;
+            freedFiles += rec.rawEventRecMap.size();
+        }
+    }
+
+    private static long bufferedBytes(PartitionRecord rec) {
+        long bytes = 0L;
+        for (RecordData recData : rec.rawEventRecMap.values()) {
+            bytes += recData.bufferedBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * The files of the entry leave this writer - their memory is accounted to the close from now on
+     */
+    private void releaseWriterMemory(PartitionRecord rec) {
+        for (RecordData recData : rec.rawEventRecMap.values()) {
+            memoryManager.fileClosed(recData.bufferedBytes);
+        }
+    }
+
+    /**
+     * Size trigger - rolls the partition once the estimated size of the file gets close to the target file size
+     * The estimate walks all column writers, so it is only taken every so many records: the number of records that fill
+     * half of the remaining space at the average record size seen so far
+     */
+    private void checkFileSize(PartitionRecord partitionRec, RecordData recData) {
+        long size = ParquetSizeEstimator.estimatedSize(recData.openParquetWriter());
+        if (size < 0L) {
+            recData.nextSizeCheck = Long.MAX_VALUE;
+            return;
+        }
+        long remaining = targetFileSize - size;
+        if (remaining <= targetFileSize / 100L * (100L - TARGET_FILE_SIZE_PERCENT)) {
+            log.info("Target file size reached: FileName=" + recData.openFileName + "::estimated size=" + size + "::records=" + recData.ctr);
+            rollScheduler.recordLimitReached(partitionRec);
+            return;
+        }
+        long bytesPerRecord = Math.max(1L, size / recData.ctr);
+        long records = remaining / bytesPerRecord / 2L;
+        recData.nextSizeCheck = recData.ctr + Math.max(MIN_RECORDS_BETWEEN_SIZE_CHECKS, Math.min(MAX_RECORDS_BETWEEN_SIZE_CHECKS, records));
+    }
+
+    /**
+     * Counts and writes a record decoded on another thread - errors are logged and the record is counted as dropped
+     */
+    public void write(DecodedRecord decoded) {
+        polled(decoded.partition);
+        if (decoded.dropped) {
+            dropped(decoded.partition);
+            return;
+        }
+        if (decoded.schemaEntry == null) {
+            return;
+        }
+        try {
+            write(decoded.partition, decoded.offset, decoded.schemaEntry, decoded.payload, decoded.timestamp,
+                    decoded.headerKey, decoded.imsi);
+        } catch (IOException ie) {
+            log.error("IO Exception::", ie);
+        } catch (Exception e) {
+            log.error("Error in processing record", e);
+            dropped(decoded.partition);
+            log.error("Error in processing this record: Topic=" + topicName + ":Partition=" + decoded.partition + ":Offset=" + decoded.offset);
+        }
+    }
+
+    public boolean hasOpenFiles() {
+        return !rawEventRecMap.isEmpty();
+    }
+
+    /**
+     * @return the number of files that could not be closed or moved to the output directory - complete after shutdown()
+     */
+    public int failedFiles() {
+        return failedFiles.get();
+    }
+
+    /**
+     * Waits for the files being closed and stops the FileCloser - the writer is not used afterwards
+     */
+    public void shutdown() {
+        commitClosedFiles(true);
+        if (fileCloser != null) {
+            fileCloser.shutdown();
+        }
+        memoryManager.writerStopped();
+    }
+
+    /**
+     * This method is called when the consumer is shutting down or to check if the batch size has been reached after every record has been
+     * processed
+     * When checking the batch size only the partitions the RollScheduler reports as due are closed
+     */
+    public void completeWritingFiles(boolean checkBatchComplete) {
+        //offsets of the files closed in the background since the last call - all of them before the remaining files are closed
+        commitClosedFiles(!checkBatchComplete);
+        if(rawEventRecMap == null || rawEventRecMap.isEmpty()) {
+            return;
+        }
+        try {
+            if (checkBatchComplete) {
+                enforceWriterLimits();
+                rollScheduler.pollDue(System.currentTimeMillis() / 1000l, duePartitions);
+                if (duePartitions.isEmpty()) {
+                    return;
+                }
+                for (PartitionRecord rec : duePartitions) {
+                    rawEventRecMap.remove(partitionKeys[rec.partitionId]);
+                    try {
+                        if (fileCloser != null) {
+                            releaseWriterMemory(rec);
+                            CloseJob job = new CloseJob(rec, closeJobs.peekLast());
+                            closeJobs.add(job);
+                            fileCloser.submit(job);
+                        } else {
+                            closePartitionFiles(rec, false);
+                        }
+                    } catch (Exception e) {
+                        log.error("Error in closing the file", e);
+                    }
+                }
+                duePartitions.clear();
+                return;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("In completeWritingFiles::" + checkBatchComplete);
+                log.debug("rawEventRecMap" + rawEventRecMap);
+            }
+            //Use an iterator - so we can delete from the hashmap without causing concurrent modification exception
+            Iterator<Map.Entry<String, PartitionRecord>> it = rawEventRecMap.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, PartitionRecord> item = it.next();
+                if (item == null) {
+                    continue;
+                }
+
+                PartitionRecord rec = item.getValue();
+                if (rec == null) {
+                    continue;
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("PartitionRecord" + rec);
+                }
+                rollScheduler.cancel(rec);
+                closePartitionFiles(rec, true);
+                it.remove();
+            }
+
+        } catch (Exception e) {
+            log.error("Error in closing the file", e);
+        }
+    }
+
+    /**
+     * Called when partitions are revoked - closes only the files holding records of those partitions and commits their
+     * offsets, the files of the partitions this consumer keeps stay open
+     * With consolidate.partitions the files hold the records of all partitions, so they are all closed
+     */
+    public void completeWritingFiles(Collection<TopicPartition> partitions) {
+        //files rolled earlier may hold records of the revoked partitions as well
+        commitClosedFiles(true);
+        if (partitions.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<String, PartitionRecord>> it = rawEventRecMap.entrySet().iterator();
+        while (it.hasNext()) {
+            PartitionRecord rec = it.next().getValue();
+            if (!holdsAnyOf(rec, partitions)) {
+                continue;
+            }
+            rollScheduler.cancel(rec);
+            it.remove();
+            try {
+                closePartitionFiles(rec, false);
+            } catch (Exception e) {
+                log.error("Error in closing the file", e);
+            }
+        }
+        //the next owner reads the records of a held partition again from its committed offset
+        for (TopicPartition tp : partitions) {
+            if (topicName.equals(tp.topic())) {
+                heldPartitions.remove(tp.partition());
+            }
+        }
+    }
+
+    private boolean holdsAnyOf(PartitionRecord rec, Collection<TopicPartition> partitions) {
+        for (TopicPartition tp : partitions) {
+            if (!topicName.equals(tp.topic())) {
+                continue;
+            }
+            for (RecordData recData : rec.rawEventRecMap.values()) {
+                if (tp.partition() < recData.lastOffsets.length && recData.lastOffsets[tp.partition()] >= 0L) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A close running on the FileCloser - the offsets of its files are committed by the writing thread once it is done
+     */
+    private class CloseJob implements Runnable {
+        final PartitionRecord rec;
+        final CountDownLatch done = new CountDownLatch(1);
+        //close rolled before this one, null if none was in flight - its files are moved first
+        private CloseJob previous;
+
+        CloseJob(PartitionRecord rec, CloseJob previous) {
+            this.rec = rec;
+            this.previous = previous;
+        }
+
+        public void run() {
+            try {
+                finishPartitionFiles(rec, false, this);
+            } catch (Exception e) {
+                log.error("Error in closing the file", e);
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Waits until the close rolled before this one is done, so that the files are moved in the order they were
+         * rolled and a failed file holds its partitions before a later file of them is moved
+         */
+        void awaitPrevious() {
+            if (previous == null) {
+                return;
+            }
+            try {
+                previous.done.await();
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for " + previous.rec + " to be closed", e);
+                Thread.currentThread().interrupt();
+            }
+            //only the last close is kept in the chain
+            previous = null;
+        }
+    }
+
+    /**
+     * Commits the offsets of the background closes that are done, stopping at the first one still running
+     * @param wait wait for all closes in flight instead
+     */
+    private void commitClosedFiles(boolean wait) {
+        CloseJob job;
+        while ((job = closeJobs.peek()) != null) {
+            if (job.done.getCount() > 0L) {
+                if (!wait) {
+                    return;
+                }
+                try {
+                    job.done.await();
+                } catch (InterruptedException e) {
+                    log.error("Interrupted while waiting for " + job.rec + " to be closed - its offsets are not committed", e);
+                    return;
+                }
+            }
+            closeJobs.poll();
+            commitPartitionOffsets(job.rec);
+        }
+    }
+
+    private void closePartitionFiles(PartitionRecord rec, boolean shutdown) {
+        //Close out the file
+        if (rec.rawEventRecMap == null) {
+            return;
+        }
+        releaseWriterMemory(rec);
+        finishPartitionFiles(rec, shutdown, null);
+        commitPartitionOffsets(rec);
+    }
+
+    /**
+     * Closes the files of the entry and moves them to the output directory - may run on a FileCloser thread, so only the
+     * entry and heldPartitions are used here. A file that fails to close or move holds its partitions, and a file with
+     * records of a held partition is not moved either - both are left in the tmp directory
+     * @param job the close running this on a FileCloser thread, null on the writing thread
+     */
+    private void finishPartitionFiles(PartitionRecord rec, boolean shutdown, CloseJob job) {
+        List<RecordData> closedFiles = new ArrayList<RecordData>(rec.rawEventRecMap.size());
+        List<Long> closeNanos = new ArrayList<Long>(rec.rawEventRecMap.size());
+        for (RecordData recData : rec.rawEventRecMap.values()) {
+            if (recData == null) {
+                continue;
+            }
+            if (log.isDebugEnabled() && shutdown) {
+                log.debug("RecordData" + recData);
+            }
+            //a parquet file without its footer cannot be read - it is only moved once it is closed
+            long closeStart = System.nanoTime();
+            try {
+                if (!eclipseEnv) {
+                    ParquetWriter<?> parquetWriter = recData.openParquetWriter();
+                    if (parquetWriter != null) {
+                        recData.writeSupport.setOffsetRanges(topicName, recData.offsetRanges());
+                        parquetWriter.close();
+                        if (log.isDebugEnabled()) {
+                            logCompressionRatio(recData.openFileName);
+                        }
+                    }
+                } else { //For local testing - create the avro files since parquet files cannot be created
+                    recData.avroWriter.close();
+                }
+                closedFiles.add(recData);
+                closeNanos.add(System.nanoTime() - closeStart);
+            } catch (IOException e) {
+                log.error("Error in closing file", e);
+                fileFailed(recData);
+            }
+        }
+        //the closes overlap, the moves follow the order the files were rolled in
+        if (job != null) {
+            job.awaitPrevious();
+        }
+        for (int i = 0; i < closedFiles.size(); i++) {
+            RecordData recData = closedFiles.get(i);
+            int heldPartition = heldPartitionOf(recData);
+            if (heldPartition >= 0) {
+                log.warn("File left in the tmp directory, an earlier file of partition " + heldPartition + " failed to close or move: FileName="
+                        + recData.openFileName + "::Num of records written=" + recData.ctr + "::Offsets=" + recData.offsetRanges());
+                holdPartitions(recData);
+                continue;
+            }
+            //copy the file from temp loc to permanent loc once its been closed - this is to avoid the 0 byte issue
+            //when querying the open file through impala
+            long moveStart = System.nanoTime();
+            if (!moveFileToPermLoc(recData.openFileName, shutdown)) {
+                fileFailed(recData);
+                continue;
+            }
+            if (closeListener != null) {
+                closeListener.fileClosed(topicName, recData.openFileName, recData.ctr, closeNanos.get(i) + System.nanoTime() - moveStart);
+            }
+            log.info("Batch size/Timeout reached, closing file: Num of records written=" + recData.ctr + "::FileName=" + recData.openFileName + "First TimeStamp=" + rec.firstTimeStamp + "::End TimeStamp=" + rec.endTimeStamp + "::Num recs polled=" + rec.numRecsPolled + "::Num recs discarded=" + rec.numRecsDropped + "::Offsets=" + recData.offsetRanges());
+        }
+    }
+
+    private void fileFailed(RecordData recData) {
+        log.error("File left in the tmp directory, its offsets are not committed: FileName=" + recData.openFileName
+                + "::Num of records written=" + recData.ctr + "::Offsets=" + recData.offsetRanges());
+        failedFiles.incrementAndGet();
+        holdPartitions(recData);
+    }
+
+    /**
+     * @return a held partition with records in the file, -1 if none
+     */
+    private int heldPartitionOf(RecordData recData) {
+        if (heldPartitions.isEmpty()) {
+            return -1;
+        }
+        for (int p = 0; p < recData.lastOffsets.length; p++) {
+            if (recData.lastOffsets[p] >= 0L && heldPartitions.contains(p)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stops committing the offsets of the partitions in the file and writing their records - the last committed offsets
+     * stay, so the records of the files left in the tmp directory are read again
+     */
+    private void holdPartitions(RecordData recData) {
+        for (int p = 0; p < recData.lastOffsets.length; p++) {
+            if (recData.lastOffsets[p] >= 0L && heldPartitions.add(p)) {
+                log.error("Offsets of " + topicName + "::" + p + " are no longer committed and its records no longer written - a file of the partition was left in the tmp directory");
+            }
+        }
+    }
+
+    private void commitPartitionOffsets(PartitionRecord rec) {
+        //last offset written per partition over all files of the entry
+        long[] lastOffsets = new long[numRecsPolled.length];
+        Arrays.fill(lastOffsets, -1L);
+        for (RecordData recData : rec.rawEventRecMap.values()) {
+            for (int p = 0; p < recData.lastOffsets.length; p++) {
+                if (recData.lastOffsets[p] > lastOffsets[p]) {
+                    lastOffsets[p] = recData.lastOffsets[p];
+                }
+            }
+        }
+        //Once the files have been written, commit the kafka offset of every partition in them
+        for (int p = 0; p < lastOffsets.length; p++) {
+            if (lastOffsets[p] < 0L) {
+                continue;
+            }
+            if (heldPartitions.contains(p)) {
+                log.warn("Not committing offset:" + rec.topicName + "::" + p + "::" + lastOffsets[p] + " - an earlier file of the partition failed to close or move");
+                continue;
+            }
+            log.info("Committing offset:" + rec.topicName + "::" + p + "::" + lastOffsets[p]);
+            committer.commit(new TopicPartition(rec.topicName, p), new OffsetAndMetadata(lastOffsets[p] + 1));
+            numRecsPolled[p] = 0;
+            numRecsDropped[p] = 0;
+        }
+    }
+
+    /**
+     * Logs the size of the closed file's row groups before and after compression, taken from the file footer - this reads
+     * the footer back from the file system, so it is only called with debug logging on
+     */
+    private void logCompressionRatio(String fileName) {
+        try {
+            ParquetMetadata footer = ParquetFileReader.readFooter(sink.getConfiguration(), sink.getPath(fileName),
+                    ParquetMetadataConverter.NO_FILTER);
+            long rows = 0L;
+            long uncompressed = 0L;
+            long compressed = 0L;
+            for (BlockMetaData block : footer.getBlocks()) {
+                rows += block.getRowCount();
+                uncompressed += block.getTotalByteSize();
+                compressed += block.getCompressedSize();
+            }
+            log.debug("Closed parquet file: FileName=" + fileName + "::codec=" + parquetSettings.codec + "::row groups=" + footer.getBlocks().size()
+                    + "::rows=" + rows + "::uncompressed bytes=" + uncompressed + "::compressed bytes=" + compressed
+                    + "::compression ratio=" + (compressed > 0L ? Math.round(uncompressed * 100.0 / compressed) / 100.0 : 0.0));
+        } catch (Exception e) {
+            log.debug("Could not read the footer of " + fileName, e);
+        }
+    }
+
+    private void ensureCounterCapacity(int partition) {
+        if (partition < numRecsPolled.length) {
+            return;
+        }
+        int size = Math.max(partition + 1, numRecsPolled.length * 2);
+        numRecsPolled = Arrays.copyOf(numRecsPolled, size);
+        numRecsDropped = Arrays.copyOf(numRecsDropped, size);
+        int oldSize = partitionKeys.length;
+        partitionKeys = Arrays.copyOf(partitionKeys, size);
+        for (int i = oldSize; i < size; i++) {
+            //all partitions share one entry when they are written to the same files
+            partitionKeys[i] = consolidatePartitions ? topicName + "_multi" : topicName + "_" + i;
+        }
+    }
+
+    /**
+     * @return true if the file is in the output directory
+     */
+    private boolean moveFileToPermLoc(String openFileName,boolean shutdown) {
+        try {
+            //the tmp directory is inside the directory the file is moved to
+            int tmpIdx = openFileName.lastIndexOf(File.separator + TMP_DIR_NAME + File.separator);
+            String finalName = openFileName.substring(0, tmpIdx) + openFileName.substring(tmpIdx + TMP_DIR_NAME.length() + 1);
+            if (sink.moveFile(openFileName, finalName, shutdown)) {
+                log.info("File move is successful");
+                return true;
+            }
+            log.error("File failed to move");
+        } catch (Exception e) {
+            log.error("Error in moving file",e);
+        }
+        return false;
+    }
+
+
+    private void writeParquet(RecordData recData, Object rawEventRec) throws IOException {
+        if (recData.binaryParquetWriter != null) {
+            recData.binaryParquetWriter.write((AvroBinaryRecord) rawEventRec);
+        } else {
+            recData.parquetWriter.write((IndexedRecord) rawEventRec);
+        }
+    }
+
+    /**
+     * Write support of records written from their binary Avro encoding
+     */
+    private WriteSupport<AvroBinaryRecord> openBinaryWriteSupport(AvroBinaryPlan binaryPlan, RecordData recData) {
+        AvroBinaryWriteSupport writeSupport = new AvroBinaryWriteSupport(binaryPlan);
+        recData.writeSupport = writeSupport;
+        return writeSupport;
+    }
+
+    /**
+     * Write support of GenericRecords
+     */
+    private WriteSupport<IndexedRecord> openAvroWriteSupport(Schema avroSchema, RecordData recData) {
+        MessageType parquetSchema = parquetSchemas.get(avroSchema);
+        if (parquetSchema == null) {
+            parquetSchema = new AvroSchemaConverter().convert(avroSchema);
+            parquetSchemas.put(avroSchema, parquetSchema);
+        }
+        OffsetRangeWriteSupport writeSupport = new OffsetRangeWriteSupport(parquetSchema, avroSchema);
+        recData.writeSupport = writeSupport;
+        return writeSupport;
+    }
+
+    private <T> ParquetWriter<T> openParquetFile(String partitionName, RecordData recData, WriteSupport<T> writeSupport)
+            throws IOException {
+        ParquetWriter<T> parquetWriter = null;
+        try {
+
+            String newFilename = recData.outputDirectory + TMP_DIR_NAME + File.separator +"Event" + "_" + topicName + "_" + partitionName + "_" + sdf.format(new Date()) + ".parquet";
+            recData.openFileName = newFilename;
+            Path outputPath = sink.createFile(newFilename);
+            // the ParquetWriter object that will consume the records - codec and sizes as configured for the topic
+            parquetWriter = new ParquetWriter<T>(outputPath, writeSupport,
+                    parquetSettings.codec, parquetSettings.blockSize, parquetSettings.pageSize,
+                    parquetSettings.dictionaryPageSize, parquetSettings.enableDictionary,
+                    ParquetWriter.DEFAULT_IS_VALIDATING_ENABLED, parquetSettings.writerVersion, sink.getConfiguration());
+            log.info("Starting to write to parquet file");
+
+        } catch (IOException e) {
+            log.error("Error in creating file", e);
+            throw e;
+        }
+        return parquetWriter;
+    }
+
+
+    private DataFileWriter<Object> openAvroFile(Schema key, String partitionName, RecordData recData) throws IOException {
+        SpecificDatumWriter<Object> datumWriter = new SpecificDatumWriter<Object>();
+        DataFileWriter<Object> dataFileWriter = new DataFileWriter<Object>(datumWriter);
+        String newFilename = recData.outputDirectory + TMP_DIR_NAME +File.separator +"Event" + "_" + topicName + "_" + partitionName + "_" + sdf.format(new Date()) + ".avro";
+        OutputStream os = null;
+        recData.openFileName = newFilename;
+
+        try {
+            os = sink.openForWrite(newFilename);
+            log.info("Created data File " + newFilename);
+            dataFileWriter.create(key, os);
+        } catch (IOException e) {
+            log.error("Error in creating the file", e);
+            throw e;
+        }
+
+        return dataFileWriter;
+    }
+}
@@ -110,7 +110,7 @@ public class HDFSWriterThread extends Thread {
 
 
                                 String schemaKeyStr = "/HdfsLoader/" + headerRec.EVENT_TYPE + "_" + headerRec.EVENT_ID + "/" + headerRec.EVENT_VERSION;
-                                Schema s = KafkaToLoadHdfs.schemaHashMap.get(schemaKeyStr);
+                                Schema s = KafkaToLoadHdfs.schemaRegistry.get(schemaKeyStr);
                                 if (s == null) {
                                     log.error("No schema found for: ", headerRec, ".Not processing this record");
                                     continue;
@@ -0,0 +1,63 @@
+package com.pralay.LoadHDFS;
+
+/*
+OutputSink writing the files to HDFS through the ExecutionFileFactory
+ */
+
+import com.pralay.core.executionfile.ExecutionFile;
+import com.pralay.core.executionfile.ExecutionFileFactory;
+import com.pralay.core.executionfile.FileOperation;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class HdfsOutputSink implements OutputSink {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private final Configuration hadoopConf = new Configuration();
+
+    public Configuration getConfiguration() {
+        return hadoopConf;
+    }
+
+    public Path createFile(String fileName) throws IOException {
+        Path outputPath = getPathForWrite(fileName);
+        if (ExecutionFileFactory.getHdfsFileSystem().exists(outputPath)) {
+            //Delete the file if it exists
+            log.info("Output File exists: deleting it");
+            ExecutionFileFactory.getHdfsFileSystem().delete(outputPath, true);
+        }
+        return outputPath;
+    }
+
+    public OutputStream openForWrite(String fileName) throws IOException {
+        ExecutionFile executionfile = ExecutionFileFactory.create(fileName, FileOperation.OVERWRITE);
+        return executionfile.openForWrite();
+    }
+
+    public Path getPath(String fileName) throws IOException {
+        ExecutionFile executionfile = ExecutionFileFactory.create(fileName, FileOperation.READ);
+        return executionfile.getPath();
+    }
+
+    public boolean moveFile(String fileName, String targetName, boolean shutdown) throws IOException {
+        if (!shutdown) {
+            return ExecutionFileFactory.getHdfsFileSystem().rename(getPath(fileName), getPathForWrite(targetName));
+        }
+        //for final shutdown use different code:
+        Configuration hdfsConf = new Configuration();
+        FileSystem yourFileSystem = FileSystem.get(hdfsConf);
+        //not closed - it is the cached instance the writers of the files still to be closed write through
+        return yourFileSystem.rename(getPath(fileName), getPathForWrite(targetName));
+    }
+
+    private Path getPathForWrite(String fileName) throws IOException {
+        ExecutionFile executionfile = ExecutionFileFactory.create(fileName, FileOperation.OVERWRITE);
+        return executionfile.getPath();
+    }
+}
@@ -0,0 +1,300 @@
+package com.pralay.LoadHDFS;
+
+/*
+Staged processing of the records polled by an AdapterConsumerThread
+    poll stage (consumer thread) -> decode workers -> writer workers
+connected by bounded SpscRingBuffers, so a slow HDFS write or close does not stop the consumer thread from polling
+ - all records of a partition go through the same decode worker and the same writer worker, which keeps them in order
+ - every writer worker owns an HDFSBatchWriter for its partitions; the offsets of closed files are passed back to the
+   consumer thread through a ring buffer and committed there, as the KafkaConsumer must only be used by its own thread
+ - a full ring buffer is reported to the poll stage, which pauses the partitions until there is room again
+ */
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IngestPipeline {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private final String name;
+    private final DecodeWorker[] decoders;
+    private final WriterWorker[] writers;
+    //records routed to each writer by the poll stage - only used by the consumer thread
+    private final long[] routedToWriter;
+    private long flushSeq;
+    private volatile boolean running = true;
+
+    /**
+     * @param closeListener told about every file the writer workers close and move, null for none
+     */
+    public IngestPipeline(String topicName, int consumerIndex, int numDecoders, int numWriters, int bufferSize,
+                          HDFSBatchWriter.CloseListener closeListener) {
+        this.name = topicName + "::" + consumerIndex;
+        decoders = new DecodeWorker[numDecoders];
+        writers = new WriterWorker[numWriters];
+        routedToWriter = new long[numWriters];
+        for (int i = 0; i < numWriters; i++) {
+            writers[i] = new WriterWorker(topicName, i, numDecoders, bufferSize, closeListener);
+        }
+        for (int i = 0; i < numDecoders; i++) {
+            decoders[i] = new DecodeWorker(topicName, i, bufferSize);
+        }
+    }
+
+    public void start() {
+        for (WriterWorker w : writers) {
+            w.start();
+        }
+        for (DecodeWorker d : decoders) {
+            d.start();
+        }
+        log.info("Started pipeline " + name + " with " + decoders.length + " decode workers and " + writers.length + " writer workers");
+    }
+
+    /**
+     * Poll stage - hands a polled record to the decode worker of its partition
+     * @return false if the decode worker's buffer is full, the record has to be offered again later
+     */
+    public boolean offer(ConsumerRecord<String, ?> record) {
+        int partition = record.partition();
+        if (!decoders[partition % decoders.length].inbound.offer(record)) {
+            return false;
+        }
+        routedToWriter[partition % writers.length]++;
+        return true;
+    }
+
+    /**
+     * Moves the offsets of the files closed by the writer workers into offsets - consumer thread only
+     */
+    public void drainCommits(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        for (WriterWorker w : writers) {
+            PendingCommit commit;
+            while ((commit = w.commits.poll()) != null) {
+                offsets.put(commit.tp, commit.offset);
+            }
+        }
+    }
+
+    /**
+     * Waits until every record offered so far has been written, then closes the open files of the partitions
+     * The offsets of the closed files are collected into offsets - consumer thread only
+     * @param partitions partitions whose files are closed, null for all
+     * @return false if the pipeline could not be flushed within timeoutMs
+     */
+    public boolean flush(Map<TopicPartition, OffsetAndMetadata> offsets, long timeoutMs, Collection<TopicPartition> partitions) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int idleCount = 0;
+        for (int i = 0; i < writers.length; i++) {
+            while (writers[i].consumed.get() < routedToWriter[i]) {
+                drainCommits(offsets);
+                if (!checkWaiting(deadline)) {
+                    return false;
+                }
+                SpscRingBuffer.idle(idleCount++);
+            }
+        }
+        flushSeq++;
+        Collection<TopicPartition> flushPartitions = partitions == null ? null : new ArrayList<TopicPartition>(partitions);
+        for (WriterWorker w : writers) {
+            //published to the worker by the volatile write of flushRequested
+            w.flushPartitions = flushPartitions;
+            w.flushRequested = flushSeq;
+        }
+        for (WriterWorker w : writers) {
+            while (w.flushCompleted.get() < flushSeq) {
+                drainCommits(offsets);
+                if (!checkWaiting(deadline)) {
+                    return false;
+                }
+                SpscRingBuffer.idle(idleCount++);
+            }
+        }
+        drainCommits(offsets);
+        return true;
+    }
+
+    public void shutdown() {
+        running = false;
+        for (DecodeWorker d : decoders) {
+            join(d);
+        }
+        for (WriterWorker w : writers) {
+            join(w);
+        }
+        log.info("Stopped pipeline " + name);
+    }
+
+    private boolean checkWaiting(long deadline) {
+        for (DecodeWorker d : decoders) {
+            if (!d.isAlive()) {
+                log.error("Cannot flush pipeline " + name + ": " + d.getName() + " is not alive");
+                return false;
+            }
+        }
+        for (WriterWorker w : writers) {
+            if (!w.isAlive()) {
+                log.error("Cannot flush pipeline " + name + ": " + w.getName() + " is not alive");
+                return false;
+            }
+        }
+        if (System.currentTimeMillis() > deadline) {
+            log.error("Timed out flushing pipeline " + name);
+            return false;
+        }
+        return true;
+    }
+
+    private void join(Thread t) {
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while stopping " + t.getName(), e);
+        }
+    }
+
+    private static class PendingCommit {
+        final TopicPartition tp;
+        final OffsetAndMetadata offset;
+
+        PendingCommit(TopicPartition tp, OffsetAndMetadata offset) {
+            this.tp = tp;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Decodes the frames of the partitions routed to it and passes them on to the writer worker of each partition
+     */
+    private class DecodeWorker extends Thread {
+        final SpscRingBuffer<ConsumerRecord<String, ?>> inbound;
+        private final FrameDecoder frameDecoder;
+        private final int index;
+
+        DecodeWorker(String topicName, int index, int bufferSize) {
+            this.setName("DecodeWorker::" + name + "::" + index);
+            this.index = index;
+            this.inbound = new SpscRingBuffer<ConsumerRecord<String, ?>>(bufferSize);
+            //decoded payloads are handed to the writer thread - they cannot be reused
+            this.frameDecoder = new FrameDecoder(KafkaToLoadHdfs.schemaRegistry, topicName, false);
+        }
+
+        public void run() {
+            int idleCount = 0;
+            while (running || !inbound.isEmpty()) {
+                ConsumerRecord<String, ?> record = inbound.poll();
+                if (record == null) {
+                    SpscRingBuffer.idle(idleCount++);
+                    continue;
+                }
+                idleCount = 0;
+                DecodedRecord decoded = DecodedRecord.decode(frameDecoder, record);
+                SpscRingBuffer<DecodedRecord> outbound = writers[decoded.partition % writers.length].inbound[index];
+                int fullCount = 0;
+                while (!outbound.offer(decoded)) {
+                    if (!running) {
+                        log.warn(getName() + " stopped with records still waiting for the writer");
+                        return;
+                    }
+                    SpscRingBuffer.idle(fullCount++);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the decoded records of the partitions routed to it into their files
+     */
+    private class WriterWorker extends Thread {
+        //one inbound buffer per decode worker, so every buffer has a single producer
+        final SpscRingBuffer<DecodedRecord>[] inbound;
+        final SpscRingBuffer<PendingCommit> commits;
+        //records taken from the inbound buffers so far
+        final AtomicLong consumed = new AtomicLong();
+        Collection<TopicPartition> flushPartitions;
+        volatile long flushRequested;
+        final AtomicLong flushCompleted = new AtomicLong();
+        private final HDFSBatchWriter batchWriter;
+
+        @SuppressWarnings("unchecked")
+        WriterWorker(String topicName, int index, int numDecoders, int bufferSize, HDFSBatchWriter.CloseListener closeListener) {
+            this.setName("WriterWorker::" + name + "::" + index);
+            inbound = new SpscRingBuffer[numDecoders];
+            for (int i = 0; i < numDecoders; i++) {
+                inbound[i] = new SpscRingBuffer<DecodedRecord>(bufferSize);
+            }
+            commits = new SpscRingBuffer<PendingCommit>(bufferSize);
+            batchWriter = new HDFSBatchWriter(topicName, new HDFSBatchWriter.OffsetCommitter() {
+                public void commit(TopicPartition tp, OffsetAndMetadata offset) {
+                    PendingCommit commit = new PendingCommit(tp, offset);
+                    int fullCount = 0;
+                    while (!commits.offer(commit)) {
+                        if (!running) {
+                            log.warn("Pipeline stopped, offset not committed: " + tp + "::" + offset.offset());
+                            return;
+                        }
+                        SpscRingBuffer.idle(fullCount++);
+                    }
+                }
+            }, closeListener);
+        }
+
+        public void run() {
+            int idleCount = 0;
+            while (running || !inboundEmpty()) {
+                int written = 0;
+                for (SpscRingBuffer<DecodedRecord> buffer : inbound) {
+                    DecodedRecord decoded;
+                    //bounded per buffer so that no decode worker is starved
+                    int batch = 0;
+                    while (batch < 256 && (decoded = buffer.poll()) != null) {
+                        batchWriter.write(decoded);
+                        consumed.lazySet(consumed.get() + 1);
+                        batch++;
+                    }
+                    written += batch;
+                }
+                //Check if file is ready to be closed
+                batchWriter.completeWritingFiles(true);
+                long requested = flushRequested;
+                if (requested > flushCompleted.get()) {
+                    //the consumer thread only requests a flush once every record it offered has been consumed
+                    if (flushPartitions == null) {
+                        batchWriter.completeWritingFiles(false);
+                    } else {
+                        batchWriter.completeWritingFiles(flushPartitions);
+                    }
+                    flushCompleted.set(requested);
+                }
+                if (written == 0) {
+                    SpscRingBuffer.idle(idleCount++);
+                } else {
+                    idleCount = 0;
+                }
+            }
+            if (batchWriter.hasOpenFiles()) {
+                //the consumer thread could not flush the pipeline - do not leave the files in the tmp directory
+                log.warn(getName() + " closing files that were not flushed, their offsets will not be committed");
+                batchWriter.completeWritingFiles(false);
+            }
+            batchWriter.shutdown();
+        }
+
+        private boolean inboundEmpty() {
+            for (SpscRingBuffer<DecodedRecord> buffer : inbound) {
+                if (!buffer.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -22,7 +22,7 @@ import com.pralay.LoadHDFS.kafka.InitTopic;
 import org.apache.avro.Schema;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.util.ShutdownHookManager;
-import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.log4j.xml.DOMConfigurator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,19 +34,23 @@ public class KafkaToLoadHdfs {
     public static String configFileName = null;
     public static String topic = null;
     public static List<Thread> listOfRunThreads = new ArrayList();
-    public static HashMap<String,Schema> schemaHashMap = new HashMap<String,Schema>();
+    public static SchemaRegistry schemaRegistry = new SchemaRegistry();
     public static String zookeeperConnectString = "localhost:2181"; //default for eclipse_env
     private static String hdfsPath;
     public static ZkDataService ds;
-    private static String zkNameSpace = "TestAPP";
+    static final String zkNameSpace = "TestAPP";
     public static final String LOG_CONFIGURATION_FILE = "log4j.xml";
 
     public static ExecutionContext context;
     public static boolean isUnitTest = false;
     public static FileSystem fs;
-    public static KafkaConsumer mockConsumer;
+    public static Consumer mockConsumer;
     public static ExecutionFile executionfile;
     public static String appVersion;
+    public static ParquetCompactionService compactionService;
+    //set by -backfill - the process reads these ranges and exits instead of starting the consumers
+    public static List<BackfillRunner.Range> backfillRanges;
+    public static BackfillRunner backfillRunner;
 
     public KafkaToLoadHdfs() {
 
@@ -124,10 +128,25 @@ public class KafkaToLoadHdfs {
             } else {
                 loadTheSchemasFromFileSystem();
             }
-            if (schemaHashMap.isEmpty()) {
+            if (schemaRegistry.isEmpty()) {
                 log.error("No schema(s) exists for HdfsLoader in zoo keeper - exiting the Application");
                 System.exit(-1);
             }
+            //New and changed schemas are picked up while running
+            if (!isUnitTest) {
+                schemaRegistry.enableFetch(ds, config.schemaNegativeCacheTtlInSeconds() * 1000L);
+                if (config.schemaWatchEnabled()) {
+                    schemaRegistry.watch(ds);
+                }
+            }
+
+            if (backfillRanges != null) {
+                backfillRunner = new BackfillRunner(backfillRanges, processOptions.getBackfillOutputOption(),
+                        processOptions.getBackfillWorkersOption(), processOptions.getBackfillChunkOption());
+                boolean complete = backfillRunner.run();
+                log.info("Backfill " + (complete ? "complete" : "incomplete") + " - exiting");
+                System.exit(complete ? 0 : 1);
+            }
 
             long delay = 60000L;
             String log4jConfigFilename = "log4j.xml";
@@ -153,10 +172,20 @@ public class KafkaToLoadHdfs {
 
             }
 
+            //Small file compaction of the output directory - can also run as its own process
+            if (!isUnitTest && fs != null && config.compactionEnabled()) {
+                compactionService = new ParquetCompactionService(fs, ds, config);
+                compactionService.start();
+            }
+
             String[] topicsArray = topicNames.split(",");
             for(String topic : topicsArray) {
                 if(!topic.trim().isEmpty()) {
-                    startConsumerThread(topic.trim());
+                    //All consumers of a topic share the consumer group - Kafka spreads the partitions across them
+                    int numConsumers = isUnitTest ? 1 : Math.max(1, config.getTopicNumConsumers(topic.trim()));
+                    for (int i = 0; i < numConsumers; i++) {
+                        startConsumerThread(topic.trim(), i);
+                    }
                 }
             }
             if(!isUnitTest) {
@@ -171,10 +200,10 @@ public class KafkaToLoadHdfs {
         }
     }
 
-    private static void startConsumerThread(String topicName) {
+    private static void startConsumerThread(String topicName, int consumerIndex) {
         try {
-            log.info("Starting consumer thread for topic:"+topicName);
-            AdapterConsumerThread consumerT = new AdapterConsumerThread(topicName);
+            log.info("Starting consumer thread for topic:"+topicName+"::consumer="+consumerIndex);
+            AdapterConsumerThread consumerT = new AdapterConsumerThread(topicName, consumerIndex);
             consumerT.setUnitTest(isUnitTest);
             if(isUnitTest) {
                 consumerT.setConsumer(mockConsumer);
@@ -226,7 +255,7 @@ public class KafkaToLoadHdfs {
                     log.info(t.getName() + " thread is being started again");
                     if(t instanceof AdapterConsumerThread) {
                         AdapterConsumerThread act = (AdapterConsumerThread) t;
-                        startConsumerThread(act.getTopicName());
+                        startConsumerThread(act.getTopicName(), act.getConsumerIndex());
                     }
 
                 } catch (Exception e) {
@@ -279,6 +308,13 @@ public class KafkaToLoadHdfs {
             KafkaToLoadHdfs.log.info("Stopping process...");
             KafkaToLoadHdfs.stopMonitoring = true;
             KafkaToLoadHdfs.stopRunningThreads();
+            if (KafkaToLoadHdfs.backfillRunner != null) {
+                KafkaToLoadHdfs.backfillRunner.stopRunning();
+            }
+            if (KafkaToLoadHdfs.compactionService != null) {
+                KafkaToLoadHdfs.compactionService.stopRunning();
+            }
+            KafkaToLoadHdfs.schemaRegistry.close();
             KafkaToLoadHdfs.log.info("Exiting...");
         }
     }
@@ -300,7 +336,7 @@ public class KafkaToLoadHdfs {
                 //Omit the json file name of the schema when loading into hash map
                 int idx = childPath.lastIndexOf("/");
                 String schemaKey = childPath.substring(0,idx);
-                schemaHashMap.put(schemaKey.toUpperCase(), parser.parse(schemaStr));
+                schemaRegistry.put(schemaKey.toUpperCase(), parser.parse(schemaStr));
             }
 
         } catch (Exception e) {
@@ -345,7 +381,7 @@ public class KafkaToLoadHdfs {
                 String schemaStr = entireSchema.toString();
 
                 Schema.Parser parser = new Schema.Parser();
-                schemaHashMap.put(zkPath, parser.parse(schemaStr));
+                schemaRegistry.put(zkPath, parser.parse(schemaStr));
             }
 
         } catch (Exception e) {
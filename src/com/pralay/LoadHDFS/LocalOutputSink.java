@@ -0,0 +1,86 @@
+package com.pralay.LoadHDFS;
+
+/*
+OutputSink writing the files to the local file system
+Parquet files are written through Hadoop's RawLocalFileSystem, so no .crc files are written next to them. A closed file
+is forced to disk through its FileChannel (output.local.fsync) and then moved with an atomic rename, so a file in the
+output directory is always complete - also after a crash
+ */
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class LocalOutputSink implements OutputSink {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private final Configuration hadoopConf = new Configuration();
+    private final boolean fsync;
+
+    public LocalOutputSink(boolean fsync) {
+        this.fsync = fsync;
+        //file: paths without checksum files - not cached, the cached instance may be a checksummed LocalFileSystem
+        hadoopConf.set("fs.file.impl", RawLocalFileSystem.class.getName());
+        hadoopConf.setBoolean("fs.file.impl.disable.cache", true);
+    }
+
+    public Configuration getConfiguration() {
+        return hadoopConf;
+    }
+
+    public Path createFile(String fileName) throws IOException {
+        java.nio.file.Path file = Paths.get(fileName).toAbsolutePath();
+        Files.createDirectories(file.getParent());
+        if (Files.deleteIfExists(file)) {
+            log.info("Output File exists: deleting it");
+        }
+        return new Path(file.toUri());
+    }
+
+    public OutputStream openForWrite(String fileName) throws IOException {
+        java.nio.file.Path file = Paths.get(fileName);
+        java.nio.file.Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    public Path getPath(String fileName) throws IOException {
+        return new Path(Paths.get(fileName).toAbsolutePath().toUri());
+    }
+
+    public boolean moveFile(String fileName, String targetName, boolean shutdown) throws IOException {
+        java.nio.file.Path source = Paths.get(fileName);
+        java.nio.file.Path target = Paths.get(targetName);
+        if (fsync) {
+            FileChannel channel = FileChannel.open(source, StandardOpenOption.WRITE);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            //the file is visible in the output directory before it is complete
+            log.warn("Atomic move of " + fileName + " not supported - moving it non atomically");
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+}
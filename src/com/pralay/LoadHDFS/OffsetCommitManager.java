@@ -0,0 +1,219 @@
+package com.pralay.LoadHDFS;
+
+/*
+Collects the offsets of the files that have been closed and moved to the output directory and commits them together
+ - commitAsync() sends one asynchronous commit for everything collected since the last commit, called once per poll loop
+ - commitSync() is only used when partitions are revoked and on shutdown, when the offsets must be stored before returning
+A failed asynchronous commit is retried with the next commit unless a newer offset of the partition was collected, sent
+or committed in the meantime or the partition is no longer assigned, so a late failure never moves the committed offset back
+Commit latency and failures are logged at the poll metrics interval of the topic
+Must only be used by the consumer thread - the commit callbacks are run by the consumer inside poll()
+ */
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class OffsetCommitManager implements HDFSBatchWriter.OffsetCommitter {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private final String name;
+    private final Consumer<String, String> consumer;
+    private final long metricsIntervalMs;
+
+    //offsets collected since the last commit
+    private Map<TopicPartition, OffsetAndMetadata> pending = new HashMap<TopicPartition, OffsetAndMetadata>();
+    //highest offset per partition known to be committed
+    private final Map<TopicPartition, Long> committed = new HashMap<TopicPartition, Long>();
+    //highest offset per partition sent in a commit - in flight or committed
+    private final Map<TopicPartition, Long> sent = new HashMap<TopicPartition, Long>();
+
+    //Metrics of the current reporting window
+    private long windowStart;
+    private long asyncCommits;
+    private long syncCommits;
+    private long failedCommits;
+    private long offsetsCommitted;
+    private long totalLatencyMs;
+    private long maxLatencyMs;
+
+    public OffsetCommitManager(String name, Consumer<String, String> consumer, int metricsIntervalSeconds) {
+        this.name = name;
+        this.consumer = consumer;
+        this.metricsIntervalMs = metricsIntervalSeconds * 1000L;
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Collects the offset of a closed file - committed with the next commitAsync() or commitSync()
+     */
+    public void commit(TopicPartition tp, OffsetAndMetadata offset) {
+        OffsetAndMetadata current = pending.get(tp);
+        if (current == null || current.offset() < offset.offset()) {
+            pending.put(tp, offset);
+        }
+    }
+
+    public void commitAll(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+            commit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Sends one asynchronous commit for all offsets collected so far
+     */
+    public void commitAsync() {
+        dropCommitted();
+        if (!pending.isEmpty()) {
+            final Map<TopicPartition, OffsetAndMetadata> offsets = pending;
+            pending = new HashMap<TopicPartition, OffsetAndMetadata>();
+            sending(offsets);
+            final long start = System.currentTimeMillis();
+            if (log.isDebugEnabled()) {
+                log.debug("Committing offsets async:" + offsets);
+            }
+            asyncCommits++;
+            try {
+                consumer.commitAsync(offsets, new OffsetCommitCallback() {
+                    public void onComplete(Map<TopicPartition, OffsetAndMetadata> result, Exception e) {
+                        if (e == null) {
+                            committed(offsets, start);
+                        } else {
+                            failed(offsets, e);
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                failed(offsets, e);
+            }
+        }
+        report(false);
+    }
+
+    /**
+     * Commits all offsets collected so far and waits for the result - for revoked partitions and shutdown
+     * @return false if the commit failed
+     */
+    public boolean commitSync() {
+        dropCommitted();
+        if (pending.isEmpty()) {
+            return true;
+        }
+        Map<TopicPartition, OffsetAndMetadata> offsets = pending;
+        pending = new HashMap<TopicPartition, OffsetAndMetadata>();
+        sending(offsets);
+        long start = System.currentTimeMillis();
+        log.info("Committing offsets:" + offsets);
+        syncCommits++;
+        try {
+            consumer.commitSync(offsets);
+            committed(offsets, start);
+            return true;
+        } catch (Exception e) {
+            //Add a catch so that if there is an issue in committing the offset due to rebalancing,code will continue as
+            log.error("Error in committing the offset", e);
+            failedCommits++;
+            lowerSent(offsets);
+            return false;
+        }
+    }
+
+    /**
+     * Logs the metrics of the current window - always if force is set, otherwise only once the interval has passed
+     */
+    public void report(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && (metricsIntervalMs <= 0L || now - windowStart < metricsIntervalMs)) {
+            return;
+        }
+        long commits = asyncCommits + syncCommits;
+        long completed = commits - failedCommits;
+        log.info(name + " offset commits over " + (now - windowStart) + " ms: async=" + asyncCommits + "::sync=" + syncCommits
+                + "::failed=" + failedCommits + "::offsets=" + offsetsCommitted
+                + "::avg latency ms=" + (completed > 0 ? totalLatencyMs / completed : 0) + "::max latency ms=" + maxLatencyMs);
+        windowStart = now;
+        asyncCommits = 0L;
+        syncCommits = 0L;
+        failedCommits = 0L;
+        offsetsCommitted = 0L;
+        totalLatencyMs = 0L;
+        maxLatencyMs = 0L;
+    }
+
+    //a collected offset at or below the committed offset would move the committed offset back
+    private void dropCommitted() {
+        Iterator<Map.Entry<TopicPartition, OffsetAndMetadata>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TopicPartition, OffsetAndMetadata> entry = it.next();
+            Long last = committed.get(entry.getKey());
+            if (last != null && entry.getValue().offset() <= last) {
+                it.remove();
+            }
+        }
+    }
+
+    private void sending(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+            Long last = sent.get(entry.getKey());
+            if (last == null || last < entry.getValue().offset()) {
+                sent.put(entry.getKey(), entry.getValue().offset());
+            }
+        }
+    }
+
+    //the failed offsets that were the highest sent are no longer in flight - the highest sent is the committed offset again
+    private void lowerSent(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            Long last = sent.get(tp);
+            if (last != null && last == entry.getValue().offset()) {
+                Long lastCommitted = committed.get(tp);
+                if (lastCommitted == null) {
+                    sent.remove(tp);
+                } else {
+                    sent.put(tp, lastCommitted);
+                }
+            }
+        }
+    }
+
+    private void committed(Map<TopicPartition, OffsetAndMetadata> offsets, long start) {
+        long latency = System.currentTimeMillis() - start;
+        totalLatencyMs += latency;
+        maxLatencyMs = Math.max(maxLatencyMs, latency);
+        offsetsCommitted += offsets.size();
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+            Long last = committed.get(entry.getKey());
+            if (last == null || last < entry.getValue().offset()) {
+                committed.put(entry.getKey(), entry.getValue().offset());
+            }
+        }
+    }
+
+    private void failed(Map<TopicPartition, OffsetAndMetadata> offsets, Exception e) {
+        failedCommits++;
+        log.error("Error in committing the offsets " + offsets + " - retrying with the next commit", e);
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            //a newer commit of the partition is in flight or done - it supersedes this one
+            Long lastSent = sent.get(tp);
+            if (lastSent != null && lastSent > entry.getValue().offset()) {
+                continue;
+            }
+            Long last = committed.get(tp);
+            if (!pending.containsKey(tp) && (last == null || last < entry.getValue().offset())
+                    && consumer.assignment().contains(tp)) {
+                pending.put(tp, entry.getValue());
+            }
+        }
+        lowerSent(offsets);
+    }
+}
@@ -0,0 +1,11 @@
+package com.pralay.LoadHDFS;
+
+/*
+A parquet WriteSupport that stores the Kafka offset ranges of a file in its footer metadata - see OffsetRangeWriteSupport
+ */
+public interface OffsetRangeFooter {
+    /**
+     * Sets the footer metadata - called right before the file is closed
+     */
+    void setOffsetRanges(String topicName, String offsetRanges);
+}
@@ -0,0 +1,35 @@
+package com.pralay.LoadHDFS;
+
+/*
+AvroWriteSupport that adds the Kafka offsets of the records in the file to the key-value metadata of the parquet footer
+ - kafka.topic: topic the records were read from
+ - kafka.offset.ranges: <partition>:<first offset>-<last offset> of every partition in the file, comma separated
+The ranges are set right before the file is closed, they are written with the footer
+ */
+
+import org.apache.avro.Schema;
+import parquet.avro.AvroWriteSupport;
+import parquet.schema.MessageType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class OffsetRangeWriteSupport extends AvroWriteSupport implements OffsetRangeFooter {
+    public static final String TOPIC_KEY = "kafka.topic";
+    public static final String OFFSET_RANGES_KEY = "kafka.offset.ranges";
+
+    private final Map<String, String> footerMetaData = new HashMap<String, String>();
+
+    public OffsetRangeWriteSupport(MessageType schema, Schema avroSchema) {
+        super(schema, avroSchema);
+    }
+
+    public void setOffsetRanges(String topicName, String offsetRanges) {
+        footerMetaData.put(TOPIC_KEY, topicName);
+        footerMetaData.put(OFFSET_RANGES_KEY, offsetRanges);
+    }
+
+    public FinalizedWriteContext finalizeWrite() {
+        return new FinalizedWriteContext(footerMetaData);
+    }
+}
@@ -0,0 +1,34 @@
+package com.pralay.LoadHDFS;
+
+/*
+Key of an open file of a PartitionRecord - the schema of its records and the OutputLayout bucket it is written to
+The writer looks files up with one reused key instance, a new key is only created when a file is opened
+ */
+
+import org.apache.avro.Schema;
+
+public class OutputFileKey {
+    Schema schema;
+    long bucket;
+
+    public OutputFileKey(Schema schema, long bucket) {
+        this.schema = schema;
+        this.bucket = bucket;
+    }
+
+    public int hashCode() {
+        return 31 * schema.hashCode() + (int) (bucket ^ (bucket >>> 32));
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof OutputFileKey)) {
+            return false;
+        }
+        OutputFileKey other = (OutputFileKey) o;
+        return bucket == other.bucket && schema.equals(other.schema);
+    }
+
+    public String toString() {
+        return "schema=" + schema.getFullName() + "::bucket=" + bucket;
+    }
+}
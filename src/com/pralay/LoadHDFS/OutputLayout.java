@@ -0,0 +1,115 @@
+package com.pralay.LoadHDFS;
+
+/*
+Directory layout of the output files of a topic below <output directory>/<eventType>/
+ - flat (default): all files in the event type directory
+ - input.adapter.<topic>.output.time.partitioned: dt=YYYYMMDD/hour=HH directories (UTC) from SessionTestRecord.timestamp,
+   so queries filtering on dt/hour only read the matching directories
+ - input.adapter.<topic>.output.hash.buckets: bucket=NN directories below that, by the hash of HEADER.KEY or imsi
+Every record is mapped to a bucket id and every bucket id gets its own file. The tmp directory the files are written to
+is inside the bucket directory, so the rename to the final location stays within one directory
+Not thread safe - an instance belongs to one HDFSBatchWriter
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+public class OutputLayout {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    static final String HASH_FIELD_KEY = "KEY";
+    static final String HASH_FIELD_IMSI = "imsi";
+    private static final long MILLIS_PER_HOUR = 3600000L;
+
+    final boolean timePartitioned;
+    //milliseconds per unit of SessionTestRecord.timestamp
+    final long millisPerUnit;
+    final int hashBuckets;
+    final boolean hashOnImsi;
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
+    private final SimpleDateFormat hourFormat = new SimpleDateFormat("HH");
+
+    public OutputLayout(boolean timePartitioned, long millisPerUnit, int hashBuckets, boolean hashOnImsi) {
+        this.timePartitioned = timePartitioned;
+        this.millisPerUnit = millisPerUnit;
+        this.hashBuckets = hashBuckets;
+        this.hashOnImsi = hashOnImsi;
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        hourFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    public static OutputLayout forTopic(String topicName) {
+        SimpleConfig config = KafkaToLoadHdfs.config;
+        long millisPerUnit = 1L;
+        String unit = config.getTopicOutputTimestampUnit(topicName).trim();
+        if (unit.equalsIgnoreCase("s")) {
+            millisPerUnit = 1000L;
+        } else if (!unit.equalsIgnoreCase("ms")) {
+            log.error("Unknown timestamp unit " + unit + " for topic " + topicName + ": using ms");
+        }
+        String hashField = config.getTopicOutputHashField(topicName).trim();
+        if (!hashField.equalsIgnoreCase(HASH_FIELD_KEY) && !hashField.equalsIgnoreCase(HASH_FIELD_IMSI)) {
+            log.error("Unknown hash bucket field " + hashField + " for topic " + topicName + ": using " + HASH_FIELD_KEY);
+        }
+        OutputLayout layout = new OutputLayout(config.getTopicOutputTimePartitioned(topicName), millisPerUnit,
+                Math.max(0, config.getTopicOutputHashBuckets(topicName)), hashField.equalsIgnoreCase(HASH_FIELD_IMSI));
+        log.info("Output layout of topic " + topicName + ": " + layout);
+        return layout;
+    }
+
+    public boolean isFlat() {
+        return !timePartitioned && hashBuckets <= 1;
+    }
+
+    /**
+     * @return id of the directory the record goes to - hours since the epoch times the number of hash buckets plus the hash bucket
+     */
+    public long bucketOf(long timestamp, long headerKey, long imsi) {
+        long hour = 0L;
+        if (timePartitioned) {
+            long millis = timestamp * millisPerUnit;
+            hour = millis >= 0L ? millis / MILLIS_PER_HOUR : -((MILLIS_PER_HOUR - 1L - millis) / MILLIS_PER_HOUR);
+        }
+        if (hashBuckets <= 1) {
+            return hour;
+        }
+        long key = hashOnImsi ? imsi : headerKey;
+        //spread sequential keys over the buckets
+        int hash = (int) (((key * 0x9E3779B97F4A7C15L) >>> 33) % hashBuckets);
+        return hour * hashBuckets + hash;
+    }
+
+    /**
+     * @return directory of the bucket relative to the event type directory, ending with a separator - empty if flat
+     */
+    public String directoryOf(long bucket) {
+        if (isFlat()) {
+            return "";
+        }
+        StringBuilder dir = new StringBuilder();
+        long hour = bucket;
+        if (hashBuckets > 1) {
+            hour = bucket >= 0L ? bucket / hashBuckets : -((hashBuckets - 1L - bucket) / hashBuckets);
+        }
+        if (timePartitioned) {
+            Date start = new Date(hour * MILLIS_PER_HOUR);
+            dir.append("dt=").append(dayFormat.format(start)).append(File.separator)
+                    .append("hour=").append(hourFormat.format(start)).append(File.separator);
+        }
+        if (hashBuckets > 1) {
+            int hash = (int) (bucket - hour * hashBuckets);
+            dir.append("bucket=").append(hash < 10 ? "0" : "").append(hash).append(File.separator);
+        }
+        return dir.toString();
+    }
+
+    public String toString() {
+        return "timePartitioned=" + timePartitioned + "::millisPerUnit=" + millisPerUnit + "::hashBuckets=" + hashBuckets
+                + "::hashField=" + (hashOnImsi ? HASH_FIELD_IMSI : HASH_FIELD_KEY);
+    }
+}
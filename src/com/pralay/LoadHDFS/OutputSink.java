@@ -0,0 +1,45 @@
+package com.pralay.LoadHDFS;
+
+/*
+Where the HDFSBatchWriter creates its files and how a closed file is moved from the tmp directory to the output directory
+ - HdfsOutputSink: HDFS through the ExecutionFileFactory, output.sink=hdfs (default)
+ - LocalOutputSink: the local file system, output.sink=local - the same parquet files on a local disk, for performance
+   tests and deployments without a cluster
+File names are the full names built by the HDFSBatchWriter: <output directory>/<event type>/.../tmp/<file>
+ */
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface OutputSink {
+    /**
+     * @return the configuration the ParquetWriter and ParquetFileReader use for the files of this sink
+     */
+    Configuration getConfiguration();
+
+    /**
+     * Prepares a new file for the ParquetWriter - a file of the same name is deleted
+     * @return the path to hand to the ParquetWriter
+     */
+    Path createFile(String fileName) throws IOException;
+
+    /**
+     * Creates a new file, replacing a file of the same name
+     */
+    OutputStream openForWrite(String fileName) throws IOException;
+
+    /**
+     * @return the path of an existing file for reading it
+     */
+    Path getPath(String fileName) throws IOException;
+
+    /**
+     * Moves a closed file to its final name, the directory of targetName exists
+     * @param shutdown true if the process is shutting down
+     * @return false if the file could not be moved
+     */
+    boolean moveFile(String fileName, String targetName, boolean shutdown) throws IOException;
+}
@@ -0,0 +1,98 @@
+package com.pralay.LoadHDFS;
+
+/*
+Decodes the records of one poll batch in parallel on a ForkJoinPool - one task per topic partition
+The records of a partition are decoded in offset order by a single task, the decoded records are returned per partition
+so the consumer thread can write them out in the same order as it would have decoded them itself
+Every pool thread has its own FrameDecoder, created with payload reuse off since the whole batch is kept until written
+ */
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+public class ParallelBatchDecoder {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private final ForkJoinPool pool;
+    private final ThreadLocal<FrameDecoder> frameDecoders;
+
+    public ParallelBatchDecoder(final String topicName, int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.frameDecoders = new ThreadLocal<FrameDecoder>() {
+            protected FrameDecoder initialValue() {
+                return new FrameDecoder(KafkaToLoadHdfs.schemaRegistry, topicName, false);
+            }
+        };
+        log.info("Started parallel batch decoding with " + parallelism + " threads");
+    }
+
+    /**
+     * Decodes all records of the batch - blocks until every partition is done
+     * @return the decoded records of each partition of the batch, in offset order
+     */
+    public <V> List<List<DecodedRecord>> decode(ConsumerRecords<String, V> records) {
+        Set<TopicPartition> partitions = records.partitions();
+        List<PartitionTask<V>> tasks = new ArrayList<PartitionTask<V>>(partitions.size());
+        for (TopicPartition tp : partitions) {
+            tasks.add(new PartitionTask<V>(records.records(tp)));
+        }
+        List<List<DecodedRecord>> decoded = new ArrayList<List<DecodedRecord>>(tasks.size());
+        if (tasks.size() == 1) {
+            //nothing to run in parallel - skip the hand off to the pool
+            tasks.get(0).compute();
+        } else {
+            pool.invoke(new BatchTask<V>(tasks));
+        }
+        for (PartitionTask<V> task : tasks) {
+            decoded.add(task.decoded);
+        }
+        return decoded;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static class BatchTask<V> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<PartitionTask<V>> tasks;
+
+        BatchTask(List<PartitionTask<V>> tasks) {
+            this.tasks = tasks;
+        }
+
+        protected void compute() {
+            ForkJoinTask.invokeAll(tasks);
+        }
+    }
+
+    private class PartitionTask<V> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ConsumerRecord<String, V>> records;
+        List<DecodedRecord> decoded;
+
+        PartitionTask(List<ConsumerRecord<String, V>> records) {
+            this.records = records;
+        }
+
+        protected void compute() {
+            FrameDecoder frameDecoder = frameDecoders.get();
+            decoded = new ArrayList<DecodedRecord>(records.size());
+            for (ConsumerRecord<String, V> record : records) {
+                decoded.add(DecodedRecord.decode(frameDecoder, record));
+            }
+        }
+    }
+}
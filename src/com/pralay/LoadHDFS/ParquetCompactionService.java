@@ -0,0 +1,470 @@
+package com.pralay.LoadHDFS;
+
+/*
+Background compaction of the small parquet files in the output directory
+Runs inside the loader when output.compaction.enabled is set, or on its own through main() with the loader's options
+Every run walks the directories below output.hdfs.directory/<eventType>/ and, per directory, merges the files that are
+ - smaller than output.compaction.small.file.size and older than output.compaction.min.age seconds
+ - in the same time window (output.compaction.window minutes, by modification time) and written with the same schema,
+   from the same topic (kafka.topic in the footer) and with the same compression codec
+into files of up to output.compaction.target.file.size, keeping the compression codec of the input files
+The merged files are written with the parquet settings of the topic in the footer of the input files (kafka.topic) -
+input.adapter.<topic>.parquet.* - with row groups of at most the block size of the topic, so only one row group of a
+merged file is buffered in memory at a time
+The merged file is written to the hidden _compaction directory, then the input files are moved aside and the merged file
+is renamed into place - so a query never sees the same rows twice. A swap interrupted half way is rolled back on the
+next run from the manifest kept next to it
+Only one instance compacts an event type at a time - guarded by a ZookeeperLock, and the bytes read are limited to
+output.compaction.max.bytes.per.sec to protect HDFS
+ */
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.pralay.bigdata.zk.ZkDataService;
+import com.pralay.cm.ConfigurationException;
+import com.pralay.cm.managed.zookeeper.ZookeeperLock;
+import com.pralay.core.ExecutionContext;
+import com.pralay.core.executionfile.ExecutionFileFactory;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parquet.avro.AvroParquetReader;
+import parquet.format.converter.ParquetMetadataConverter;
+import parquet.avro.AvroSchemaConverter;
+import parquet.hadoop.ParquetFileReader;
+import parquet.hadoop.ParquetReader;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.metadata.BlockMetaData;
+import parquet.hadoop.metadata.CompressionCodecName;
+import parquet.hadoop.metadata.ParquetMetadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class ParquetCompactionService extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(ParquetCompactionService.class.getName());
+
+    static final String WORK_DIR_NAME = "_compaction";
+    private static final String MANIFEST_NAME = "manifest";
+    private static final String MERGED_NAME = "merged.parquet";
+    private static final String LOCK_PATH = "/HdfsLoader/Locks/Compaction/";
+    //read schema of the input files - stored in the footer by AvroWriteSupport
+    private static final String AVRO_SCHEMA_KEY = "parquet.avro.schema";
+    private static final int RECORDS_PER_PERMIT_REQUEST = 1024;
+
+    private final FileSystem fs;
+    private final ZkDataService ds;
+    private final Path outputRoot;
+    private final long intervalMs;
+    private final long smallFileSize;
+    private final long targetFileSize;
+    private final long minAgeMs;
+    private final long windowMs;
+    private final RateLimiter rateLimiter;
+    private final Configuration hadoopConf;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+    //parquet settings per topic of the input files - read once per topic
+    private final Map<String, ParquetSettings> topicSettings = new HashMap<String, ParquetSettings>();
+    private volatile boolean running = true;
+
+    public ParquetCompactionService(FileSystem fs, ZkDataService ds, SimpleConfig config) {
+        this.setName("ParquetCompactionService");
+        this.setDaemon(true);
+        this.fs = fs;
+        this.ds = ds;
+        this.outputRoot = new Path(config.outputHDFSDirectory());
+        this.intervalMs = config.compactionIntervalInSeconds() * 1000L;
+        this.smallFileSize = config.compactionSmallFileSize();
+        this.targetFileSize = config.compactionTargetFileSize();
+        this.minAgeMs = config.compactionMinAgeInSeconds() * 1000L;
+        this.windowMs = Math.max(1, config.compactionWindowInMinutes()) * 60000L;
+        this.rateLimiter = RateLimiter.create((double) config.compactionMaxBytesPerSecond());
+        this.hadoopConf = fs.getConf();
+    }
+
+    /**
+     * Stops after the file being merged - the HDFS client is not interrupted, a merge in progress is dropped
+     */
+    public void stopRunning() {
+        synchronized (this) {
+            running = false;
+            this.notifyAll();
+        }
+    }
+
+    public void run() {
+        log.info("Started compaction of " + outputRoot + " every " + intervalMs / 1000L + " seconds");
+        while (running) {
+            try {
+                compactAll();
+            } catch (Exception e) {
+                log.error("Error in compaction run", e);
+            }
+            synchronized (this) {
+                try {
+                    if (running) {
+                        this.wait(intervalMs);
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+        }
+        log.info("Stopped compaction of " + outputRoot);
+    }
+
+    /**
+     * One compaction run over all event type directories
+     */
+    public void compactAll() throws IOException {
+        FileStatus[] eventTypes = fs.listStatus(outputRoot);
+        if (eventTypes == null) {
+            return;
+        }
+        for (FileStatus eventType : eventTypes) {
+            if (!running) {
+                return;
+            }
+            if (!eventType.isDirectory() || isHidden(eventType.getPath())) {
+                continue;
+            }
+            String eventTypeName = eventType.getPath().getName();
+            //ZookeeperLock fails if another instance holds the lock - that one is compacting this event type
+            ZookeeperLock lock;
+            try {
+                lock = ZookeeperLock.write(ds.getCf(), LOCK_PATH + eventTypeName, ZookeeperLock.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+            } catch (ConfigurationException e) {
+                log.info("Compaction of " + eventTypeName + " is running elsewhere, skipping it");
+                continue;
+            }
+            try {
+                compactTree(eventType.getPath());
+            } catch (Exception e) {
+                log.error("Error in compacting " + eventType.getPath(), e);
+            } finally {
+                lock.close();
+            }
+        }
+    }
+
+    private void compactTree(Path dir) throws IOException {
+        recover(dir);
+        List<FileStatus> files = new ArrayList<FileStatus>();
+        FileStatus[] stats = fs.listStatus(dir);
+        if (stats == null) {
+            return;
+        }
+        for (FileStatus stat : stats) {
+            if (isHidden(stat.getPath())) {
+                continue;
+            }
+            if (stat.isDirectory()) {
+                compactTree(stat.getPath());
+            } else {
+                files.add(stat);
+            }
+        }
+        compactDirectory(dir, files);
+    }
+
+    /**
+     * Groups the small files of a directory by time window, schema, topic and codec and merges every group of at least
+     * two files
+     */
+    private void compactDirectory(Path dir, List<FileStatus> files) throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, CompactionGroup> groups = new LinkedHashMap<String, CompactionGroup>();
+        for (FileStatus file : files) {
+            if (!file.getPath().getName().endsWith(".parquet") || file.getLen() >= smallFileSize
+                    || now - file.getModificationTime() < minAgeMs) {
+                continue;
+            }
+            ParquetMetadata footer;
+            try {
+                footer = ParquetFileReader.readFooter(hadoopConf, file, ParquetMetadataConverter.NO_FILTER);
+            } catch (IOException e) {
+                log.warn("Cannot read footer of " + file.getPath() + ", not compacting it", e);
+                continue;
+            }
+            String schema = footer.getFileMetaData().getKeyValueMetaData().get(AVRO_SCHEMA_KEY);
+            if (schema == null) {
+                continue;
+            }
+            String topic = footer.getFileMetaData().getKeyValueMetaData().get(OffsetRangeWriteSupport.TOPIC_KEY);
+            CompressionCodecName codec = CompressionCodecName.UNCOMPRESSED;
+            if (!footer.getBlocks().isEmpty() && !footer.getBlocks().get(0).getColumns().isEmpty()) {
+                codec = footer.getBlocks().get(0).getColumns().get(0).getCodec();
+            }
+            String key = file.getModificationTime() / windowMs + "|" + topic + "|" + codec + "|" + schema;
+            CompactionGroup group = groups.get(key);
+            if (group == null) {
+                group = new CompactionGroup(schema, topic, codec);
+                groups.put(key, group);
+            }
+            group.files.add(file);
+        }
+        for (CompactionGroup group : groups.values()) {
+            //split the group into outputs of up to the target size
+            List<FileStatus> batch = new ArrayList<FileStatus>();
+            long batchSize = 0L;
+            for (FileStatus file : group.files) {
+                if (!batch.isEmpty() && batchSize + file.getLen() > targetFileSize) {
+                    merge(dir, batch, group);
+                    batch = new ArrayList<FileStatus>();
+                    batchSize = 0L;
+                }
+                batch.add(file);
+                batchSize += file.getLen();
+            }
+            merge(dir, batch, group);
+            if (!running) {
+                return;
+            }
+        }
+    }
+
+    private void merge(Path dir, List<FileStatus> inputs, CompactionGroup group) throws IOException {
+        if (inputs.size() < 2 || !running) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String name = "Compacted_" + dir.getName() + "_" + sdf.format(new Date()) + ".parquet";
+        Path workDir = new Path(new Path(dir, WORK_DIR_NAME), name);
+        Path merged = new Path(workDir, MERGED_NAME);
+        fs.mkdirs(workDir);
+
+        Schema avroSchema = new Schema.Parser().parse(group.schema);
+        CompressionCodecName codec = group.codec;
+        String topic = group.topic;
+        StringBuilder offsetRanges = new StringBuilder();
+
+        ParquetSettings settings = settingsOf(topic);
+        //the row group being written is buffered in memory - never a whole target file
+        int blockSize = (int) Math.min(settings.blockSize, Math.min(targetFileSize, Integer.MAX_VALUE));
+        OffsetRangeWriteSupport writeSupport = new OffsetRangeWriteSupport(new AvroSchemaConverter().convert(avroSchema), avroSchema);
+        ParquetWriter<IndexedRecord> writer = new ParquetWriter<IndexedRecord>(merged, writeSupport, codec,
+                blockSize, settings.pageSize, settings.dictionaryPageSize, settings.enableDictionary,
+                ParquetWriter.DEFAULT_IS_VALIDATING_ENABLED, settings.writerVersion, hadoopConf);
+        long rows = 0L;
+        try {
+            for (FileStatus input : inputs) {
+                ParquetMetadata footer = ParquetFileReader.readFooter(hadoopConf, input, ParquetMetadataConverter.NO_FILTER);
+                String ranges = footer.getFileMetaData().getKeyValueMetaData().get(OffsetRangeWriteSupport.OFFSET_RANGES_KEY);
+                if (ranges != null && !ranges.isEmpty()) {
+                    offsetRanges.append(offsetRanges.length() > 0 ? "," : "").append(ranges);
+                }
+                rows += copyRecords(input, footer, writer);
+                if (!running) {
+                    throw new IOException("Compaction stopped");
+                }
+            }
+            writeSupport.setOffsetRanges(topic == null ? "" : topic, offsetRanges.toString());
+        } catch (IOException e) {
+            writer.close();
+            fs.delete(workDir, true);
+            throw e;
+        }
+        writer.close();
+        swap(dir, workDir, merged, name, inputs);
+        log.info("Compacted " + inputs.size() + " files into " + new Path(dir, name) + "::rows=" + rows + "::codec=" + codec
+                + "::time ms=" + (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * @param topic topic of the input files, null if their footer has none - the default settings are used then
+     */
+    private ParquetSettings settingsOf(String topic) {
+        String topicName = topic == null ? "" : topic;
+        ParquetSettings settings = topicSettings.get(topicName);
+        if (settings == null) {
+            settings = ParquetSettings.forTopic(topicName);
+            topicSettings.put(topicName, settings);
+        }
+        return settings;
+    }
+
+    /**
+     * Streams the records of one input file into the merged file - one row group of the input in memory at a time
+     */
+    private long copyRecords(FileStatus input, ParquetMetadata footer, ParquetWriter<IndexedRecord> writer) throws IOException {
+        long rowCount = 0L;
+        for (BlockMetaData block : footer.getBlocks()) {
+            rowCount += block.getRowCount();
+        }
+        int bytesPerPermitRequest = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1L, input.getLen() * RECORDS_PER_PERMIT_REQUEST / Math.max(1L, rowCount)));
+        ParquetReader<IndexedRecord> reader = AvroParquetReader.<IndexedRecord>builder(input.getPath()).withConf(hadoopConf).build();
+        long copied = 0L;
+        try {
+            IndexedRecord record;
+            while ((record = reader.read()) != null) {
+                if (copied % RECORDS_PER_PERMIT_REQUEST == 0L) {
+                    rateLimiter.acquire(bytesPerPermitRequest);
+                }
+                writer.write(record);
+                copied++;
+            }
+        } finally {
+            reader.close();
+        }
+        if (copied != rowCount) {
+            throw new IOException("Read " + copied + " rows from " + input.getPath() + ", footer has " + rowCount);
+        }
+        return copied;
+    }
+
+    /**
+     * Moves the inputs into the work directory and the merged file into their place
+     * The manifest lists the inputs, so an interrupted swap can be rolled back by recover()
+     */
+    private void swap(Path dir, Path workDir, Path merged, String name, List<FileStatus> inputs) throws IOException {
+        FSDataOutputStream manifest = fs.create(new Path(workDir, MANIFEST_NAME), true);
+        try {
+            for (FileStatus input : inputs) {
+                manifest.write((input.getPath().getName() + "\n").getBytes("UTF-8"));
+            }
+        } finally {
+            manifest.close();
+        }
+        for (FileStatus input : inputs) {
+            if (!fs.rename(input.getPath(), new Path(workDir, input.getPath().getName()))) {
+                throw new IOException("Could not move " + input.getPath() + " for compaction");
+            }
+        }
+        if (!fs.rename(merged, new Path(dir, name))) {
+            throw new IOException("Could not move " + merged + " into " + dir);
+        }
+        fs.delete(workDir, true);
+    }
+
+    /**
+     * Rolls back the swaps of a previous run that did not complete: the inputs are moved back unless the merged file
+     * is already in place, then the work directory is removed
+     */
+    private void recover(Path dir) throws IOException {
+        Path workRoot = new Path(dir, WORK_DIR_NAME);
+        if (!fs.exists(workRoot)) {
+            return;
+        }
+        FileStatus[] works = fs.listStatus(workRoot);
+        if (works == null) {
+            return;
+        }
+        for (FileStatus work : works) {
+            Path workDir = work.getPath();
+            Path manifest = new Path(workDir, MANIFEST_NAME);
+            if (!fs.exists(new Path(dir, workDir.getName())) && fs.exists(manifest)) {
+                for (String input : readManifest(manifest)) {
+                    Path moved = new Path(workDir, input);
+                    if (fs.exists(moved)) {
+                        fs.rename(moved, new Path(dir, input));
+                    }
+                }
+                log.warn("Rolled back interrupted compaction " + workDir);
+            }
+            fs.delete(workDir, true);
+        }
+    }
+
+    private List<String> readManifest(Path manifest) throws IOException {
+        List<String> names = new ArrayList<String>();
+        FSDataInputStream in = fs.open(manifest);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    names.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+
+    /**
+     * Small files merged together - same time window, schema, topic and codec
+     */
+    private static class CompactionGroup {
+        final String schema;
+        //null if the footer of the files has no topic
+        final String topic;
+        final CompressionCodecName codec;
+        final List<FileStatus> files = new ArrayList<FileStatus>();
+
+        CompactionGroup(String schema, String topic, CompressionCodecName codec) {
+            this.schema = schema;
+            this.topic = topic;
+            this.codec = codec;
+        }
+    }
+
+    private static boolean isHidden(Path path) {
+        String name = path.getName();
+        //tmp holds the files the loader is still writing
+        return name.startsWith("_") || name.startsWith(".") || name.equals("tmp");
+    }
+
+    /**
+     * Runs the compaction as its own process - same options as KafkaToLoadHdfs (-c config file), topics are not used
+     */
+    public static void main(String[] args) throws Exception {
+        KafkaToLoadHdfs.setupLog();
+        CommandOptions processOptions = new CommandOptions(args);
+        if (!processOptions.processOptions()) {
+            log.error("invalid Program options, exiting");
+            System.exit(-1);
+        }
+        SimpleConfig config;
+        if (KafkaToLoadHdfs.configFileName == null || KafkaToLoadHdfs.configFileName.isEmpty()) {
+            Properties prop = new Properties();
+            FileInputStream is = new FileInputStream(new File("config.txt"));
+            prop.load(is);
+            is.close();
+            config = new SimpleConfig(prop);
+        } else {
+            config = new SimpleConfig(KafkaToLoadHdfs.configFileName);
+        }
+        String zookeeperConnectString = KafkaToLoadHdfs.zookeeperConnectString;
+        FileSystem fs;
+        if (System.getProperty("ECLIPSE_ENV") == null) {
+            fs = ExecutionFileFactory.getHdfsFileSystem();
+            zookeeperConnectString = KafkaToLoadHdfs.getConnectionStr(ExecutionContext.create().getConfiguration().getZookeeperHosts());
+        } else {
+            fs = FileSystem.get(new Configuration());
+        }
+        ZkDataService ds = new ZkDataService(zookeeperConnectString, KafkaToLoadHdfs.zkNameSpace);
+        final ParquetCompactionService service = new ParquetCompactionService(fs, ds, config);
+        service.setDaemon(false);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                service.stopRunning();
+                try {
+                    service.join();
+                } catch (InterruptedException e) {
+                    log.error("Interrupted while stopping compaction", e);
+                }
+            }
+        });
+        service.start();
+        service.join();
+    }
+}
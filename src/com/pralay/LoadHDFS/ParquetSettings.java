@@ -0,0 +1,63 @@
+package com.pralay.LoadHDFS;
+
+/*
+Parquet writer settings of a topic - compression codec, row group (block) size, page size, dictionary page size,
+dictionary encoding on/off and writer version
+Read once per topic from the input.adapter.<topic>.parquet.* properties, the defaults are the ParquetWriter defaults
+except for the codec, which stays UNCOMPRESSED unless configured
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parquet.column.ParquetProperties.WriterVersion;
+import parquet.hadoop.metadata.CompressionCodecName;
+
+public class ParquetSettings {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    final CompressionCodecName codec;
+    final int blockSize;
+    final int pageSize;
+    final int dictionaryPageSize;
+    final boolean enableDictionary;
+    final WriterVersion writerVersion;
+
+    public ParquetSettings(CompressionCodecName codec, int blockSize, int pageSize, int dictionaryPageSize,
+                           boolean enableDictionary, WriterVersion writerVersion) {
+        this.codec = codec;
+        this.blockSize = blockSize;
+        this.pageSize = pageSize;
+        this.dictionaryPageSize = dictionaryPageSize;
+        this.enableDictionary = enableDictionary;
+        this.writerVersion = writerVersion;
+    }
+
+    public static ParquetSettings forTopic(String topicName) {
+        SimpleConfig config = KafkaToLoadHdfs.config;
+        CompressionCodecName codec = CompressionCodecName.UNCOMPRESSED;
+        String codecName = config.getTopicParquetCompression(topicName);
+        try {
+            codec = CompressionCodecName.valueOf(codecName.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown parquet compression codec " + codecName + " for topic " + topicName + ": writing " + codec);
+        }
+        WriterVersion writerVersion = WriterVersion.PARQUET_1_0;
+        String versionName = config.getTopicParquetWriterVersion(topicName);
+        try {
+            writerVersion = WriterVersion.fromString(versionName.trim());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown parquet writer version " + versionName + " for topic " + topicName + ": writing " + writerVersion);
+        }
+        int pageSize = config.getTopicParquetPageSize(topicName);
+        ParquetSettings settings = new ParquetSettings(codec, config.getTopicParquetBlockSize(topicName), pageSize,
+                config.getTopicParquetDictionaryPageSize(topicName, pageSize),
+                config.getTopicParquetDictionaryEnabled(topicName), writerVersion);
+        log.info("Parquet settings of topic " + topicName + ": " + settings);
+        return settings;
+    }
+
+    public String toString() {
+        return "codec=" + codec + "::blockSize=" + blockSize + "::pageSize=" + pageSize + "::dictionaryPageSize="
+                + dictionaryPageSize + "::enableDictionary=" + enableDictionary + "::writerVersion=" + writerVersion;
+    }
+}
@@ -0,0 +1,86 @@
+package com.pralay.LoadHDFS;
+
+/*
+Estimates the size a parquet file will have once closed: the bytes already flushed to the file (row groups written so far)
+plus the data buffered in memory for the current row group
+parquet 1.6 does not expose this on ParquetWriter, so the internal writer is read through reflection. If that fails (a
+different parquet version) the estimate is not available and size based rolling is switched off with an error in the log
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parquet.column.ColumnWriteStore;
+import parquet.hadoop.ParquetFileWriter;
+import parquet.hadoop.ParquetWriter;
+
+import java.lang.reflect.Field;
+
+public class ParquetSizeEstimator {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private static final Field WRITER;
+    private static final Field FILE_WRITER;
+    private static final Field COLUMN_STORE;
+
+    static {
+        Field writer = null;
+        Field fileWriter = null;
+        Field columnStore = null;
+        try {
+            writer = ParquetWriter.class.getDeclaredField("writer");
+            writer.setAccessible(true);
+            Class<?> internalWriter = Class.forName("parquet.hadoop.InternalParquetRecordWriter");
+            fileWriter = internalWriter.getDeclaredField("parquetFileWriter");
+            fileWriter.setAccessible(true);
+            columnStore = internalWriter.getDeclaredField("columnStore");
+            columnStore.setAccessible(true);
+        } catch (Exception e) {
+            log.error("Parquet writer size estimate is not available - size based file rolling is off", e);
+            writer = null;
+        }
+        WRITER = writer;
+        FILE_WRITER = fileWriter;
+        COLUMN_STORE = columnStore;
+    }
+
+    public static boolean isAvailable() {
+        return WRITER != null;
+    }
+
+    /**
+     * @return estimated size of the file in bytes, -1 if it cannot be estimated
+     */
+    public static long estimatedSize(ParquetWriter<?> parquetWriter) {
+        if (WRITER == null || parquetWriter == null) {
+            return -1L;
+        }
+        try {
+            Object internalWriter = WRITER.get(parquetWriter);
+            long size = ((ParquetFileWriter) FILE_WRITER.get(internalWriter)).getPos();
+            ColumnWriteStore store = (ColumnWriteStore) COLUMN_STORE.get(internalWriter);
+            if (store != null) {
+                size += store.getBufferedSize();
+            }
+            return size;
+        } catch (Exception e) {
+            log.warn("Could not estimate the parquet file size", e);
+            return -1L;
+        }
+    }
+
+    /**
+     * @return bytes of the current row group held in memory by the writer, -1 if it cannot be estimated
+     */
+    public static long bufferedSize(ParquetWriter<?> parquetWriter) {
+        if (WRITER == null || parquetWriter == null) {
+            return -1L;
+        }
+        try {
+            ColumnWriteStore store = (ColumnWriteStore) COLUMN_STORE.get(WRITER.get(parquetWriter));
+            return store != null ? store.getBufferedSize() : 0L;
+        } catch (Exception e) {
+            log.warn("Could not estimate the parquet buffer size", e);
+            return -1L;
+        }
+    }
+}
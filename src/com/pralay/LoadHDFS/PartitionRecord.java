@@ -1,7 +1,5 @@
 package com.pralay.LoadHDFS;
 
-import org.apache.avro.Schema;
-
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -13,13 +11,20 @@ public class PartitionRecord {
     int partitionId;
     String topicName;
     //Most probably one Schema per topic - however, its possible that objects with a different schema are published
-    Map<Schema,RecordData> rawEventRecMap = new HashMap<Schema,RecordData>();
+    //One file per schema and OutputLayout bucket
+    Map<OutputFileKey,RecordData> rawEventRecMap = new HashMap<OutputFileKey,RecordData>();
     int ctr;
     long offset;
     long firstTimeStamp;
     long endTimeStamp;
     int numRecsDropped;
     int numRecsPolled;
+    //RollScheduler state - second the files are due to be closed at, slot and links on the timer wheel
+    long rollDeadline;
+    int wheelSlot = -1;
+    PartitionRecord wheelNext;
+    PartitionRecord wheelPrev;
+    boolean rollDue;
 
     public String toString(){
         return("partitionId="+partitionId+"::topic="+topicName+"::rawEventRecMap="+rawEventRecMap);
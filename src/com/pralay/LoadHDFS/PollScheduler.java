@@ -0,0 +1,176 @@
+package com.pralay.LoadHDFS;
+
+/*
+Decides how long the consumer thread waits before the next poll of the topic
+While records are flowing the next poll is issued immediately - the thread only backs off when a poll comes back empty,
+starting at the configured minimum backoff and doubling for every consecutive empty poll up to the maximum backoff
+The time the empty poll itself blocked in consumer.poll(timeout) counts towards the backoff, so the thread only sleeps
+for the remainder and the gap between two empty polls is the backoff rather than the backoff plus the poll timeout
+It also keeps the poll loop duty cycle (share of the wall clock time spent polling, processing, idling and blocked on a
+full pipeline) and logs it at a configurable interval
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.LockSupport;
+
+public class PollScheduler {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+    //Wait between two polls while the partitions are paused for back pressure
+    private static final long BACKPRESSURE_PARK_NANOS = 1000000L;
+
+    private final String name;
+    private final long minBackoffMs;
+    private final long maxBackoffMs;
+    private final long metricsIntervalNanos;
+    private long currentBackoffMs;
+
+    private long pollStart;
+    private long pollEnd;
+
+    //Metrics of the current reporting window
+    private long windowStart;
+    private long pollNanos;
+    private long processNanos;
+    private long idleNanos;
+    private long blockedNanos;
+    private long polls;
+    private long emptyPolls;
+    private long records;
+
+    //Duty cycle of the last completed reporting window
+    private volatile double pollRatio;
+    private volatile double processRatio;
+    private volatile double idleRatio;
+    private volatile double blockedRatio;
+    private volatile double recordsPerPoll;
+
+    public PollScheduler(String name, long minBackoffMs, long maxBackoffMs, int metricsIntervalSeconds) {
+        this.name = name;
+        this.minBackoffMs = Math.max(0L, minBackoffMs);
+        this.maxBackoffMs = Math.max(this.minBackoffMs, maxBackoffMs);
+        this.metricsIntervalNanos = metricsIntervalSeconds * 1000000000L;
+        this.currentBackoffMs = 0L;
+        this.windowStart = System.nanoTime();
+    }
+
+    public PollScheduler(String topicName, int consumerIndex) {
+        this("Poll loop::" + topicName + "::" + consumerIndex,
+                KafkaToLoadHdfs.config.getTopicPollIdleBackoffMinMs(topicName),
+                KafkaToLoadHdfs.config.getTopicPollIdleBackoffMaxMs(topicName),
+                KafkaToLoadHdfs.config.getTopicPollMetricsIntervalInSeconds(topicName));
+    }
+
+    /**
+     * To be called right before consumer.poll()
+     */
+    public void pollStarted() {
+        pollStart = System.nanoTime();
+    }
+
+    /**
+     * To be called right after consumer.poll() with the number of records returned
+     */
+    public void pollCompleted(int numRecords) {
+        pollEnd = System.nanoTime();
+        pollNanos += pollEnd - pollStart;
+        polls++;
+        records += numRecords;
+        if (numRecords > 0) {
+            currentBackoffMs = 0L;
+        } else {
+            emptyPolls++;
+            currentBackoffMs = currentBackoffMs == 0L ? minBackoffMs : Math.min(currentBackoffMs * 2, maxBackoffMs);
+        }
+    }
+
+    /**
+     * To be called once the records of the last poll have been processed - waits for what is left of the current backoff
+     * after the time already spent blocked in the poll if the poll was empty and returns immediately otherwise
+     */
+    public void awaitNextPoll() throws InterruptedException {
+        long now = System.nanoTime();
+        processNanos += now - pollEnd;
+        long sleepMs = currentBackoffMs - (pollEnd - pollStart) / 1000000L;
+        if (currentBackoffMs > 0L && sleepMs > 0L) {
+            try {
+                Thread.sleep(sleepMs);
+            } finally {
+                long afterSleep = System.nanoTime();
+                idleNanos += afterSleep - now;
+                now = afterSleep;
+            }
+        }
+        if (metricsIntervalNanos > 0L && now - windowStart >= metricsIntervalNanos) {
+            report(now);
+        }
+    }
+
+    /**
+     * To be called instead of awaitNextPoll() while the next stage has no room for the polled records - the time spent
+     * here is reported as blocked. Parks briefly unless the records were handed over in the meantime
+     */
+    public void awaitBackpressure(boolean drained) {
+        long now = System.nanoTime();
+        processNanos += now - pollEnd;
+        if (!drained) {
+            LockSupport.parkNanos(BACKPRESSURE_PARK_NANOS);
+            long afterPark = System.nanoTime();
+            blockedNanos += afterPark - now;
+            now = afterPark;
+        }
+        if (metricsIntervalNanos > 0L && now - windowStart >= metricsIntervalNanos) {
+            report(now);
+        }
+    }
+
+    public long getCurrentBackoffMs() {
+        return currentBackoffMs;
+    }
+
+    public double getPollRatio() {
+        return pollRatio;
+    }
+
+    public double getProcessRatio() {
+        return processRatio;
+    }
+
+    public double getIdleRatio() {
+        return idleRatio;
+    }
+
+    public double getBlockedRatio() {
+        return blockedRatio;
+    }
+
+    public double getRecordsPerPoll() {
+        return recordsPerPoll;
+    }
+
+    private void report(long now) {
+        double window = (double) (now - windowStart);
+        pollRatio = pollNanos / window;
+        processRatio = processNanos / window;
+        idleRatio = idleNanos / window;
+        blockedRatio = blockedNanos / window;
+        recordsPerPoll = polls == 0 ? 0.0 : (double) records / polls;
+        log.info(name + " duty cycle over " + Math.round(window / 1000000.0) + " ms: poll=" + percent(pollRatio)
+                + "::process=" + percent(processRatio) + "::idle=" + percent(idleRatio) + "::blocked=" + percent(blockedRatio)
+                + "::polls=" + polls + "::empty polls=" + emptyPolls + "::records=" + records
+                + "::records/poll=" + Math.round(recordsPerPoll) + "::current backoff ms=" + currentBackoffMs);
+        windowStart = now;
+        pollNanos = 0L;
+        processNanos = 0L;
+        idleNanos = 0L;
+        blockedNanos = 0L;
+        polls = 0L;
+        emptyPolls = 0L;
+        records = 0L;
+    }
+
+    private static String percent(double ratio) {
+        return Math.round(ratio * 1000.0) / 10.0 + "%";
+    }
+}
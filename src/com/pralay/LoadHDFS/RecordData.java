@@ -2,18 +2,68 @@ package com.pralay.LoadHDFS;
 
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
-import parquet.avro.AvroParquetWriter;
+import org.apache.avro.generic.IndexedRecord;
+import parquet.hadoop.ParquetWriter;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
 public class RecordData {
     String eventType;
-    DataFileWriter avroWriter;
-    AvroParquetWriter parquetWriter;
+    DataFileWriter<Object> avroWriter;
+    //one of the two is open - the writer of records written from their binary Avro encoding or of GenericRecords
+    ParquetWriter<AvroBinaryRecord> binaryParquetWriter;
+    ParquetWriter<IndexedRecord> parquetWriter;
     String openFileName;
+    //directory the file is moved to once closed, ending with a separator - the file is written to its tmp subdirectory
+    String outputDirectory;
+    //records written to this file and record count at which its size is checked next
+    long ctr;
+    long nextSizeCheck;
+    //bytes buffered by the writer as last reported to the WriterMemoryManager and record count of the next report
+    long bufferedBytes;
+    long nextMemorySample;
+    OffsetRangeFooter writeSupport;
+    //first and last offset written to this file per partition - indexed by the partition id, -1 if none
+    long[] firstOffsets = new long[0];
+    long[] lastOffsets = new long[0];
+
+    ParquetWriter<?> openParquetWriter() {
+        return binaryParquetWriter != null ? binaryParquetWriter : parquetWriter;
+    }
+
+    void recordOffset(int partition, long offset) {
+        if (partition >= lastOffsets.length) {
+            int oldSize = lastOffsets.length;
+            firstOffsets = Arrays.copyOf(firstOffsets, partition + 1);
+            lastOffsets = Arrays.copyOf(lastOffsets, partition + 1);
+            Arrays.fill(firstOffsets, oldSize, partition + 1, -1L);
+            Arrays.fill(lastOffsets, oldSize, partition + 1, -1L);
+        }
+        if (firstOffsets[partition] < 0L) {
+            firstOffsets[partition] = offset;
+        }
+        lastOffsets[partition] = offset;
+    }
+
+    /**
+     * @return <partition>:<first offset>-<last offset> of every partition written to this file, comma separated
+     */
+    String offsetRanges() {
+        StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < lastOffsets.length; i++) {
+            if (lastOffsets[i] >= 0L) {
+                if (ranges.length() > 0) {
+                    ranges.append(',');
+                }
+                ranges.append(i).append(':').append(firstOffsets[i]).append('-').append(lastOffsets[i]);
+            }
+        }
+        return ranges.toString();
+    }
 
     public String toString(){
-        return("eventType="+eventType+"::openFileName="+openFileName);
+        return("eventType="+eventType+"::openFileName="+openFileName+"::offsets="+offsetRanges());
     }
 }
@@ -0,0 +1,128 @@
+package com.pralay.LoadHDFS;
+
+/*
+Decides which open partitions are due to have their files closed (rolled), without looking at the partitions that are not
+ - time limit: every PartitionRecord is put on a hashed timer wheel with one slot per second, in the slot of its deadline.
+   Advancing the wheel only visits the slots of the seconds that have passed since the last call
+ - record limit: the writer calls recordLimitReached() when the counter of a partition hits the limit, which makes the
+   partition due right away
+The wheel entries are linked through the PartitionRecord itself, so scheduling and cancelling do not allocate
+Not thread safe - owned by the HDFSBatchWriter of the partitions
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RollScheduler {
+    private final PartitionRecord[] wheel;
+    private final int mask;
+    //last second the wheel was advanced to
+    private long currentTick;
+    private final List<PartitionRecord> due = new ArrayList<PartitionRecord>();
+
+    /**
+     * @param wheelSize number of one second slots, rounded up to the next power of two. Deadlines further away than the
+     *                  wheel size stay in their slot for more than one turn of the wheel
+     */
+    public RollScheduler(int wheelSize, long nowSeconds) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new PartitionRecord[size];
+        mask = size - 1;
+        currentTick = nowSeconds;
+    }
+
+    /**
+     * Schedules the partition to be rolled at deadlineSeconds
+     */
+    public void schedule(PartitionRecord rec, long deadlineSeconds) {
+        cancel(rec);
+        rec.rollDeadline = deadlineSeconds;
+        if (deadlineSeconds <= currentTick) {
+            makeDue(rec);
+            return;
+        }
+        int slot = (int) (deadlineSeconds & mask);
+        rec.wheelSlot = slot;
+        rec.wheelPrev = null;
+        rec.wheelNext = wheel[slot];
+        if (wheel[slot] != null) {
+            wheel[slot].wheelPrev = rec;
+        }
+        wheel[slot] = rec;
+    }
+
+    /**
+     * Counter trigger - the partition is due right away
+     */
+    public void recordLimitReached(PartitionRecord rec) {
+        cancel(rec);
+        makeDue(rec);
+    }
+
+    /**
+     * Removes the partition from the wheel and from the due partitions
+     */
+    public void cancel(PartitionRecord rec) {
+        if (rec.wheelSlot >= 0) {
+            if (rec.wheelPrev != null) {
+                rec.wheelPrev.wheelNext = rec.wheelNext;
+            } else {
+                wheel[rec.wheelSlot] = rec.wheelNext;
+            }
+            if (rec.wheelNext != null) {
+                rec.wheelNext.wheelPrev = rec.wheelPrev;
+            }
+            rec.wheelSlot = -1;
+            rec.wheelNext = null;
+            rec.wheelPrev = null;
+        }
+        if (rec.rollDue) {
+            rec.rollDue = false;
+            due.remove(rec);
+        }
+    }
+
+    /**
+     * Advances the wheel to nowSeconds and moves every partition whose deadline has passed into dueOut
+     * The returned partitions are no longer scheduled
+     */
+    public void pollDue(long nowSeconds, List<PartitionRecord> dueOut) {
+        if (nowSeconds > currentTick) {
+            //one turn of the wheel visits every slot
+            long ticks = Math.min(nowSeconds - currentTick, (long) wheel.length);
+            for (long t = nowSeconds - ticks + 1; t <= nowSeconds; t++) {
+                expireSlot((int) (t & mask), nowSeconds);
+            }
+            currentTick = nowSeconds;
+        }
+        if (!due.isEmpty()) {
+            for (PartitionRecord rec : due) {
+                rec.rollDue = false;
+                dueOut.add(rec);
+            }
+            due.clear();
+        }
+    }
+
+    private void expireSlot(int slot, long nowSeconds) {
+        PartitionRecord rec = wheel[slot];
+        while (rec != null) {
+            PartitionRecord next = rec.wheelNext;
+            if (rec.rollDeadline <= nowSeconds) {
+                cancel(rec);
+                makeDue(rec);
+            }
+            rec = next;
+        }
+    }
+
+    private void makeDue(PartitionRecord rec) {
+        if (!rec.rollDue) {
+            rec.rollDue = true;
+            due.add(rec);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.pralay.LoadHDFS;
+
+/*
+Pre-resolved index of the schemas of the SchemaRegistry keyed by (EVENT_TYPE, EVENT_ID, EVENT_VERSION)
+The schema map is keyed by the upper cased ZK path /HDFSLOADER/SCHEMAS/<EVENT_TYPE>_<EVENT_ID>/<EVENT_VERSION> - this class
+parses those keys once so that the decoded HEADER fields can be matched directly, without building a key string per record
+Built for a topic, the entries also carry the topic's settings: the output schema of the event type and the plan for
+writing the payloads directly. The output schema is the table schema of the event type
+(input.adapter.<topic>.table.schema.<event type>) that every version of the event type is resolved to, so all versions
+land in the same files, with only the fields listed in input.adapter.<topic>.projection.<event type>
+ */
+
+import com.pralay.LoadHDFS.kafka.InitTopic;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaCompatibility;
+import org.apache.avro.util.Utf8;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SchemaLookup {
+    private static final Logger log = LoggerFactory.getLogger(SchemaLookup.class.getName());
+    private static final String KEY_PREFIX = (InitTopic.DEST_PREFIX + InitTopic.ZK_SCHEMA_NODE + "/").toUpperCase();
+
+    /**
+     * A schema resolved for one (EVENT_TYPE, EVENT_ID, EVENT_VERSION) combination
+     */
+    public static final class Entry {
+        //Dense index of the entry - decoders use it to keep per schema state in arrays
+        final int id;
+        //schema the payload is encoded with
+        final Schema schema;
+        //schema of the records written out - the table schema or schema itself, reduced to the projected fields
+        final Schema outputSchema;
+        //Lower case event type, used as the output sub directory
+        final String eventType;
+        final String schemaKey;
+        //null unless the payloads are written to parquet without decoding them - see AvroBinaryPlan. Only set while the
+        //lookup is built
+        AvroBinaryPlan binaryPlan;
+        private final byte[] eventTypeBytes;
+        private final int eventId;
+        private final byte[] eventVersionBytes;
+        private final int hash;
+
+        private Entry(int id, Schema schema, Schema outputSchema, String schemaKey, String eventType, int eventId,
+                      String eventVersion, AvroBinaryPlan binaryPlan) {
+            this.id = id;
+            this.schema = schema;
+            this.outputSchema = outputSchema;
+            this.schemaKey = schemaKey;
+            this.binaryPlan = binaryPlan;
+            this.eventType = eventType.toLowerCase();
+            this.eventTypeBytes = eventType.toUpperCase().getBytes(StandardCharsets.UTF_8);
+            this.eventId = eventId;
+            this.eventVersionBytes = eventVersion.toUpperCase().getBytes(StandardCharsets.UTF_8);
+            this.hash = hash(eventTypeBytes, eventTypeBytes.length, eventId, eventVersionBytes, eventVersionBytes.length);
+        }
+
+        public Schema getSchema() {
+            return schema;
+        }
+
+        public String getEventType() {
+            return eventType;
+        }
+
+        public String toString() {
+            return schemaKey;
+        }
+    }
+
+    private final Entry[] entries;
+    //open addressing table, size is a power of two
+    private final Entry[] table;
+    private final int mask;
+
+    public SchemaLookup(Map<String, Schema> schemaMap) {
+        this(schemaMap, null);
+    }
+
+    /**
+     * @param topicName topic whose projection and direct write settings apply, null to write every schema as it is
+     */
+    public SchemaLookup(Map<String, Schema> schemaMap, String topicName) {
+        //payloads are only kept binary for parquet output - the local test avro files need the decoded records
+        boolean directWrite = topicName != null && KafkaToLoadHdfs.config.getTopicParquetDirectWrite(topicName)
+                && System.getProperty("ECLIPSE_ENV") == null;
+        List<Entry> resolved = new ArrayList<Entry>();
+        for (Map.Entry<String, Schema> item : schemaMap.entrySet()) {
+            Entry entry = parseKey(resolved.size(), item.getKey(), item.getValue(), schemaMap, topicName, directWrite);
+            if (entry != null) {
+                resolved.add(entry);
+            }
+        }
+        entries = resolved.toArray(new Entry[resolved.size()]);
+        if (directWrite) {
+            dropMixedPlans(entries);
+        }
+
+        int capacity = 16;
+        while (capacity < entries.length * 2) {
+            capacity <<= 1;
+        }
+        table = new Entry[capacity];
+        mask = capacity - 1;
+        for (Entry entry : entries) {
+            int idx = entry.hash & mask;
+            while (table[idx] != null) {
+                idx = (idx + 1) & mask;
+            }
+            table[idx] = entry;
+        }
+    }
+
+    /**
+     * @return the schema entry for the decoded header fields or null if no schema is registered for them
+     */
+    public Entry get(CharSequence eventType, int eventId, CharSequence eventVersion) {
+        if (eventType == null || eventVersion == null) {
+            return null;
+        }
+        int h = 1;
+        h = 31 * h + hashChars(eventType);
+        h = 31 * h + eventId;
+        h = 31 * h + hashChars(eventVersion);
+        int idx = h & mask;
+        Entry entry;
+        while ((entry = table[idx]) != null) {
+            if (entry.hash == h && entry.eventId == eventId
+                    && equalsIgnoreCase(entry.eventTypeBytes, eventType)
+                    && equalsIgnoreCase(entry.eventVersionBytes, eventVersion)) {
+                return entry;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    private static Entry parseKey(int id, String key, Schema schema, Map<String, Schema> schemaMap, String topicName,
+                                  boolean directWrite) {
+        String upperKey = key.toUpperCase();
+        if (!upperKey.startsWith(KEY_PREFIX)) {
+            log.warn("Schema key " + key + " is not under " + KEY_PREFIX + " - it will not be used for decoding");
+            return null;
+        }
+        String rest = key.substring(KEY_PREFIX.length());
+        int versionIdx = rest.indexOf('/');
+        int idIdx = versionIdx == -1 ? -1 : rest.lastIndexOf('_', versionIdx);
+        if (idIdx == -1) {
+            log.warn("Schema key " + key + " is not of the form <EVENT_TYPE>_<EVENT_ID>/<EVENT_VERSION> - it will not be used for decoding");
+            return null;
+        }
+        String idStr = rest.substring(idIdx + 1, versionIdx);
+        int eventId;
+        try {
+            eventId = Integer.parseInt(idStr);
+        } catch (NumberFormatException e) {
+            log.warn("Schema key " + key + " has a non numeric EVENT_ID - it will not be used for decoding");
+            return null;
+        }
+        if (!Integer.toString(eventId).equals(idStr)) {
+            //the key would never have matched the EVENT_ID printed as a string
+            log.warn("Schema key " + key + " has a non canonical EVENT_ID - it will not be used for decoding");
+            return null;
+        }
+        String eventType = rest.substring(0, idIdx);
+        Schema outputSchema = schema;
+        if (topicName != null) {
+            String tableKey = KafkaToLoadHdfs.config.getTopicTableSchema(topicName, eventType.toLowerCase());
+            if (tableKey != null) {
+                outputSchema = tableSchema(key, schema, tableKey, schemaMap);
+            }
+            String fields = KafkaToLoadHdfs.config.getTopicProjection(topicName, eventType.toLowerCase());
+            if (fields != null) {
+                outputSchema = project(key, outputSchema, fields);
+            }
+        }
+        return new Entry(id, schema, outputSchema, key, eventType, eventId, rest.substring(versionIdx + 1),
+                directWrite ? AvroBinaryPlan.compile(schema, outputSchema) : null);
+    }
+
+    /**
+     * @param tableKey <EVENT_TYPE>_<EVENT_ID>/<EVENT_VERSION> of the table schema
+     * @return the table schema if records written with schema can be read as records of it, schema otherwise
+     */
+    static Schema tableSchema(String key, Schema schema, String tableKey, Map<String, Schema> schemaMap) {
+        Schema table = schemaMap.get(KEY_PREFIX + tableKey.trim().toUpperCase());
+        if (table == null) {
+            log.error("Table schema " + tableKey + " of schema " + key + " is not loaded - writing it with its own schema");
+            return schema;
+        }
+        SchemaCompatibility.SchemaPairCompatibility compatibility =
+                SchemaCompatibility.checkReaderWriterCompatibility(table, schema);
+        if (compatibility.getType() != SchemaCompatibility.SchemaCompatibilityType.COMPATIBLE) {
+            log.error("Schema " + key + " cannot be read as table schema " + tableKey + " - writing it with its own schema");
+            log.debug(compatibility.getDescription());
+            return schema;
+        }
+        return table;
+    }
+
+    //A file is written either from binary payloads or from decoded records - the schemas written to the same output schema
+    //all need a plan, otherwise all of them are decoded
+    private static void dropMixedPlans(Entry[] entries) {
+        Set<Schema> decoded = new HashSet<Schema>();
+        for (Entry entry : entries) {
+            if (entry.binaryPlan == null) {
+                decoded.add(entry.outputSchema);
+            }
+        }
+        for (Entry entry : entries) {
+            if (entry.binaryPlan != null && decoded.contains(entry.outputSchema)) {
+                log.info("Schema " + entry.schemaKey + " shares its output schema with schemas that are decoded - it is decoded too");
+                entry.binaryPlan = null;
+            }
+        }
+    }
+
+    /**
+     * @return the record schema with only the listed top level fields, in the order of the schema - fields the schema does
+     * not have are left out. The record keeps its name, so the written files look like files of the full schema
+     */
+    static Schema project(String key, Schema schema, String fieldList) {
+        if (schema.getType() != Schema.Type.RECORD) {
+            log.warn("Schema " + key + " is not a record - the projection " + fieldList + " is not applied");
+            return schema;
+        }
+        Set<String> wanted = new HashSet<String>();
+        for (String name : fieldList.split(",")) {
+            if (!name.trim().isEmpty()) {
+                wanted.add(name.trim());
+            }
+        }
+        List<Schema.Field> fields = new ArrayList<Schema.Field>();
+        for (Schema.Field field : schema.getFields()) {
+            if (wanted.remove(field.name())) {
+                fields.add(new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultValue(), field.order()));
+            }
+        }
+        if (!wanted.isEmpty()) {
+            log.warn("Schema " + key + " has no fields " + wanted + " - they are not written");
+        }
+        if (fields.isEmpty()) {
+            log.error("None of the fields " + fieldList + " are in schema " + key + " - all fields are written");
+            return schema;
+        }
+        if (fields.size() == schema.getFields().size()) {
+            return schema;
+        }
+        Schema projected = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError());
+        projected.setFields(fields);
+        log.info("Writing " + fields.size() + " of the " + schema.getFields().size() + " fields of schema " + key);
+        return projected;
+    }
+
+    private static int hash(byte[] type, int typeLen, int eventId, byte[] version, int versionLen) {
+        int h = 1;
+        h = 31 * h + hashBytes(type, typeLen);
+        h = 31 * h + eventId;
+        h = 31 * h + hashBytes(version, versionLen);
+        return h;
+    }
+
+    private static int hashBytes(byte[] bytes, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + upper(bytes[i]);
+        }
+        return h;
+    }
+
+    private static int hashChars(CharSequence cs) {
+        //The decoder hands out Utf8 instances - hash their bytes directly, Utf8.charAt() would build a String
+        if (cs instanceof Utf8) {
+            Utf8 utf8 = (Utf8) cs;
+            return hashBytes(utf8.getBytes(), utf8.getByteLength());
+        }
+        byte[] bytes = cs.toString().getBytes(StandardCharsets.UTF_8);
+        return hashBytes(bytes, bytes.length);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] upperBytes, CharSequence cs) {
+        byte[] bytes;
+        int len;
+        if (cs instanceof Utf8) {
+            Utf8 utf8 = (Utf8) cs;
+            bytes = utf8.getBytes();
+            len = utf8.getByteLength();
+        } else {
+            bytes = cs.toString().getBytes(StandardCharsets.UTF_8);
+            len = bytes.length;
+        }
+        if (len != upperBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (upper(bytes[i]) != upperBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int upper(byte b) {
+        return (b >= 'a' && b <= 'z') ? b - ('a' - 'A') : b;
+    }
+}
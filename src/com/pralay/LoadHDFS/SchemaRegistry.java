@@ -0,0 +1,386 @@
+package com.pralay.LoadHDFS;
+
+/*
+The schemas of the HdfsLoader keyed by the upper cased ZK path /HDFSLOADER/SCHEMAS/<EVENT_TYPE>_<EVENT_ID>/<EVENT_VERSION>
+Loaded at start up and then kept up to date by a Curator TreeCache on /HdfsLoader/Schemas, so a new EVENT_VERSION is
+picked up without a restart. The schemas are an immutable map that is replaced on every change (copy-on-write) - readers
+never lock, consumer threads notice a change through generation() and rebuild their SchemaLookup.
+A key that is not known when a record arrives is fetched from ZK once, on the SchemaFetcher thread - the consumer drops
+the record and does not wait for ZK. Keys that are being fetched, and keys that ZK does not have either for
+schema.negative.cache.ttl.seconds, are matched against the event type, id and version of the record without building the
+key, so records of an unknown schema cost neither a ZK round trip nor a String each.
+Schemas removed from ZK stay loaded until restart - records of them that are in flight can still be written
+ */
+
+import com.pralay.LoadHDFS.kafka.InitTopic;
+import com.pralay.bigdata.zk.ZkDataService;
+import org.apache.avro.Schema;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class SchemaRegistry {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+    static final String ROOT_PATH = InitTopic.DEST_PREFIX + InitTopic.ZK_SCHEMA_NODE;
+    static final String KEY_PREFIX = (ROOT_PATH + "/").toUpperCase();
+
+    private static final class Snapshot {
+        final long generation;
+        final Map<String, Schema> schemas;
+
+        Snapshot(long generation, Map<String, Schema> schemas) {
+            this.generation = generation;
+            this.schemas = schemas;
+        }
+    }
+
+    private static final class TopicLookup {
+        final long generation;
+        final SchemaLookup lookup;
+
+        TopicLookup(long generation, SchemaLookup lookup) {
+            this.generation = generation;
+            this.lookup = lookup;
+        }
+    }
+
+    //A key that is being fetched or that ZK does not have - the event type and version are upper cased like the key
+    private static final class MissingKey {
+        final String key;
+        final String eventType;
+        final int eventId;
+        final String eventVersion;
+        //Long.MAX_VALUE while the fetch is running
+        volatile long retryTime = Long.MAX_VALUE;
+
+        MissingKey(String key, String eventType, int eventId, String eventVersion) {
+            this.key = key;
+            this.eventType = eventType;
+            this.eventId = eventId;
+            this.eventVersion = eventVersion;
+        }
+
+        boolean matches(CharSequence type, int id, CharSequence version) {
+            return eventId == id && equalsUpperCase(eventType, type) && equalsUpperCase(eventVersion, version);
+        }
+
+        private static boolean equalsUpperCase(String upper, CharSequence cs) {
+            if (upper.length() != cs.length()) {
+                return false;
+            }
+            for (int i = 0; i < upper.length(); i++) {
+                if (upper.charAt(i) != Character.toUpperCase(cs.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(0L, Collections.<String, Schema>emptyMap());
+    private final Object updateLock = new Object();
+    private final Object fetchLock = new Object();
+    //SchemaLookup of each topic, built once per generation and shared by the consumers of the topic
+    private final ConcurrentHashMap<String, TopicLookup> lookups = new ConcurrentHashMap<String, TopicLookup>();
+    //keys being fetched or that ZK does not have - few, so they are scanned. Replaced on change under fetchLock
+    private volatile MissingKey[] missingKeys = new MissingKey[0];
+    private volatile ZkDataService ds;
+    private ExecutorService fetcher;
+    private volatile long negativeCacheTtlMillis = 60000L;
+    private TreeCache cache;
+
+    /**
+     * @param key upper cased ZK path of the schema, without the file name of the schema
+     * @return the schema or null if it is not loaded
+     */
+    public Schema get(String key) {
+        return snapshot.schemas.get(key.toUpperCase());
+    }
+
+    /**
+     * @return all schemas - an immutable map, later changes are not visible in it
+     */
+    public Map<String, Schema> getSchemas() {
+        return snapshot.schemas;
+    }
+
+    public boolean isEmpty() {
+        return snapshot.schemas.isEmpty();
+    }
+
+    /**
+     * @return a number that changes every time a schema is added or changed
+     */
+    public long generation() {
+        return snapshot.generation;
+    }
+
+    /**
+     * Adds or replaces the schema of the key
+     * @return false if the key already had this schema
+     */
+    public boolean put(String key, Schema schema) {
+        key = key.toUpperCase();
+        synchronized (updateLock) {
+            Snapshot current = snapshot;
+            Schema old = current.schemas.get(key);
+            if (schema.equals(old)) {
+                return false;
+            }
+            Map<String, Schema> schemas = new HashMap<String, Schema>(current.schemas);
+            schemas.put(key, schema);
+            snapshot = new Snapshot(current.generation + 1, Collections.unmodifiableMap(schemas));
+            log.info((old == null ? "Added schema " : "Updated schema ") + key + " - schema generation " + (current.generation + 1));
+        }
+        removeMissingKey(key);
+        return true;
+    }
+
+    /**
+     * @return the SchemaLookup of the topic for the current schemas - see SchemaLookup(Map, String)
+     */
+    public SchemaLookup lookupFor(String topicName) {
+        Snapshot current = snapshot;
+        TopicLookup topicLookup = lookups.get(topicName);
+        if (topicLookup == null || topicLookup.generation != current.generation) {
+            //consumers of the topic racing here build the same lookup, one of them is kept
+            topicLookup = new TopicLookup(current.generation, new SchemaLookup(current.schemas, topicName));
+            lookups.put(topicName, topicLookup);
+        }
+        return topicLookup.lookup;
+    }
+
+    /**
+     * Enables the fetch of unknown keys from ZK - see fetch()
+     */
+    public void enableFetch(ZkDataService ds, long negativeCacheTtlMillis) {
+        this.negativeCacheTtlMillis = negativeCacheTtlMillis;
+        synchronized (fetchLock) {
+            if (fetcher == null) {
+                fetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SchemaFetcher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        this.ds = ds;
+    }
+
+    /**
+     * Starts watching /HdfsLoader/Schemas for added and changed schemas
+     */
+    public void watch(ZkDataService ds) {
+        synchronized (updateLock) {
+            if (cache != null) {
+                return;
+            }
+            cache = new TreeCache(ds.getCf(), ROOT_PATH);
+        }
+        cache.getListenable().addListener(new TreeCacheListener() {
+            public void childEvent(CuratorFramework client, TreeCacheEvent event) {
+                switch (event.getType()) {
+                    case NODE_ADDED:
+                    case NODE_UPDATED:
+                        schemaNodeChanged(event.getData());
+                        break;
+                    case NODE_REMOVED:
+                        if (event.getData() != null) {
+                            log.info("Schema node " + event.getData().getPath() + " removed from ZK - its schema stays loaded");
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+        try {
+            cache.start();
+            log.info("Watching " + ROOT_PATH + " for schema changes");
+        } catch (Exception e) {
+            log.error("Could not watch " + ROOT_PATH + " - schema changes need a restart", e);
+        }
+    }
+
+    public void close() {
+        synchronized (updateLock) {
+            if (cache != null) {
+                cache.close();
+                cache = null;
+            }
+        }
+        synchronized (fetchLock) {
+            if (fetcher != null) {
+                fetcher.shutdownNow();
+                fetcher = null;
+            }
+        }
+    }
+
+    /**
+     * Starts fetching the schema of a key that is not loaded from ZK - called by the consumers for records without a
+     * schema. The fetch runs on the SchemaFetcher thread, the records of the key are dropped until it is loaded
+     * @return true if the schema is loaded already, false if it is being fetched, ZK does not have it or it was looked up a
+     * short while ago
+     */
+    public boolean fetch(CharSequence eventType, int eventId, CharSequence eventVersion) {
+        if (eventType == null || eventVersion == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (MissingKey missing : missingKeys) {
+            if (missing.matches(eventType, eventId, eventVersion) && missing.retryTime > now) {
+                return false;
+            }
+        }
+        String type = eventType.toString().toUpperCase();
+        String version = eventVersion.toString().toUpperCase();
+        final String key = KEY_PREFIX + type + "_" + eventId + "/" + version;
+        final MissingKey missing;
+        synchronized (fetchLock) {
+            if (snapshot.schemas.containsKey(key)) {
+                return true;
+            }
+            MissingKey old = findMissingKey(key);
+            if (old != null && old.retryTime > now) {
+                return false;
+            }
+            missing = new MissingKey(key, type, eventId, version);
+            replaceMissingKey(old, missing);
+            if (fetcher == null || ds == null) {
+                missingKeyNotFound(missing);
+                return false;
+            }
+            final ZkDataService zkDs = ds;
+            final String typeNode = eventType.toString() + "_" + eventId;
+            final String versionNode = eventVersion.toString();
+            fetcher.execute(new Runnable() {
+                public void run() {
+                    Schema schema = null;
+                    try {
+                        schema = fetchFromZk(zkDs, typeNode, versionNode);
+                    } catch (Exception e) {
+                        log.error("Could not fetch schema " + key + " from ZK", e);
+                    }
+                    if (schema == null) {
+                        missingKeyNotFound(missing);
+                    } else {
+                        put(key, schema);
+                    }
+                }
+            });
+        }
+        log.info("Fetching schema " + key + " from ZK - records of it are dropped until it is loaded");
+        return false;
+    }
+
+    private void missingKeyNotFound(MissingKey missing) {
+        missing.retryTime = System.currentTimeMillis() + negativeCacheTtlMillis;
+        log.warn("No schema " + missing.key + " in ZK - records of it are dropped, next look up in "
+                + negativeCacheTtlMillis / 1000L + "s");
+    }
+
+    private MissingKey findMissingKey(String key) {
+        for (MissingKey missing : missingKeys) {
+            if (missing.key.equals(key)) {
+                return missing;
+            }
+        }
+        return null;
+    }
+
+    //Called under fetchLock - old is null for a new key
+    private void replaceMissingKey(MissingKey old, MissingKey missing) {
+        MissingKey[] current = missingKeys;
+        if (old == null) {
+            MissingKey[] keys = Arrays.copyOf(current, current.length + 1);
+            keys[current.length] = missing;
+            missingKeys = keys;
+            return;
+        }
+        MissingKey[] keys = current.clone();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == old) {
+                keys[i] = missing;
+            }
+        }
+        missingKeys = keys;
+    }
+
+    private void removeMissingKey(String key) {
+        synchronized (fetchLock) {
+            MissingKey old = findMissingKey(key);
+            if (old == null) {
+                return;
+            }
+            List<MissingKey> keys = new ArrayList<MissingKey>(Arrays.asList(missingKeys));
+            keys.remove(old);
+            missingKeys = keys.toArray(new MissingKey[keys.size()]);
+        }
+    }
+
+    //The ZK nodes are not upper cased - the event type and version are matched ignoring case like the schema keys
+    private static Schema fetchFromZk(ZkDataService zkDs, String typeNode, String versionNode) throws Exception {
+        String typePath = childIgnoreCase(zkDs, ROOT_PATH, typeNode);
+        String versionPath = typePath == null ? null : childIgnoreCase(zkDs, typePath, versionNode);
+        if (versionPath == null) {
+            return null;
+        }
+        List<String> files = zkDs.getChildren(versionPath);
+        if (files == null || files.isEmpty()) {
+            return null;
+        }
+        String schemaStr = zkDs.get(versionPath + "/" + files.get(0));
+        return schemaStr == null ? null : new Schema.Parser().parse(schemaStr);
+    }
+
+    private static String childIgnoreCase(ZkDataService zkDs, String path, String name) throws Exception {
+        if (!zkDs.exist(path)) {
+            return null;
+        }
+        List<String> children = zkDs.getChildren(path);
+        if (children != null) {
+            for (String child : children) {
+                if (child.equalsIgnoreCase(name)) {
+                    return path + "/" + child;
+                }
+            }
+        }
+        return null;
+    }
+
+    //Schemas are the data of /HdfsLoader/Schemas/<EVENT_TYPE>_<EVENT_ID>/<EVENT_VERSION>/<schema file>
+    private void schemaNodeChanged(ChildData data) {
+        if (data == null || data.getData() == null || data.getData().length == 0) {
+            return;
+        }
+        String path = data.getPath();
+        if (!path.startsWith(ROOT_PATH + "/") || path.substring(ROOT_PATH.length() + 1).split("/").length != 3) {
+            return;
+        }
+        String key = path.substring(0, path.lastIndexOf('/'));
+        try {
+            put(key, new Schema.Parser().parse(new String(data.getData(), StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            log.error("Invalid schema in " + path + " - it is not loaded", e);
+        }
+    }
+}
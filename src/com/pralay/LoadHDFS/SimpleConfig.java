@@ -2,9 +2,11 @@ package com.pralay.LoadHDFS;
 
 import java.util.Properties;
 import nl.chess.it.util.config.Config;
+import nl.chess.it.util.config.InvalidPropertyException;
 import nl.chess.it.util.config.MissingPropertyException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import parquet.hadoop.ParquetWriter;
 
 public class SimpleConfig extends Config {
     private static final Logger log = LoggerFactory.getLogger(SimpleConfig.class.getName());
@@ -67,6 +69,121 @@ public class SimpleConfig extends Config {
         }
     }
 
+    /**
+     * @return hdfs or local - where the output files are written, see OutputSink
+     */
+    public String outputSink() {
+        try {
+            return this.getString("output.sink");
+        } catch (MissingPropertyException var2) {
+            return "hdfs";
+        }
+    }
+
+    public boolean outputLocalFsync() {
+        try {
+            return this.getBoolean("output.local.fsync");
+        } catch (MissingPropertyException var2) {
+            return true;
+        }
+    }
+
+    public boolean compactionEnabled() {
+        try {
+            return this.getBoolean("output.compaction.enabled");
+        } catch (MissingPropertyException var2) {
+            return false;
+        }
+    }
+
+    public int compactionIntervalInSeconds() {
+        try {
+            return this.getInt("output.compaction.interval");
+        } catch (MissingPropertyException var2) {
+            return 600;
+        }
+    }
+
+    public long compactionSmallFileSize() {
+        try {
+            return this.getSizeInBytes("output.compaction.small.file.size");
+        } catch (MissingPropertyException var2) {
+            return 64L * 1024L * 1024L;
+        }
+    }
+
+    public long compactionTargetFileSize() {
+        try {
+            return this.getSizeInBytes("output.compaction.target.file.size");
+        } catch (MissingPropertyException var2) {
+            return 256L * 1024L * 1024L;
+        }
+    }
+
+    public int compactionMinAgeInSeconds() {
+        try {
+            return this.getInt("output.compaction.min.age");
+        } catch (MissingPropertyException var2) {
+            return 900;
+        }
+    }
+
+    public int compactionWindowInMinutes() {
+        try {
+            return this.getInt("output.compaction.window");
+        } catch (MissingPropertyException var2) {
+            return 60;
+        }
+    }
+
+    public long compactionMaxBytesPerSecond() {
+        try {
+            return this.getSizeInBytes("output.compaction.max.bytes.per.sec");
+        } catch (MissingPropertyException var2) {
+            return 50L * 1024L * 1024L;
+        }
+    }
+
+    public long writerMemoryBudget() {
+        try {
+            return this.getSizeInBytes("output.writer.memory.budget");
+        } catch (MissingPropertyException var2) {
+            return 0L;
+        }
+    }
+
+    public int writerMaxOpenFiles() {
+        try {
+            return this.getInt("output.writer.max.open.files");
+        } catch (MissingPropertyException var2) {
+            return 0;
+        }
+    }
+
+    public int writerMemoryMetricsIntervalInSeconds() {
+        try {
+            return this.getInt("output.writer.memory.metrics.interval");
+        } catch (MissingPropertyException var2) {
+            return 60;
+        }
+    }
+
+    public boolean schemaWatchEnabled() {
+        try {
+            return this.getBoolean("schema.watch.enabled");
+        } catch (MissingPropertyException var2) {
+            return true;
+        }
+    }
+
+    public int schemaNegativeCacheTtlInSeconds() {
+        try {
+            return this.getInt("schema.negative.cache.ttl.seconds");
+        } catch (MissingPropertyException var2) {
+            return 60;
+        }
+    }
+
     public int getTopicBatchTimeInSeconds(String topicName) {
         try {
             return this.getInt("input.adapter."+topicName+".batch.time");
@@ -84,6 +201,238 @@ public class SimpleConfig extends Config {
         }
     }
 
+    public int getTopicNumConsumers(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".consumers");
+        } catch (MissingPropertyException var2) {
+            return 1;
+        }
+    }
+
+    public int getTopicPollIdleBackoffMinMs(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".poll.idle.backoff.min.ms");
+        } catch (MissingPropertyException var2) {
+            return 10;
+        }
+    }
+
+    public int getTopicPollIdleBackoffMaxMs(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".poll.idle.backoff.max.ms");
+        } catch (MissingPropertyException var2) {
+            return 1000;
+        }
+    }
+
+    public int getTopicPollMetricsIntervalInSeconds(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".poll.metrics.interval");
+        } catch (MissingPropertyException var2) {
+            return 60;
+        }
+    }
+
+    public long getTopicBatchSizeInBytes(String topicName) {
+        try {
+            return this.getSizeInBytes("input.adapter."+topicName+".batch.size");
+        } catch (MissingPropertyException var2) {
+            return 0L;
+        }
+    }
+
+    public boolean getTopicConsolidatePartitions(String topicName) {
+        try {
+            return this.getBoolean("input.adapter."+topicName+".consolidate.partitions");
+        } catch (MissingPropertyException var2) {
+            return false;
+        }
+    }
+
+    public String getTopicParquetCompression(String topicName) {
+        try {
+            return this.getString("input.adapter."+topicName+".parquet.compression");
+        } catch (MissingPropertyException var2) {
+            return "UNCOMPRESSED";
+        }
+    }
+
+    public int getTopicParquetBlockSize(String topicName) {
+        try {
+            return this.getIntSizeInBytes("input.adapter."+topicName+".parquet.block.size");
+        } catch (MissingPropertyException var2) {
+            return ParquetWriter.DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    public int getTopicParquetPageSize(String topicName) {
+        try {
+            return this.getIntSizeInBytes("input.adapter."+topicName+".parquet.page.size");
+        } catch (MissingPropertyException var2) {
+            return ParquetWriter.DEFAULT_PAGE_SIZE;
+        }
+    }
+
+    public int getTopicParquetDictionaryPageSize(String topicName, int pageSize) {
+        try {
+            return this.getIntSizeInBytes("input.adapter."+topicName+".parquet.dictionary.page.size");
+        } catch (MissingPropertyException var2) {
+            return pageSize;
+        }
+    }
+
+    //Parquet takes its sizes as int - a larger value is rejected instead of silently wrapping around
+    private int getIntSizeInBytes(String propertyName) {
+        long size = this.getSizeInBytes(propertyName);
+        if (size > Integer.MAX_VALUE) {
+            throw new InvalidPropertyException(propertyName, String.valueOf(size), "size in bytes up to " + Integer.MAX_VALUE);
+        }
+        return (int) size;
+    }
+
+    public boolean getTopicParquetDictionaryEnabled(String topicName) {
+        try {
+            return this.getBoolean("input.adapter."+topicName+".parquet.dictionary");
+        } catch (MissingPropertyException var2) {
+            return ParquetWriter.DEFAULT_IS_DICTIONARY_ENABLED;
+        }
+    }
+
+    public String getTopicParquetWriterVersion(String topicName) {
+        try {
+            return this.getString("input.adapter."+topicName+".parquet.writer.version");
+        } catch (MissingPropertyException var2) {
+            return "v1";
+        }
+    }
+
+    public boolean getTopicParquetDirectWrite(String topicName) {
+        try {
+            return this.getBoolean("input.adapter."+topicName+".parquet.direct.write");
+        } catch (MissingPropertyException var2) {
+            return false;
+        }
+    }
+
+    /**
+     * @return <EVENT_TYPE>_<EVENT_ID>/<EVENT_VERSION> of the schema all versions of the event type are written with, null
+     * to write every version with its own schema
+     */
+    public String getTopicTableSchema(String topicName, String eventType) {
+        try {
+            return this.getString("input.adapter."+topicName+".table.schema."+eventType);
+        } catch (MissingPropertyException var2) {
+            return null;
+        }
+    }
+
+    /**
+     * @return comma separated fields of the event type written for the topic, null to write all fields
+     */
+    public String getTopicProjection(String topicName, String eventType) {
+        try {
+            return this.getString("input.adapter."+topicName+".projection."+eventType);
+        } catch (MissingPropertyException var2) {
+            return null;
+        }
+    }
+
+    public boolean getTopicStickyAssignment(String topicName) {
+        try {
+            return this.getBoolean("input.adapter."+topicName+".sticky.assignment");
+        } catch (MissingPropertyException var2) {
+            return false;
+        }
+    }
+
+    public String getTopicStickyAssignmentStateDir(String topicName) {
+        try {
+            return this.getString("input.adapter."+topicName+".sticky.assignment.state.dir");
+        } catch (MissingPropertyException var2) {
+            return "";
+        }
+    }
+
+    public int getTopicCloseThreads(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".close.threads");
+        } catch (MissingPropertyException var2) {
+            return 0;
+        }
+    }
+
+    public int getTopicCloseMaxInFlight(String topicName, int defaultMaxInFlight) {
+        try {
+            return this.getInt("input.adapter."+topicName+".close.max.inflight");
+        } catch (MissingPropertyException var2) {
+            return defaultMaxInFlight;
+        }
+    }
+
+    public boolean getTopicOutputTimePartitioned(String topicName) {
+        try {
+            return this.getBoolean("input.adapter."+topicName+".output.time.partitioned");
+        } catch (MissingPropertyException var2) {
+            return false;
+        }
+    }
+
+    public String getTopicOutputTimestampUnit(String topicName) {
+        try {
+            return this.getString("input.adapter."+topicName+".output.timestamp.unit");
+        } catch (MissingPropertyException var2) {
+            return "ms";
+        }
+    }
+
+    public int getTopicOutputHashBuckets(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".output.hash.buckets");
+        } catch (MissingPropertyException var2) {
+            return 0;
+        }
+    }
+
+    public String getTopicOutputHashField(String topicName) {
+        try {
+            return this.getString("input.adapter."+topicName+".output.hash.field");
+        } catch (MissingPropertyException var2) {
+            return OutputLayout.HASH_FIELD_KEY;
+        }
+    }
+
+    public int getTopicDecodeThreads(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".decode.threads");
+        } catch (MissingPropertyException var2) {
+            return 0;
+        }
+    }
+
+    public int getTopicPipelineDecoders(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".pipeline.decoders");
+        } catch (MissingPropertyException var2) {
+            return 0;
+        }
+    }
+
+    public int getTopicPipelineWriters(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".pipeline.writers");
+        } catch (MissingPropertyException var2) {
+            return 1;
+        }
+    }
+
+    public int getTopicPipelineBufferSize(String topicName) {
+        try {
+            return this.getInt("input.adapter."+topicName+".pipeline.buffer.size");
+        } catch (MissingPropertyException var2) {
+            return 4096;
+        }
+    }
+
     public String getPartitionNameMapping(String topicName, int partitionID) {
         if(topicName == null) {
             return partitionID+"";
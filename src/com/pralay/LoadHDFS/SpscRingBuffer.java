@@ -0,0 +1,96 @@
+package com.pralay.LoadHDFS;
+
+/*
+Bounded lock-free ring buffer for exactly one producer thread and one consumer thread
+offer() returns false instead of blocking when the buffer is full, so the producer decides how to apply back pressure
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class SpscRingBuffer<E> {
+    private final Object[] buffer;
+    private final int mask;
+    //next slot to read - written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    //next slot to write - written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    //producer's last read of head, consumer's last read of tail - avoids touching the other side's counter on every call
+    private long headCache;
+    private long tailCache;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public SpscRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side
+     * @return false if the buffer is full
+     */
+    public boolean offer(E e) {
+        long t = tail.get();
+        if (t - headCache > mask) {
+            headCache = head.get();
+            if (t - headCache > mask) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side
+     * @return the next element or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+        int idx = (int) h & mask;
+        E e = (E) buffer[idx];
+        buffer[idx] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Waits between two unsuccessful offer() or poll() calls - spins first, then yields and finally parks
+     * @param idleCount number of consecutive unsuccessful calls so far
+     */
+    public static void idle(int idleCount) {
+        if (idleCount < 100) {
+            //busy spin
+        } else if (idleCount < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(idleCount < 1000 ? 50000L : 1000000L);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.pralay.LoadHDFS;
+
+/*
+Tracks the memory held by the open parquet writers of all HDFSBatchWriters of the process - every writer buffers the
+current row group of each of its files in heap until the file is closed
+ - output.writer.memory.budget: bytes all open files may buffer together, 0 for no limit
+ - output.writer.max.open.files: number of files that may be open together, 0 for no limit
+The HDFSBatchWriters report the buffered bytes of their files as they write and ask the manager how far over the limits
+the process is. One above its fair share rolls its own largest (memory) or oldest (open files) files early - parquet 1.6
+cannot flush a row group without closing the file, so rolling is the only way to release the memory
+Usage is logged every output.writer.memory.metrics.interval seconds and exposed through JMX
+Thread safe - shared by the consumer, pipeline writer and file closer threads
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WriterMemoryManager implements WriterMemoryManagerMBean {
+    private static final Logger log = LoggerFactory.getLogger(KafkaToLoadHdfs.class.getName());
+
+    private static WriterMemoryManager instance;
+
+    private final long budgetBytes;
+    private final int maxOpenFiles;
+    private final long metricsIntervalMs;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicInteger openFiles = new AtomicInteger();
+    private final AtomicInteger writers = new AtomicInteger();
+    private final AtomicLong forcedRolls = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+    private volatile long peakBufferedBytes;
+
+    public WriterMemoryManager(long budgetBytes, int maxOpenFiles, int metricsIntervalSeconds) {
+        this.budgetBytes = budgetBytes;
+        this.maxOpenFiles = maxOpenFiles;
+        this.metricsIntervalMs = metricsIntervalSeconds * 1000L;
+    }
+
+    /**
+     * @return the manager of the process, created from the configuration on first use
+     */
+    public static synchronized WriterMemoryManager get() {
+        if (instance == null) {
+            SimpleConfig config = KafkaToLoadHdfs.config;
+            instance = new WriterMemoryManager(config.writerMemoryBudget(), config.writerMaxOpenFiles(),
+                    config.writerMemoryMetricsIntervalInSeconds());
+            log.info("Writer memory: budget=" + instance.budgetBytes + "::max open files=" + instance.maxOpenFiles);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance,
+                        new ObjectName("com.pralay.LoadHDFS:type=WriterMemoryManager"));
+            } catch (Exception e) {
+                log.warn("Could not register the writer memory MBean", e);
+            }
+        }
+        return instance;
+    }
+
+    public void writerStarted() {
+        writers.incrementAndGet();
+    }
+
+    public void writerStopped() {
+        writers.decrementAndGet();
+    }
+
+    public void fileOpened() {
+        openFiles.incrementAndGet();
+    }
+
+    /**
+     * @param lastBufferedBytes buffered bytes last reported for the file - released with it
+     */
+    public void fileClosed(long lastBufferedBytes) {
+        openFiles.decrementAndGet();
+        bufferedBytes.addAndGet(-lastBufferedBytes);
+    }
+
+    public void update(long deltaBytes) {
+        long total = bufferedBytes.addAndGet(deltaBytes);
+        if (total > peakBufferedBytes) {
+            peakBufferedBytes = total;
+        }
+        report();
+    }
+
+    public void rollForced() {
+        forcedRolls.incrementAndGet();
+    }
+
+    /**
+     * @return bytes buffered above the budget, 0 if within the budget or there is none
+     */
+    public long excessBytes() {
+        return budgetBytes > 0L ? Math.max(0L, bufferedBytes.get() - budgetBytes) : 0L;
+    }
+
+    /**
+     * @return files open above the maximum, 0 if within the maximum or there is none
+     */
+    public int excessFiles() {
+        return maxOpenFiles > 0 ? Math.max(0, openFiles.get() - maxOpenFiles) : 0;
+    }
+
+    public long fairShareBytes() {
+        return bufferedBytes.get() / Math.max(1, writers.get());
+    }
+
+    public int fairShareFiles() {
+        return openFiles.get() / Math.max(1, writers.get());
+    }
+
+    private void report() {
+        if (metricsIntervalMs <= 0L) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (now - last < metricsIntervalMs || !lastReport.compareAndSet(last, now)) {
+            return;
+        }
+        log.info("Writer memory: buffered bytes=" + bufferedBytes.get() + "::peak=" + peakBufferedBytes + "::budget=" + budgetBytes
+                + "::open files=" + openFiles.get() + "::max open files=" + maxOpenFiles + "::writers=" + writers.get()
+                + "::forced rolls=" + forcedRolls.get());
+        peakBufferedBytes = bufferedBytes.get();
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    public int getOpenFiles() {
+        return openFiles.get();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public long getForcedRolls() {
+        return forcedRolls.get();
+    }
+}
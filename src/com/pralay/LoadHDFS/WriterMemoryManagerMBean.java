@@ -0,0 +1,16 @@
+package com.pralay.LoadHDFS;
+
+/*
+JMX view of the WriterMemoryManager - registered as com.pralay.LoadHDFS:type=WriterMemoryManager
+ */
+public interface WriterMemoryManagerMBean {
+    long getBufferedBytes();
+
+    int getOpenFiles();
+
+    long getBudgetBytes();
+
+    int getMaxOpenFiles();
+
+    long getForcedRolls();
+}
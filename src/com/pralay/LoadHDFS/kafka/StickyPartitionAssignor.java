@@ -0,0 +1,349 @@
+package com.pralay.LoadHDFS.kafka;
+
+/*
+Partition assignor that keeps partitions with the consumer that owned them before the rebalance and moves only as many
+partitions as needed to balance the group - every partition that moves costs a file close, a small file and a replay
+of the records read since the last commit
+ - every member sends the partitions it owns with its subscription (user data), the group leader keeps them with their
+   owner up to the owner's share of the topic and hands out the rest to the members below their share
+ - the owned partitions are also saved to a local state file (sticky.assignor.state.file), so a restarted consumer asks
+   for the partitions it had before the restart. Such restored claims never take a partition from its live owner unless
+   that owner is above its share, in which case the restored claims are the partitions it gives up first
+Configured on the consumer through partition.assignment.strategy, followed by the range assignor so that a group can be
+upgraded one consumer at a time
+ */
+
+import org.apache.kafka.clients.consumer.internals.PartitionAssignor;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Configurable;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+public class StickyPartitionAssignor implements PartitionAssignor, Configurable {
+    private static final Logger log = LoggerFactory.getLogger(StickyPartitionAssignor.class.getName());
+
+    public static final String NAME = "sticky";
+    //consumer property - local file the owned partitions are saved to, not saved if missing
+    public static final String STATE_FILE_CONFIG = "sticky.assignor.state.file";
+    private static final short USER_DATA_VERSION = 0;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private List<TopicPartition> ownedPartitions = new ArrayList<TopicPartition>();
+    //true until the first assignment - ownedPartitions were read from the state file
+    private boolean restored;
+    private File stateFile;
+
+    public void configure(Map<String, ?> configs) {
+        Object fileName = configs.get(STATE_FILE_CONFIG);
+        if (fileName == null || fileName.toString().trim().isEmpty()) {
+            return;
+        }
+        stateFile = new File(fileName.toString().trim());
+        List<TopicPartition> saved = readState(stateFile);
+        if (!saved.isEmpty()) {
+            ownedPartitions = saved;
+            restored = true;
+            log.info("Partitions owned before the restart: " + saved);
+        }
+    }
+
+    public String name() {
+        return NAME;
+    }
+
+    public Subscription subscription(Set<String> topics) {
+        return new Subscription(new ArrayList<String>(topics), encode(ownedPartitions, restored));
+    }
+
+    public void onAssignment(Assignment assignment) {
+        ownedPartitions = new ArrayList<TopicPartition>(assignment.partitions());
+        restored = false;
+        if (stateFile != null) {
+            writeState(stateFile, ownedPartitions);
+        }
+    }
+
+    public Map<String, Assignment> assign(Cluster metadata, Map<String, Subscription> subscriptions) {
+        //members in a fixed order, so every leader makes the same choices
+        List<String> members = new ArrayList<String>(subscriptions.keySet());
+        Collections.sort(members);
+        Map<String, List<TopicPartition>> live = new HashMap<String, List<TopicPartition>>();
+        Map<String, List<TopicPartition>> claimed = new HashMap<String, List<TopicPartition>>();
+        Map<String, Set<String>> topicsOf = new HashMap<String, Set<String>>();
+        SortedSet<String> allTopics = new TreeSet<String>();
+        for (String member : members) {
+            Subscription subscription = subscriptions.get(member);
+            topicsOf.put(member, new HashSet<String>(subscription.topics()));
+            allTopics.addAll(subscription.topics());
+            List<TopicPartition> owned = new ArrayList<TopicPartition>();
+            boolean fromStateFile = decode(subscription.userData(), owned);
+            (fromStateFile ? claimed : live).put(member, owned);
+        }
+
+        Map<String, List<TopicPartition>> assignment = new HashMap<String, List<TopicPartition>>();
+        for (String member : members) {
+            assignment.put(member, new ArrayList<TopicPartition>());
+        }
+        for (String topic : allTopics) {
+            Integer numPartitions = metadata.partitionCountForTopic(topic);
+            if (numPartitions == null) {
+                log.warn("No partition metadata for topic " + topic + " - skipping it");
+                continue;
+            }
+            List<String> topicMembers = new ArrayList<String>();
+            for (String member : members) {
+                if (topicsOf.get(member).contains(topic)) {
+                    topicMembers.add(member);
+                }
+            }
+            assignTopic(topic, numPartitions, topicMembers, live, claimed, assignment);
+        }
+
+        Map<String, Assignment> result = new HashMap<String, Assignment>();
+        for (String member : members) {
+            result.put(member, new Assignment(assignment.get(member)));
+        }
+        return result;
+    }
+
+    private void assignTopic(String topic, int numPartitions, List<String> members, Map<String, List<TopicPartition>> live,
+                             Map<String, List<TopicPartition>> claimed, Map<String, List<TopicPartition>> assignment) {
+        //live owner and restored claimant of every partition - the first one in member order wins a conflict
+        String[] liveOwner = new String[numPartitions];
+        String[] claimant = new String[numPartitions];
+        Map<String, List<Integer>> previous = new HashMap<String, List<Integer>>();
+        for (String member : members) {
+            List<Integer> owned = new ArrayList<Integer>();
+            previous.put(member, owned);
+            collectOwned(topic, member, live.get(member), liveOwner, owned);
+            collectOwned(topic, member, claimed.get(member), claimant, null);
+        }
+        for (String member : members) {
+            //a restored claim counts as ownership if no live member owns the partition
+            List<TopicPartition> restoredClaims = claimed.get(member);
+            if (restoredClaims == null) {
+                continue;
+            }
+            for (TopicPartition tp : restoredClaims) {
+                if (tp.topic().equals(topic) && tp.partition() < numPartitions && liveOwner[tp.partition()] == null
+                        && member.equals(claimant[tp.partition()])) {
+                    liveOwner[tp.partition()] = member;
+                    previous.get(member).add(tp.partition());
+                }
+            }
+        }
+
+        //share of every member: numPartitions / members, the members that owned the most get the remainder
+        int numMembers = members.size();
+        if (numMembers == 0) {
+            return;
+        }
+        List<String> byOwned = new ArrayList<String>(members);
+        final Map<String, List<Integer>> previousOwned = previous;
+        Collections.sort(byOwned, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return previousOwned.get(b).size() - previousOwned.get(a).size();
+            }
+        });
+        Map<String, Integer> share = new HashMap<String, Integer>();
+        for (int i = 0; i < numMembers; i++) {
+            share.put(byOwned.get(i), numPartitions / numMembers + (i < numPartitions % numMembers ? 1 : 0));
+        }
+
+        //keep owned partitions up to the share - the ones another member asks for after a restart are given up first
+        boolean[] kept = new boolean[numPartitions];
+        final String[] claimantOf = claimant;
+        for (final String member : members) {
+            List<Integer> owned = previous.get(member);
+            Collections.sort(owned, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    boolean aWanted = claimantOf[a] != null && !claimantOf[a].equals(member);
+                    boolean bWanted = claimantOf[b] != null && !claimantOf[b].equals(member);
+                    if (aWanted != bWanted) {
+                        return aWanted ? 1 : -1;
+                    }
+                    return a - b;
+                }
+            });
+            int limit = Math.min(owned.size(), share.get(member));
+            for (int i = 0; i < limit; i++) {
+                kept[owned.get(i)] = true;
+                assignment.get(member).add(new TopicPartition(topic, owned.get(i)));
+            }
+        }
+
+        Map<String, Integer> count = new HashMap<String, Integer>();
+        for (String member : members) {
+            count.put(member, countTopic(assignment.get(member), topic));
+        }
+        //partitions asked for by a restarted member go back to it if it has room
+        for (int p = 0; p < numPartitions; p++) {
+            String member = claimant[p];
+            if (!kept[p] && member != null && count.containsKey(member) && count.get(member) < share.get(member)) {
+                kept[p] = true;
+                assignment.get(member).add(new TopicPartition(topic, p));
+                count.put(member, count.get(member) + 1);
+            }
+        }
+        //the rest to the members furthest below their share
+        int moved = 0;
+        for (int p = 0; p < numPartitions; p++) {
+            if (kept[p]) {
+                continue;
+            }
+            String target = null;
+            int room = 0;
+            for (String member : members) {
+                int memberRoom = share.get(member) - count.get(member);
+                if (memberRoom > room) {
+                    target = member;
+                    room = memberRoom;
+                }
+            }
+            if (target == null) {
+                break;
+            }
+            assignment.get(target).add(new TopicPartition(topic, p));
+            count.put(target, count.get(target) + 1);
+            if (liveOwner[p] != null) {
+                moved++;
+            }
+        }
+        log.info("Assigned " + numPartitions + " partitions of " + topic + " to " + numMembers + " members, " + moved
+                + " moved to another member");
+    }
+
+    private static void collectOwned(String topic, String member, List<TopicPartition> owned, String[] owner, List<Integer> out) {
+        if (owned == null) {
+            return;
+        }
+        for (TopicPartition tp : owned) {
+            if (!tp.topic().equals(topic) || tp.partition() >= owner.length || owner[tp.partition()] != null) {
+                continue;
+            }
+            owner[tp.partition()] = member;
+            if (out != null) {
+                out.add(tp.partition());
+            }
+        }
+    }
+
+    private static int countTopic(List<TopicPartition> partitions, String topic) {
+        int n = 0;
+        for (TopicPartition tp : partitions) {
+            if (tp.topic().equals(topic)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * [version:2][restored:1][count:4] then [topic length:2][topic][partition:4] per partition
+     */
+    static ByteBuffer encode(List<TopicPartition> partitions, boolean restored) {
+        int size = 2 + 1 + 4;
+        List<byte[]> topics = new ArrayList<byte[]>(partitions.size());
+        for (TopicPartition tp : partitions) {
+            byte[] topic = tp.topic().getBytes(UTF8);
+            topics.add(topic);
+            size += 2 + topic.length + 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort(USER_DATA_VERSION);
+        buffer.put((byte) (restored ? 1 : 0));
+        buffer.putInt(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            buffer.putShort((short) topics.get(i).length);
+            buffer.put(topics.get(i));
+            buffer.putInt(partitions.get(i).partition());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return true if the partitions were restored from the member's state file rather than assigned to it
+     */
+    static boolean decode(ByteBuffer userData, List<TopicPartition> out) {
+        if (userData == null || userData.remaining() < 7) {
+            //a member without sticky data, e.g. one still on another version
+            return false;
+        }
+        ByteBuffer buffer = userData.duplicate();
+        try {
+            if (buffer.getShort() != USER_DATA_VERSION) {
+                return false;
+            }
+            boolean restored = buffer.get() != 0;
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] topic = new byte[buffer.getShort()];
+                buffer.get(topic);
+                out.add(new TopicPartition(new String(topic, UTF8), buffer.getInt()));
+            }
+            return restored;
+        } catch (RuntimeException e) {
+            log.warn("Cannot read the partitions owned by a member - treating it as new", e);
+            out.clear();
+            return false;
+        }
+    }
+
+    private static List<TopicPartition> readState(File file) {
+        List<TopicPartition> partitions = new ArrayList<TopicPartition>();
+        if (!file.exists()) {
+            return partitions;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int idx = line.lastIndexOf(':');
+                    if (idx > 0) {
+                        partitions.add(new TopicPartition(line.substring(0, idx), Integer.parseInt(line.substring(idx + 1).trim())));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            log.warn("Cannot read the assignor state file " + file + " - starting without owned partitions", e);
+            partitions.clear();
+        }
+        return partitions;
+    }
+
+    private static void writeState(File file, List<TopicPartition> partitions) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+            try {
+                for (TopicPartition tp : partitions) {
+                    writer.write(tp.topic() + ":" + tp.partition() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Cannot write the assignor state file " + file, e);
+        }
+    }
+}
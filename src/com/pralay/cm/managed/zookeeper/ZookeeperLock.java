@@ -19,11 +19,11 @@ public class ZookeeperLock implements VersionedFileSet.Lock {
     private final String path;
     private final static ThreadLocal<Boolean> lockStatus = new ThreadLocal<>();
 
-    static ZookeeperLock write(CuratorFramework curator, String path) {
+    public static ZookeeperLock write(CuratorFramework curator, String path) {
         return write(curator, path, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
     }
 
-    static ZookeeperLock write(CuratorFramework curator, String path, long acquireTimeout) {
+    public static ZookeeperLock write(CuratorFramework curator, String path, long acquireTimeout) {
         return new ZookeeperLock(curator, path, acquireTimeout, true);
     }
 
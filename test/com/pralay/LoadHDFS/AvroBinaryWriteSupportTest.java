@@ -0,0 +1,252 @@
+package com.pralay.LoadHDFS;
+
+/*
+Writes the same frames to parquet through AvroBinaryWriteSupport (input.adapter.<topic>.parquet.direct.write) and through
+OffsetRangeWriteSupport from the decoded records, and checks that the files have the same schema and read back the same
+records. The frames are decoded with a FrameDecoder on the SchemaRegistry, like the consumers do, so the projection and
+table schema settings of the topic are applied on both paths
+ */
+
+import com.pralay.HEADER;
+import com.pralay.SessionTestRecord;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import parquet.avro.AvroParquetReader;
+import parquet.avro.AvroSchemaConverter;
+import parquet.format.converter.ParquetMetadataConverter;
+import parquet.hadoop.ParquetFileReader;
+import parquet.hadoop.ParquetReader;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.api.WriteSupport;
+import parquet.hadoop.metadata.CompressionCodecName;
+import parquet.hadoop.metadata.FileMetaData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AvroBinaryWriteSupportTest {
+    private static final String DIRECT_TOPIC = "direct";
+    private static final String DECODED_TOPIC = "decoded";
+    private static final int NUM_RECORDS = 50;
+
+    private static final Schema EVENT_SCHEMA = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Event\","
+            + "\"namespace\":\"com.pralay.test\",\"fields\":["
+            + "{\"name\":\"id\",\"type\":\"long\"},"
+            + "{\"name\":\"unused\",\"type\":\"null\"},"
+            + "{\"name\":\"name\",\"type\":[\"null\",\"string\"]},"
+            + "{\"name\":\"count\",\"type\":[\"long\",\"null\"]},"
+            + "{\"name\":\"color\",\"type\":{\"type\":\"enum\",\"name\":\"Color\",\"symbols\":[\"RED\",\"GREEN\",\"BLUE\"]}},"
+            + "{\"name\":\"hash\",\"type\":{\"type\":\"fixed\",\"name\":\"Hash\",\"size\":4}},"
+            + "{\"name\":\"cell\",\"type\":{\"type\":\"record\",\"name\":\"Cell\",\"fields\":["
+            + "{\"name\":\"lac\",\"type\":\"int\"},"
+            + "{\"name\":\"signal\",\"type\":[\"null\",\"double\"]}]}},"
+            + "{\"name\":\"location\",\"type\":[\"null\",\"Cell\"]},"
+            + "{\"name\":\"raw\",\"type\":\"bytes\"},"
+            + "{\"name\":\"roaming\",\"type\":\"boolean\"},"
+            + "{\"name\":\"ratio\",\"type\":\"float\"},"
+            + "{\"name\":\"result\",\"type\":\"string\"}]}");
+
+    //drops fields of EVENT_SCHEMA - records of it are still written directly
+    private static final Schema NARROW_TABLE_SCHEMA = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Event\","
+            + "\"namespace\":\"com.pralay.test\",\"fields\":["
+            + "{\"name\":\"id\",\"type\":\"long\"},"
+            + "{\"name\":\"name\",\"type\":[\"null\",\"string\"]},"
+            + "{\"name\":\"color\",\"type\":{\"type\":\"enum\",\"name\":\"Color\",\"symbols\":[\"RED\",\"GREEN\",\"BLUE\"]}},"
+            + "{\"name\":\"result\",\"type\":\"string\"}]}");
+
+    //adds a field to EVENT_SCHEMA - records of it have to be resolved, so they are decoded
+    private static final Schema WIDE_TABLE_SCHEMA = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Event\","
+            + "\"namespace\":\"com.pralay.test\",\"fields\":["
+            + "{\"name\":\"id\",\"type\":\"long\"},"
+            + "{\"name\":\"result\",\"type\":\"string\"},"
+            + "{\"name\":\"region\",\"type\":\"string\",\"default\":\"unknown\"}]}");
+
+    private final Configuration conf = new Configuration();
+    private final FrameBuilder frameBuilder = new FrameBuilder();
+    private final Properties props = new Properties();
+    private SchemaRegistry registry;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("AvroBinaryWriteSupportTest").toFile();
+        props.put("input.adapter." + DIRECT_TOPIC + ".parquet.direct.write", "true");
+        KafkaToLoadHdfs.config = new SimpleConfig(props);
+        registry = new SchemaRegistry();
+        registry.put(key("Event_7", "1"), EVENT_SCHEMA);
+        registry.put(key("Event_7", "2"), NARROW_TABLE_SCHEMA);
+        registry.put(key("Event_7", "3"), WIDE_TABLE_SCHEMA);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        registry.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void writesTheSameFileForEveryFieldType() throws IOException {
+        assertSameFiles("1", EVENT_SCHEMA);
+    }
+
+    @Test
+    public void writesTheSameFileForAProjection() throws IOException {
+        setForBothTopics("projection.event", "color,id,location,unused,count,hash");
+        Schema projected = SchemaLookup.project("Event_7", EVENT_SCHEMA, "color,id,location,unused,count,hash");
+        assertEquals(6, projected.getFields().size());
+        assertSameFiles("1", projected);
+    }
+
+    @Test
+    public void writesTheSameFileForATableSchemaThatDropsFields() throws IOException {
+        setForBothTopics("table.schema.event", "Event_7/2");
+        assertSameFiles("1", NARROW_TABLE_SCHEMA);
+    }
+
+    @Test
+    public void decodesRecordsResolvedToATableSchemaWithNewFields() throws IOException {
+        setForBothTopics("table.schema.event", "Event_7/3");
+        FrameDecoder decoder = new FrameDecoder(registry, DIRECT_TOPIC, false);
+        assertEquals(FrameDecoder.Result.DECODED, decoder.decode(frame("1", 0)));
+        assertSame(WIDE_TABLE_SCHEMA, decoder.schemaEntry.outputSchema);
+        assertNull(decoder.schemaEntry.binaryPlan);
+        GenericRecord record = (GenericRecord) decoder.payload;
+        assertEquals(0L, record.get("id"));
+        assertEquals(new Utf8("unknown"), record.get("region"));
+    }
+
+    @Test
+    public void writesSchemasAddedToTheRegistryDirectly() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(registry, DIRECT_TOPIC, false);
+        assertEquals(FrameDecoder.Result.NO_SCHEMA, decoder.decode(frame("4", 0)));
+        registry.put(key("Event_7", "4"), EVENT_SCHEMA);
+        assertSameFiles("4", EVENT_SCHEMA);
+    }
+
+    private void assertSameFiles(String eventVersion, Schema outputSchema) throws IOException {
+        FrameDecoder directDecoder = new FrameDecoder(registry, DIRECT_TOPIC, false);
+        FrameDecoder decodedDecoder = new FrameDecoder(registry, DECODED_TOPIC, false);
+        List<AvroBinaryRecord> binaryRecords = new ArrayList<AvroBinaryRecord>();
+        List<IndexedRecord> decodedRecords = new ArrayList<IndexedRecord>();
+        AvroBinaryPlan plan = null;
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            byte[] frame = frame(eventVersion, i);
+            assertEquals(FrameDecoder.Result.DECODED, directDecoder.decode(frame));
+            assertEquals(FrameDecoder.Result.DECODED, decodedDecoder.decode(frame));
+            plan = directDecoder.schemaEntry.binaryPlan;
+            assertNotNull(plan);
+            assertNull(decodedDecoder.schemaEntry.binaryPlan);
+            assertEquals(outputSchema, decodedDecoder.schemaEntry.outputSchema);
+            binaryRecords.add((AvroBinaryRecord) directDecoder.payload);
+            decodedRecords.add((IndexedRecord) decodedDecoder.payload);
+        }
+
+        Path binaryFile = new Path(dir.getPath(), "binary.parquet");
+        AvroBinaryWriteSupport binarySupport = new AvroBinaryWriteSupport(plan);
+        write(binaryFile, binarySupport, binaryRecords);
+        Path decodedFile = new Path(dir.getPath(), "decoded.parquet");
+        OffsetRangeWriteSupport decodedSupport = new OffsetRangeWriteSupport(new AvroSchemaConverter().convert(outputSchema), outputSchema);
+        write(decodedFile, decodedSupport, decodedRecords);
+
+        FileMetaData binaryMetaData = ParquetFileReader.readFooter(conf, binaryFile, ParquetMetadataConverter.NO_FILTER).getFileMetaData();
+        FileMetaData decodedMetaData = ParquetFileReader.readFooter(conf, decodedFile, ParquetMetadataConverter.NO_FILTER).getFileMetaData();
+        assertEquals(decodedMetaData.getSchema(), binaryMetaData.getSchema());
+        assertEquals(decodedMetaData.getKeyValueMetaData(), binaryMetaData.getKeyValueMetaData());
+        assertEquals(outputSchema, new Schema.Parser().parse(binaryMetaData.getKeyValueMetaData().get(AvroBinaryWriteSupport.AVRO_SCHEMA_KEY)));
+
+        List<GenericRecord> decodedRead = read(decodedFile);
+        assertEquals(NUM_RECORDS, decodedRead.size());
+        assertEquals(decodedRead, read(binaryFile));
+    }
+
+    private <T> void write(Path file, WriteSupport<T> writeSupport, List<? extends T> records) throws IOException {
+        ParquetWriter<T> writer = new ParquetWriter<T>(file, writeSupport, CompressionCodecName.UNCOMPRESSED,
+                ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE);
+        for (T record : records) {
+            writer.write(record);
+        }
+        ((OffsetRangeFooter) writeSupport).setOffsetRanges(DIRECT_TOPIC, "0:0-" + (records.size() - 1));
+        writer.close();
+    }
+
+    private List<GenericRecord> read(Path file) throws IOException {
+        List<GenericRecord> records = new ArrayList<GenericRecord>();
+        ParquetReader<GenericRecord> reader = AvroParquetReader.<GenericRecord>builder(file).withConf(conf).build();
+        try {
+            GenericRecord record;
+            while ((record = reader.read()) != null) {
+                records.add(record);
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private void setForBothTopics(String setting, String value) {
+        props.put("input.adapter." + DIRECT_TOPIC + "." + setting, value);
+        props.put("input.adapter." + DECODED_TOPIC + "." + setting, value);
+        //read when the lookups of the topics are built by the first decoder
+        KafkaToLoadHdfs.config = new SimpleConfig(props);
+    }
+
+    private byte[] frame(String eventVersion, int i) throws IOException {
+        HEADER header = new HEADER();
+        header.EVENT_ID = 7;
+        header.EVENT_VERSION = eventVersion;
+        header.EVENT_TYPE = "Event";
+        header.KEY = i;
+        SessionTestRecord session = new SessionTestRecord();
+        session.eventName = "Event";
+        session.imsi = 310150123456789L + i;
+        session.timestamp = 1476000000000L + i;
+        session.result = "OK";
+        return frameBuilder.build(header, EVENT_SCHEMA, event(i), session);
+    }
+
+    //every nullable field is null for some of the records
+    private static GenericRecord event(int i) {
+        GenericRecord cell = new GenericData.Record(EVENT_SCHEMA.getField("cell").schema());
+        cell.put("lac", 1000 + i);
+        cell.put("signal", i % 3 == 0 ? null : -70.5 - i);
+        GenericRecord event = new GenericData.Record(EVENT_SCHEMA);
+        event.put("id", (long) i);
+        event.put("unused", null);
+        event.put("name", i % 4 == 0 ? null : "name" + i);
+        event.put("count", i % 5 == 0 ? null : (long) i * 1000L);
+        Schema colorSchema = EVENT_SCHEMA.getField("color").schema();
+        event.put("color", new GenericData.EnumSymbol(colorSchema, colorSchema.getEnumSymbols().get(i % 3)));
+        event.put("hash", new GenericData.Fixed(EVENT_SCHEMA.getField("hash").schema(),
+                new byte[]{(byte) i, (byte) (i >> 8), 7, (byte) 0xff}));
+        event.put("cell", cell);
+        event.put("location", i % 2 == 0 ? null : cell);
+        event.put("raw", ByteBuffer.wrap(new byte[]{(byte) i, 0, (byte) -i}));
+        event.put("roaming", i % 2 == 0);
+        event.put("ratio", i / 7.0f);
+        event.put("result", i % 6 == 0 ? "" : "result" + i);
+        return event;
+    }
+
+    private static String key(String typeNode, String versionNode) {
+        return (SchemaRegistry.ROOT_PATH + "/" + typeNode + "/" + versionNode).toUpperCase();
+    }
+}